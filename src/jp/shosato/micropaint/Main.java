@@ -49,6 +49,7 @@ class Main {
         // ウィンドウのルート要素
         RootComponent root = new RootComponent(window, ctrl);
         ctrl.setRootComponent(root);
+        window.setController(ctrl);
         window.setRootComponent(root);
 
         // ウィンドウの組み立て
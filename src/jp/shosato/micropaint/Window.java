@@ -4,9 +4,13 @@ import static org.lwjgl.opengl.GL.*;
 import static org.lwjgl.system.MemoryUtil.*;
 
 import jp.shosato.micropaint.components.BasicComponent;
+import jp.shosato.micropaint.controllers.Controller;
+import jp.shosato.micropaint.renderers.Graphics;
+import jp.shosato.micropaint.renderers.MultisampleTarget;
+import jp.shosato.micropaint.renderers.ScreenshotCapture;
+import jp.shosato.micropaint.utils.BoundingBox;
 
 import static org.lwjgl.glfw.GLFW.*;
-import static org.lwjgl.opengl.GL15.*;
 
 /**
  * ウィンドウの作成と描画
@@ -16,13 +20,70 @@ public class Window {
 
     private BasicComponent rootComponent;
 
+    /**
+     * 溜まったポインタの移動をフレームごとに発行してもらう
+     */
+    private Controller controller;
+
+    /**
+     * ウィンドウの大きさ（座標の単位）
+     */
     private int width;
     private int height;
+    /**
+     * フレームバッファの大きさ（ピクセル）。HiDPIの画面ではウィンドウの大きさより大きい
+     */
+    private final int[] framebufferWidth = new int[1];
+    private final int[] framebufferHeight = new int[1];
+
+    /**
+     * 再描画が必要かどうか。何も変わっていないフレームは描画しない
+     */
+    private boolean dirty = true;
+    /**
+     * アニメーションのために次に描画する時刻（glfwGetTime基準）
+     */
+    private double nextAnimationTime = Double.POSITIVE_INFINITY;
+
+    /**
+     * 描画したフレーム数と、イベントで起きたが描画しなかった回数
+     */
+    private long renderedFrames = 0;
+    private long skippedFrames = 0;
+
+    /**
+     * trueにすると描画したフレーム数と描画しなかった回数を標準出力に出すシステムプロパティ
+     * 動いている間はFRAME_STATS_INTERVAL秒ごとに、終了時に1回出す
+     */
+    public static final String FRAME_STATS_PROPERTY = "micropaint.frameStats";
+    private static final boolean FRAME_STATS = Boolean.getBoolean(FRAME_STATS_PROPERTY);
+    private static final double FRAME_STATS_INTERVAL = 5;
+    private double nextFrameStatsTime = FRAME_STATS_INTERVAL;
+
+    /**
+     * スクリーンショットの読み出し完了を確かめる間隔（秒）
+     */
+    private static final double SCREENSHOT_POLL_INTERVAL = 0.005;
+    private final ScreenshotCapture screenshots = new ScreenshotCapture();
+
+    /**
+     * 描画の実装。コンテキストの種類が実装で決まるので、ウィンドウより先に作る
+     */
+    private final Graphics graphics = Graphics.create();
+
+    /**
+     * アンチエイリアス用の描画先。サンプル数はGraphics.SAMPLES_PROPERTYで選び、0なら画面に直接描く
+     */
+    private final MultisampleTarget multisample = new MultisampleTarget();
 
     public void setRootComponent(BasicComponent root) {
         this.rootComponent = root;
     }
 
+    public void setController(Controller controller) {
+        this.controller = controller;
+    }
+
     public Window(int windowWidth, int windowHeight) {
         this.width = windowWidth;
         this.height = windowHeight;
@@ -35,12 +96,62 @@ public class Window {
     protected long createWindow() {
         // ウィンドウのリサイズは考慮しない
         glfwWindowHint(GLFW_RESIZABLE, GLFW_FALSE);
+        if (graphics.requiresCoreProfile()) {
+            glfwWindowHint(GLFW_CONTEXT_VERSION_MAJOR, 3);
+            glfwWindowHint(GLFW_CONTEXT_VERSION_MINOR, 3);
+            glfwWindowHint(GLFW_OPENGL_PROFILE, GLFW_OPENGL_CORE_PROFILE);
+            glfwWindowHint(GLFW_OPENGL_FORWARD_COMPAT, GLFW_TRUE);
+        }
         long window = glfwCreateWindow(width, height, "Draw", NULL, NULL);
         glfwMakeContextCurrent(window);
         createCapabilities();
+        Graphics.setCurrent(graphics);
+        graphics.init();
+        // 他のウィンドウに隠れていた部分などを描き直す
+        glfwSetWindowRefreshCallback(window, (long _window) -> invalidate());
         return window;
     }
 
+    /**
+     * 次のフレームで再描画する
+     * バッファの入れ替え後は裏バッファの内容が不定なので、範囲は持たずに毎回ウィンドウ全体を描く
+     */
+    public void invalidate() {
+        dirty = true;
+    }
+
+    /**
+     * アニメーション用。変化がなくてもdelay秒後に描画する
+     */
+    public void requestAnimationFrame(double delay) {
+        nextAnimationTime = Math.min(nextAnimationTime, glfwGetTime() + delay);
+    }
+
+    /**
+     * ウィンドウの一部を画像として保存。描画を止めないよう次のフレームから非同期に読み出す
+     * @param rect ウィンドウ座標の範囲。HiDPIの画面ではフレームバッファの解像度のまま保存する
+     * @param path 拡張子が.pngならPNG、それ以外はPPM
+     */
+    public void saveScreenshot(BoundingBox rect, String path) {
+        glfwGetFramebufferSize(windowHandle, framebufferWidth, framebufferHeight);
+        double scaleX = (double) framebufferWidth[0] / width;
+        double scaleY = (double) framebufferHeight[0] / height;
+        int x0 = Math.max(0, (int) Math.floor(rect.topLeft.x() * scaleX));
+        int y0 = Math.max(0, (int) Math.floor(rect.topLeft.y() * scaleY));
+        int x1 = Math.min(framebufferWidth[0], (int) Math.ceil(rect.bottomRight.x() * scaleX));
+        int y1 = Math.min(framebufferHeight[0], (int) Math.ceil(rect.bottomRight.y() * scaleY));
+        screenshots.request(x0, y0, x1 - x0, y1 - y0, path);
+        invalidate();
+    }
+
+    public long getRenderedFrames() {
+        return renderedFrames;
+    }
+
+    public long getSkippedFrames() {
+        return skippedFrames;
+    }
+
     public long getWindowHandle() {
         return windowHandle;
     }
@@ -49,42 +160,86 @@ public class Window {
      * ウィンドウの描画
      */
     public void draw() {
-        glClearColor(0, 0, 0, 0);
-        glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BITS);
-
-        // アンチエイリアシングの有効化
-        glEnable(GL_BLEND);
-        glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
-
-        glEnable(GL_SMOOTH);
-        glEnable(GL_LINE_SMOOTH);
-        glEnable(GL_POLYGON_SMOOTH);
-        glEnable(GL_POINT_SMOOTH);
-
-        // ビューポートをウィンドウに設定
-        glPushMatrix();
-        glScaled(2f / width, -2f / height, 1f);
-        glTranslated(-width / 2f, -height / 2f, 0);
+        /* マルチサンプルの描画先と解決はフレームバッファのピクセルで行う */
+        glfwGetFramebufferSize(windowHandle, framebufferWidth, framebufferHeight);
+        boolean multisampled = multisample.prepare(framebufferWidth[0], framebufferHeight[0], graphics.getSamples());
+        if (multisampled)
+            multisample.bind();
+        /* 左上原点、ウィンドウの座標の単位で始める。ビューポートはフレームバッファ全体 */
+        graphics.beginFrame(width, height, framebufferWidth[0], framebufferHeight[0]);
         /* ルート要素から再帰的に描画 */
         rootComponent.draw();
-        glPopMatrix();
+        graphics.endFrame();
+        /* 1フレームに1回だけ画面へ解決する */
+        if (multisampled)
+            multisample.resolve(0);
     }
     
     /**
      * 描画・イベントのメインループ
+     * 変化があったとき（invalidate）とアニメーションの時刻にだけ描画し、それ以外はイベントを待って眠る
      */
     public void loop() {
         while (!glfwWindowShouldClose(windowHandle)) {
-            /* イベント取得 */
-            glfwPollEvents();
-            /* 描画 */
-            this.draw();
-            /* ダブルバッファリング */
-            glfwSwapBuffers(windowHandle);
+            if (glfwGetTime() >= nextAnimationTime) {
+                nextAnimationTime = Double.POSITIVE_INFINITY;
+                dirty = true;
+            }
+
+            if (dirty) {
+                /* 描画中に要求された再描画は次のフレームに回す */
+                dirty = false;
+                /* 描画 */
+                this.draw();
+                /* 入れ替え前の裏バッファから読み出す */
+                screenshots.readBack(framebufferHeight[0]);
+                /* ダブルバッファリング */
+                glfwSwapBuffers(windowHandle);
+                renderedFrames++;
+            } else {
+                skippedFrames++;
+            }
+
+            /* 読み出しが終わったスクリーンショットを保存に回す */
+            screenshots.poll();
+
+            /* イベント取得。次のアニメーションまで、またはイベントが来るまで待つ */
+            if (dirty) {
+                glfwPollEvents();
+            } else if (screenshots.isReading()) {
+                /* 転送の完了を確かめるために少しだけ待つ */
+                double timeout = Math.min(SCREENSHOT_POLL_INTERVAL, nextAnimationTime - glfwGetTime());
+                glfwWaitEventsTimeout(Math.max(0, timeout));
+            } else if (nextAnimationTime == Double.POSITIVE_INFINITY) {
+                glfwWaitEvents();
+            } else {
+                glfwWaitEventsTimeout(Math.max(0, nextAnimationTime - glfwGetTime()));
+            }
+
+            /* このフレームに届いたポインタの移動をまとめて1回だけ発行 */
+            if (controller != null)
+                controller.dispatchPointer();
+
+            if (FRAME_STATS && glfwGetTime() >= nextFrameStatsTime) {
+                nextFrameStatsTime = glfwGetTime() + FRAME_STATS_INTERVAL;
+                printFrameStats();
+            }
         }
+        if (FRAME_STATS)
+            printFrameStats();
+        screenshots.dispose();
+        multisample.dispose();
+        graphics.dispose();
         glfwTerminate();
     }
 
+    /**
+     * 描画したフレーム数と描画しなかった回数を出す
+     */
+    private void printFrameStats() {
+        System.out.println("frames: rendered=" + renderedFrames + " skipped=" + skippedFrames);
+    }
+
     public int getWidth() {
         return width;
     }
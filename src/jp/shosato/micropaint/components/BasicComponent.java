@@ -1,23 +1,25 @@
 package jp.shosato.micropaint.components;
 
-import static org.lwjgl.opengl.GL15.*;
-
 import java.lang.reflect.Method;
 import java.lang.reflect.Parameter;
 import java.util.ArrayList;
 import java.util.EventListener;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 
+import org.joml.Matrix3x2d;
+import org.joml.Matrix3x2dc;
 import org.joml.Vector2d;
 
 import jp.shosato.micropaint.Window;
 import jp.shosato.micropaint.controllers.Controller;
 import jp.shosato.micropaint.events.Event;
+import jp.shosato.micropaint.renderers.Graphics;
 import jp.shosato.micropaint.utils.BoundingBox;
 import jp.shosato.micropaint.utils.Hoverable;
 import jp.shosato.micropaint.utils.IBoundingBox;
 import jp.shosato.micropaint.utils.IDrawable2D;
-import jp.shosato.micropaint.utils.Utility;
 
 /**
  * 描画可能なすべてのGUIコンポーネントの基底クラス
@@ -53,6 +55,38 @@ public abstract class BasicComponent extends Hoverable implements IDrawable2D, I
      */
     protected LinkedList<BasicComponent> children = new LinkedList<>();
 
+    /**
+     * 変形の行列のキャッシュ。translateなどは直接書き換えられるので、使うたびに作ったときの値と比べて変わっていたら作り直す
+     * 比べるのは数値だけなので、当たり判定や描画のたびに確保や三角関数の計算をしない
+     * local: この要素の座標系 → 親の子要素の座標系、world: この要素の座標系 → ウィンドウ
+     */
+    private final Matrix3x2d localMatrix = new Matrix3x2d();
+    private final Matrix3x2d inverseLocalMatrix = new Matrix3x2d();
+    private final Matrix3x2d worldMatrix = new Matrix3x2d();
+    private final Matrix3x2d inverseWorldMatrix = new Matrix3x2d();
+    /**
+     * 子要素の座標系 → ウィンドウ。子要素のworldの元になる
+     */
+    private final Matrix3x2d childWorldMatrix = new Matrix3x2d();
+    private final Vector2d matrixCenter = new Vector2d(Double.NaN, Double.NaN);
+    private final Vector2d matrixTranslate = new Vector2d(Double.NaN, Double.NaN);
+    private final Vector2d matrixScale = new Vector2d(Double.NaN, Double.NaN);
+    private double matrixRotate = Double.NaN;
+    private final Vector2d centerWork = new Vector2d();
+    /**
+     * 行列を作り直すたびに取る通し番号。親や子要素への変形が変わったかをこれで見分ける
+     */
+    private static int nextRevision = 1;
+    private int localRevision = 0;
+    private int worldRevision = 0;
+    private int childWorldRevision = 0;
+    private int worldLocalRevision = -1;
+    private int worldParentRevision = -1;
+    private int childWorldSourceRevision = -1;
+    private int childWorldChildRevision = -1;
+
+    protected static final Matrix3x2dc IDENTITY = new Matrix3x2d();
+
     /**
      * 子要素を追加。親要素やウィンドウの情報を設定
      */
@@ -62,12 +96,27 @@ public abstract class BasicComponent extends Hoverable implements IDrawable2D, I
         child.window = this.window;
 
         this.children.add(child);
+        invalidate();
     }
 
+    /**
+     * ウィンドウに組み込まれる前に組み立てた子要素はwindowを持たないので、親をたどる
+     */
     public Window getWindow() {
+        if (window == null && parent != null)
+            return parent.getWindow();
         return window;
     }
 
+    /**
+     * この要素の座標系の範囲をウィンドウ座標に変換
+     */
+    public BoundingBox toWindowRect(BoundingBox rect) {
+        if (parent == null)
+            return rect;
+        return rect.transformed(getWorldMatrix());
+    }
+
     public Controller getController() {
         return controller;
     }
@@ -77,32 +126,188 @@ public abstract class BasicComponent extends Hoverable implements IDrawable2D, I
     }
 
     public void removeChildren() {
+        for (BasicComponent child : children) {
+            child.parent = null;
+        }
         children.clear();
+        invalidate();
     }
 
     public void removeChild(BasicComponent child) {
-        children.remove(child);
+        if (children.remove(child))
+            child.parent = null;
+        invalidate();
     }
 
     public BasicComponent getParent() {
         return parent;
     }
 
+    /**
+     * 子要素の座標系での点posに重なりうる子要素を、手前から（描画順の逆に）outに追加。当たり判定の候補を絞るのに使う
+     * 候補なのでcontainsで確かめること。多くの子要素を持つ要素は空間インデックスなどで絞り込む
+     */
+    public void getChildrenAt(Vector2d pos, List<BasicComponent> out) {
+        for (Iterator<BasicComponent> iter = children.descendingIterator(); iter.hasNext();) {
+            out.add(iter.next());
+        }
+    }
+
+    /**
+     * 親の子要素の座標系の点（containsに渡す点）を、この要素の子要素の座標系に変換してdestに入れる
+     */
+    public Vector2d toChildPos(Vector2d pos, Vector2d dest) {
+        getInverseLocalMatrix().transformPosition(pos, dest);
+        return getInverseChildMatrix().transformPosition(dest);
+    }
+
+    /**
+     * 子要素の座標系 → この要素の座標系。子要素にだけ別の変形をかける要素が上書きし、変わったらgetChildMatrixRevisionも変える
+     */
+    protected Matrix3x2dc getChildMatrix() {
+        return IDENTITY;
+    }
+
+    protected Matrix3x2dc getInverseChildMatrix() {
+        return IDENTITY;
+    }
+
+    protected int getChildMatrixRevision() {
+        return 0;
+    }
+
+    /**
+     * 作り直したときに取る通し番号
+     */
+    protected static int newRevision() {
+        return nextRevision++;
+    }
+
+    /**
+     * 中央の座標をdestに入れる。行列が変わったかを確かめるたびに呼ぶので、確保しないよう上書きする
+     */
+    protected Vector2d getCenter(Vector2d dest) {
+        return dest.set(getCenter());
+    }
+
+    /**
+     * この要素の座標系 → 親の子要素の座標系。Graphics.transformと同じく中心を基準に移動・拡大・回転
+     */
+    public Matrix3x2dc getLocalMatrix() {
+        validateLocalMatrix();
+        return localMatrix;
+    }
+
+    public Matrix3x2dc getInverseLocalMatrix() {
+        validateLocalMatrix();
+        return inverseLocalMatrix;
+    }
+
+    /**
+     * この要素の座標系 → ウィンドウ
+     */
+    public Matrix3x2dc getWorldMatrix() {
+        validateWorldMatrix();
+        return worldMatrix;
+    }
+
+    public Matrix3x2dc getInverseWorldMatrix() {
+        validateWorldMatrix();
+        return inverseWorldMatrix;
+    }
+
+    private void validateLocalMatrix() {
+        Vector2d center = getCenter(centerWork);
+        if (center.equals(matrixCenter) && translate.equals(matrixTranslate) && scale.equals(matrixScale)
+                && rotate == matrixRotate)
+            return;
+        matrixCenter.set(center);
+        matrixTranslate.set(translate);
+        matrixScale.set(scale);
+        matrixRotate = rotate;
+        localMatrix.translation(center.x + translate.x, center.y + translate.y).scale(scale.x, scale.y)
+                .rotate(-Math.toRadians(rotate)).translate(-center.x, -center.y);
+        localMatrix.invert(inverseLocalMatrix);
+        localRevision = newRevision();
+    }
+
+    private void validateWorldMatrix() {
+        validateLocalMatrix();
+        int parentRevision = 0;
+        if (parent != null) {
+            parent.validateChildWorldMatrix();
+            parentRevision = parent.childWorldRevision;
+        }
+        if (localRevision == worldLocalRevision && parentRevision == worldParentRevision)
+            return;
+        if (parent != null) {
+            parent.childWorldMatrix.mul(localMatrix, worldMatrix);
+        } else {
+            worldMatrix.set(localMatrix);
+        }
+        worldMatrix.invert(inverseWorldMatrix);
+        worldLocalRevision = localRevision;
+        worldParentRevision = parentRevision;
+        worldRevision = newRevision();
+    }
+
+    private void validateChildWorldMatrix() {
+        validateWorldMatrix();
+        Matrix3x2dc childMatrix = getChildMatrix();
+        int childRevision = getChildMatrixRevision();
+        if (worldRevision == childWorldSourceRevision && childRevision == childWorldChildRevision)
+            return;
+        worldMatrix.mul(childMatrix, childWorldMatrix);
+        childWorldSourceRevision = worldRevision;
+        childWorldChildRevision = childRevision;
+        childWorldRevision = newRevision();
+    }
+
     /**
      * 中央の座標
      */
     public abstract Vector2d getCenter();
 
+    /**
+     * 再描画が必要なことを通知
+     */
+    public void invalidate() {
+        if (parent != null) {
+            parent.onChildInvalidated(this);
+        } else if (window != null) {
+            window.invalidate();
+        }
+    }
+
+    /**
+     * 子要素の再描画要求を受け取る。親要素をたどってウィンドウまで伝える
+     */
+    protected void onChildInvalidated(BasicComponent child) {
+        invalidate();
+    }
+
+    /**
+     * ホバー状態で見た目が変わるので再描画
+     */
+    @Override
+    public void setHovered(boolean hovered) {
+        if (hovered != getHovered()) {
+            super.setHovered(hovered);
+            invalidate();
+        }
+    }
+
     /**
      * 変形を適用してから子要素を再帰的に描画
      */
     @Override
     public void draw() {
-        glPushMatrix();
-        Utility.glTransform(dimension, translate, scale, rotate);
+        Graphics g = Graphics.get();
+        g.pushMatrix();
+        g.transform(getLocalMatrix());
         for (BasicComponent child : children) {
             child.draw();
         }
-        glPopMatrix();
+        g.popMatrix();
     }
 }
@@ -2,7 +2,6 @@ package jp.shosato.micropaint.components;
 
 import java.util.ArrayList;
 
-import static org.lwjgl.opengl.GL15.*;
 import org.joml.Vector2d;
 import org.joml.Vector4d;
 
@@ -20,7 +19,7 @@ import jp.shosato.micropaint.events.mouse.MouseEnterEventListener;
 import jp.shosato.micropaint.events.mouse.MouseEvent;
 import jp.shosato.micropaint.events.mouse.MouseLeaveEventListener;
 import jp.shosato.micropaint.events.mouse.MouseMoveEventListener;
-import jp.shosato.micropaint.utils.Utility;
+import jp.shosato.micropaint.renderers.Graphics;
 
 import static org.lwjgl.glfw.GLFW.*;
 
@@ -67,24 +66,22 @@ public class ButtonComponent extends LabelComponent implements MouseClickEventLi
         }
 
         /* 座標換 */
-        glPushMatrix();
-        Utility.glTransform(dimension, translate, scale, rotate);
+        Graphics g = Graphics.get();
+        g.pushMatrix();
+        g.transform(getLocalMatrix());
         {
             /* 縁を描画 */
-            glColor4d(color.x, color.y, color.z, 1f);
-            Utility.drawRectangleFill(dimension);
+            g.setColor(color.x, color.y, color.z, 1f);
+            g.fillRect(dimension);
 
             /* ボタンを描画 */
             final double margin = 2;
-            glPushMatrix();
-            glTranslated(margin / 2, margin / 2, 0);
-            Utility.drawRectangleFill(new Vector2d(dimension).sub(margin, margin));
-            glPopMatrix();
+            g.fillRect(margin / 2, margin / 2, dimension.x - margin / 2, dimension.y - margin / 2);
 
             /* テキストを描画 */
             drawText();
         }
-        glPopMatrix();
+        g.popMatrix();
     }
 
     @Override
@@ -97,6 +94,7 @@ public class ButtonComponent extends LabelComponent implements MouseClickEventLi
                 switch (event.getAction()) {
                     case GLFW_PRESS:
                         this.pressed = true;
+                        invalidate();
                         break;
                     case GLFW_RELEASE:
                         if (this.pressed) {
@@ -104,6 +102,7 @@ public class ButtonComponent extends LabelComponent implements MouseClickEventLi
                             onButtonClicked.invoke(new ButtonClickedEvent());
                         }
                         this.pressed = false;
+                        invalidate();
                         break;
                     default:
                         break;
@@ -1,10 +1,20 @@
 package jp.shosato.micropaint.components;
 
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.EventListener;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map.Entry;
+import java.util.Set;
 
+import org.joml.Matrix3x2d;
+import org.joml.Matrix3x2dc;
 import org.joml.Vector2d;
 import org.joml.Vector4d;
 import static org.lwjgl.glfw.GLFW.*;
@@ -21,12 +31,15 @@ import jp.shosato.micropaint.events.mouse.MouseEventListener;
 import jp.shosato.micropaint.events.mouse.MouseLeaveEventListener;
 import jp.shosato.micropaint.events.mouse.MouseMoveEventListener;
 import jp.shosato.micropaint.events.scroll.ScrollInputEventListener;
+import jp.shosato.micropaint.renderers.FigureRenderer;
+import jp.shosato.micropaint.renderers.Graphics;
+import jp.shosato.micropaint.renderers.LayerCache;
 import jp.shosato.micropaint.tools.MoveTool;
 import jp.shosato.micropaint.tools.Tool;
+import jp.shosato.micropaint.utils.BoundingBox;
 import jp.shosato.micropaint.utils.Colors;
-import jp.shosato.micropaint.utils.Utility;
-
-import static org.lwjgl.opengl.GL15.*;
+import jp.shosato.micropaint.utils.SnapIndex;
+import jp.shosato.micropaint.utils.SpatialGrid;
 
 /**
  * 描画する図形の親要素。ツールの有効・無効を管理する
@@ -49,7 +62,73 @@ public class Canvas extends RectangleComponent implements MouseMoveEventListener
     public Vector2d canvasScale = new Vector2d(1, 1);
     public Vector2d canvasTranslate = new Vector2d(0, 0);
     public Vector2d canvasCenter = new Vector2d();
+    /**
+     * キャンバスの変形の行列（キャンバス座標 → この要素の座標系）。作ったときの値と比べて、変わったら作り直す
+     */
+    private final Matrix3x2d canvasMatrix = new Matrix3x2d();
+    private final Matrix3x2d inverseCanvasMatrix = new Matrix3x2d();
+    private final Vector2d matrixCanvasScale = new Vector2d(Double.NaN, Double.NaN);
+    private final Vector2d matrixCanvasTranslate = new Vector2d(Double.NaN, Double.NaN);
+    private final Vector2d matrixCanvasCenter = new Vector2d(Double.NaN, Double.NaN);
+    private int canvasMatrixRevision = 0;
+    private final Vector2d viewport = new Vector2d();
     private Vector4d backgroundColor = new Vector4d(Colors.GRAY);
+    /**
+     * 確定した図形はVBOにまとめて描画
+     */
+    private final FigureRenderer figureRenderer = new FigureRenderer();
+    /**
+     * 確定した図形を描いたオフスクリーンのキャッシュ。図形の追加・削除・変更と、拡大・移動で描き直す
+     */
+    private final LayerCache figureLayer = new LayerCache();
+    private boolean figureLayerDirty = true;
+    /**
+     * キャッシュを描いたときのキャンバスの変形
+     */
+    private final Vector2d layerScale = new Vector2d();
+    private final Vector2d layerTranslate = new Vector2d();
+    private final Vector2d layerCenter = new Vector2d();
+    /**
+     * 図形の空間インデックス（キャンバス座標）。見えている図形だけを描くのに使う
+     */
+    private static final double FIGURE_INDEX_CELL_SIZE = 128;
+    /**
+     * 図形を簡略化して描くときに許容する誤差（ピクセル）
+     */
+    private static final double MAX_DETAIL_ERROR = 0.5;
+    private final SpatialGrid<FigureComponent> figureIndex = new SpatialGrid<>(FIGURE_INDEX_CELL_SIZE);
+    /**
+     * 吸着先の点（図形の頂点と辺の中点）のインデックス（キャンバス座標）
+     * 変わった図形は印をつけておき、吸着を調べるときに入れ直す。移動中の図形は除外されるので、離すまで入れ直さない
+     */
+    private static final double SNAP_INDEX_CELL_SIZE = 64;
+    private final SnapIndex<FigureComponent> snapIndex = new SnapIndex<>(SNAP_INDEX_CELL_SIZE);
+    private final Set<FigureComponent> snapDirty = Collections.newSetFromMap(new IdentityHashMap<>());
+    /**
+     * 吸着する距離（ピクセル）
+     */
+    public static final double SNAP_DISTANCE = 8;
+    /**
+     * 格子に吸着するときの格子の間隔を指定するシステムプロパティ（キャンバス座標）。0なら格子に吸着しない
+     */
+    public static final String SNAP_GRID_PROPERTY = "micropaint.snapGrid";
+    private boolean snapping = true;
+    private double snapGridSize = Double.parseDouble(System.getProperty(SNAP_GRID_PROPERTY, "0"));
+    /**
+     * 前回キャッシュを描いたときに見えていた図形
+     */
+    private final ArrayList<FigureComponent> visibleFigures = new ArrayList<>();
+    /**
+     * 子要素を追加した順番。子要素は末尾に追加されるので、これがそのまま描画順になる
+     */
+    private final IdentityHashMap<BasicComponent, Integer> childOrder = new IdentityHashMap<>();
+    private int nextChildOrder = 0;
+    /**
+     * 範囲選択の候補の作業領域
+     */
+    private final ArrayList<FigureComponent> regionCandidates = new ArrayList<>();
+    private final Comparator<BasicComponent> frontToBack = (BasicComponent a,
+            BasicComponent b) -> Integer.compare(childOrder.get(b), childOrder.get(a));
 
     public Canvas(double w, double h) {
         this(new Vector2d(0, 0), w, h, Colors.GRAY);
@@ -65,61 +144,328 @@ public class Canvas extends RectangleComponent implements MouseMoveEventListener
 
     public void setTools(HashMap<Tool, Boolean> tools) {
         this.tools = tools;
+        invalidate();
     }
 
     /**
-     * ビューポート座標を簡易的に計算
+     * 図形が変わったら空間インデックスを更新し、ツールに知らせてから親に伝える
      */
-    private Vector2d getViewportCoords() {
-        Vector2d result = new Vector2d(this.translate);
-        BasicComponent p = this;
-        while (p.parent != null) {
-            p = p.parent;
-            result.add(p.translate);
+    @Override
+    protected void onChildInvalidated(BasicComponent child) {
+        if (child instanceof FigureComponent) {
+            figureLayerDirty = true;
+            indexFigure((FigureComponent) child);
+            for (Tool tool : tools.keySet()) {
+                tool.onFigureChanged((FigureComponent) child);
+            }
+        }
+        invalidate();
+    }
+
+    @Override
+    public void addChildComponent(BasicComponent child) {
+        figureLayerDirty = true;
+        childOrder.put(child, nextChildOrder++);
+        super.addChildComponent(child);
+        if (child instanceof FigureComponent)
+            indexFigure((FigureComponent) child);
+    }
+
+    @Override
+    public void removeChild(BasicComponent child) {
+        figureLayerDirty = true;
+        if (child instanceof FigureComponent) {
+            figureIndex.remove((FigureComponent) child);
+            snapIndex.remove((FigureComponent) child);
+            snapDirty.remove(child);
+        }
+        childOrder.remove(child);
+        super.removeChild(child);
+        /* 取り除いた図形はもう使わないので、ネイティブメモリに置いた頂点をここで解放する */
+        if (child instanceof FigureComponent)
+            ((FigureComponent) child).dispose();
+    }
+
+    @Override
+    public void removeChildren() {
+        figureLayerDirty = true;
+        figureIndex.clear();
+        snapIndex.clear();
+        snapDirty.clear();
+        childOrder.clear();
+        ArrayList<BasicComponent> removed = new ArrayList<>(getChildren());
+        super.removeChildren();
+        for (BasicComponent child : removed) {
+            if (child instanceof FigureComponent)
+                ((FigureComponent) child).dispose();
+        }
+    }
+
+    /**
+     * 図形は空間インデックスでカーソル付近のものだけを候補にし、描画順の逆に並べる
+     */
+    @Override
+    public void getChildrenAt(Vector2d pos, List<BasicComponent> out) {
+        int start = out.size();
+        /* 図形は当たり判定の許容範囲だけ外側でも当たる */
+        double margin = toCanvasLength(FigureComponent.HIT_TOLERANCE);
+        BoundingBox rect = new BoundingBox(new Vector2d(pos).sub(margin, margin), new Vector2d(pos).add(margin, margin));
+        figureIndex.query(rect, out);
+        if (figureIndex.size() < children.size()) {
+            for (BasicComponent child : children) {
+                if (!(child instanceof FigureComponent))
+                    out.add(child);
+            }
+        }
+        out.subList(start, out.size()).sort(frontToBack);
+    }
+
+    /**
+     * 範囲（キャンバス座標）と重なる図形をoutに追加。順序は不定
+     * 空間インデックスで外接矩形が重なるものに絞り、範囲に収まりきらないものだけ図形の形で確かめる
+     */
+    public void getFiguresIn(BoundingBox rect, Collection<? super FigureComponent> out) {
+        regionCandidates.clear();
+        figureIndex.query(rect, regionCandidates);
+        for (FigureComponent figure : regionCandidates) {
+            BoundingBox bb = figure.getBB();
+            if (bb != null && (rect.encloses(bb) || figure.intersects(rect)))
+                out.add(figure);
+        }
+        regionCandidates.clear();
+    }
+
+    /**
+     * 画面上の長さ（ピクセル）をキャンバス座標の長さに変換
+     */
+    public double toCanvasLength(double pixels) {
+        return pixels / Math.max(canvasScale.x, canvasScale.y);
+    }
+
+    /**
+     * 図形はキャンバスの拡大・移動をかけた座標系にある
+     */
+    @Override
+    protected Matrix3x2dc getChildMatrix() {
+        validateCanvasMatrix();
+        return canvasMatrix;
+    }
+
+    @Override
+    protected Matrix3x2dc getInverseChildMatrix() {
+        validateCanvasMatrix();
+        return inverseCanvasMatrix;
+    }
+
+    @Override
+    protected int getChildMatrixRevision() {
+        validateCanvasMatrix();
+        return canvasMatrixRevision;
+    }
+
+    private void validateCanvasMatrix() {
+        if (canvasScale.equals(matrixCanvasScale) && canvasTranslate.equals(matrixCanvasTranslate)
+                && canvasCenter.equals(matrixCanvasCenter))
+            return;
+        matrixCanvasScale.set(canvasScale);
+        matrixCanvasTranslate.set(canvasTranslate);
+        matrixCanvasCenter.set(canvasCenter);
+        canvasMatrix.translation(canvasCenter.x + canvasTranslate.x, canvasCenter.y + canvasTranslate.y)
+                .scale(canvasScale.x, canvasScale.y).translate(-canvasCenter.x, -canvasCenter.y);
+        canvasMatrix.invert(inverseCanvasMatrix);
+        canvasMatrixRevision = newRevision();
+    }
+
+    /**
+     * 図形の範囲をインデックスに反映。線の太さの分だけ広げる
+     */
+    private void indexFigure(FigureComponent figure) {
+        if (figure.getParent() != this)
+            return;
+        BoundingBox bb = figure.getBB();
+        if (bb != null) {
+            double margin = figure.getStrokeWidth() / 2 + 1;
+            bb = bb.withMargin(margin);
+        }
+        figureIndex.put(figure, bb);
+        snapDirty.add(figure);
+    }
+
+    public boolean isSnapping() {
+        return snapping;
+    }
+
+    public void setSnapping(boolean snapping) {
+        this.snapping = snapping;
+    }
+
+    public double getSnapGridSize() {
+        return snapGridSize;
+    }
+
+    /**
+     * @param size 0以下なら格子に吸着しない
+     */
+    public void setSnapGridSize(double size) {
+        this.snapGridSize = size;
+    }
+
+    /**
+     * 点pos（キャンバス座標）の吸着先をdestに入れる。画面上でSNAP_DISTANCE以内の頂点・辺の中点を優先し、なければ格子
+     * @param exclude 吸着先にしない図形（移動中の図形など）。nullなら除外なし
+     * @return 吸着したらtrue。しなければdestはposと同じ
+     */
+    public boolean snap(Vector2d pos, Set<?> exclude, Vector2d dest) {
+        if (!snapping) {
+            dest.set(pos);
+            return false;
+        }
+
+        for (Iterator<FigureComponent> iter = snapDirty.iterator(); iter.hasNext();) {
+            FigureComponent figure = iter.next();
+            if (exclude == null || !exclude.contains(figure)) {
+                snapIndex.put(figure, figure.getPoints(), figure.hasSnapMidpoints());
+                iter.remove();
+            }
+        }
+
+        if (snapIndex.nearest(pos.x, pos.y, toCanvasLength(SNAP_DISTANCE), exclude, dest))
+            return true;
+        if (snapGridSize > 0) {
+            dest.set(Math.round(pos.x / snapGridSize) * snapGridSize, Math.round(pos.y / snapGridSize) * snapGridSize);
+            return true;
         }
-        return result;
+        dest.set(pos);
+        return false;
+    }
+
+    /**
+     * キャンバスの表示範囲（キャンバス座標）
+     */
+    public BoundingBox getVisibleCanvasRect() {
+        return new BoundingBox(0, 0, dimension.x, dimension.y).transformed(getInverseChildMatrix());
+    }
+
+    /**
+     * 前回の描画で見えていた図形の数
+     */
+    public int getVisibleFigureCount() {
+        return visibleFigures.size();
+    }
+
+    public int getFigureCount() {
+        return figureIndex.size();
+    }
+
+    /**
+     * 図形のキャッシュを描き直す必要があるか
+     */
+    private boolean isFigureLayerDirty() {
+        return figureLayerDirty || !layerScale.equals(canvasScale) || !layerTranslate.equals(canvasTranslate)
+                || !layerCenter.equals(canvasCenter);
+    }
+
+    /**
+     * 確定した図形をキャッシュに描く
+     */
+    private void renderFigureLayer() {
+        figureLayer.begin((int) dimension.x, (int) dimension.y);
+        Graphics.get().transform(getChildMatrix());
+        /* 表示範囲と重なる図形だけを描く */
+        visibleFigures.clear();
+        figureIndex.query(getVisibleCanvasRect(), visibleFigures);
+        /* 縮小表示では0.5ピクセル未満の細部を省く */
+        double tolerance = MAX_DETAIL_ERROR / Math.max(canvasScale.x, canvasScale.y);
+        for (FigureComponent figure : visibleFigures) {
+            figure.setDetailTolerance(tolerance);
+        }
+        figureRenderer.render(children, visibleFigures);
+        for (BasicComponent child : children) {
+            if (!(child instanceof FigureComponent))
+                child.draw();
+        }
+        figureLayer.end();
+
+        figureLayerDirty = false;
+        layerScale.set(canvasScale);
+        layerTranslate.set(canvasTranslate);
+        layerCenter.set(canvasCenter);
+    }
+
+    /**
+     * キャッシュを使えない描画先では、見えている図形を直接描く
+     */
+    private void drawFigures(Graphics g) {
+        g.pushMatrix();
+        g.transform(getChildMatrix());
+        visibleFigures.clear();
+        figureIndex.query(getVisibleCanvasRect(), visibleFigures);
+        Set<FigureComponent> visible = Collections.newSetFromMap(new IdentityHashMap<>());
+        visible.addAll(visibleFigures);
+        for (BasicComponent child : children) {
+            if (!(child instanceof FigureComponent) || visible.contains(child))
+                child.draw();
+        }
+        g.popMatrix();
+    }
+
+    /**
+     * ビューポート座標（この要素の左上のウィンドウ座標）
+     */
+    private Vector2d getViewportCoords() {
+        return getWorldMatrix().transformPosition(0, 0, viewport);
     }
 
     @Override
     public void draw() {
-        glPushMatrix();
-        Utility.glTransform(dimension, translate, scale, rotate);
+        Graphics g = Graphics.get();
+        g.pushMatrix();
+        g.transform(getLocalMatrix());
         {
             /**
              * フレームバッファに書き込む領域を制限 図形がキャンバス外に行かないように
              */
-            glEnable(GL_SCISSOR_TEST);
             Vector2d viewport = getViewportCoords();
-            glScissor((int) viewport.x, (int) viewport.y, (int) dimension.x, (int) dimension.y);
+            g.setScissor((int) viewport.x, (int) viewport.y, (int) dimension.x, (int) dimension.y);
 
             /* キャンバスの背景を描画 */
-            glColor3d(backgroundColor.x, backgroundColor.y, backgroundColor.z);
-            Utility.drawRectangleFill(dimension);
+            g.setColor(backgroundColor.x, backgroundColor.y, backgroundColor.z, 1);
+            g.fillRect(dimension);
 
-            glPushMatrix();
-            Utility.glTransformAt(canvasCenter, canvasTranslate, canvasScale, 0);
+            g.pushMatrix();
+            g.transform(getChildMatrix());
             {
                 /* キャンバスを描画 */
-                glColor3d(color.x, color.y, color.z);
-                Utility.drawRectangleFill(dimension);
-
-                /* 図形を描画 */
-                for (BasicComponent child : children) {
-                    child.draw();
+                g.setColor(color.x, color.y, color.z, 1);
+                g.fillRect(dimension);
+            }
+            g.popMatrix();
+
+            /* 図形を描画。変化がなければキャッシュを貼るだけ */
+            if (!g.supportsGpuResources()) {
+                drawFigures(g);
+            } else {
+                if (isFigureLayerDirty()) {
+                    renderFigureLayer();
                 }
+                figureLayer.draw();
+            }
 
-                /* ツールを描画 */
+            g.pushMatrix();
+            g.transform(getChildMatrix());
+            {
+                /* ツールは描画中の図形や選択範囲など毎フレーム変わるので直接描画 */
                 for (Entry<Tool, Boolean> e : tools.entrySet()) {
                     if (e.getValue()) {
                         e.getKey().draw();
                     }
                 }
             }
-            glPopMatrix();
+            g.popMatrix();
 
-            glDisable(GL_SCISSOR_TEST);
+            g.disableScissor();
         }
-        glPopMatrix();
+        g.popMatrix();
     }
 
     private interface MouseEventInvoker {
@@ -146,15 +492,36 @@ public class Canvas extends RectangleComponent implements MouseMoveEventListener
             ((MouseLeaveEventListener) tool).onMouseLeave(event);
     };
 
+    /**
+     * ツールに渡すキャンバス座標の位置とまとめられた点。イベントのたびに使い回す
+     */
+    private final Vector2d toolPos = new Vector2d();
+    private final ArrayList<Vector2d> toolSampleVectors = new ArrayList<>();
+    private final ArrayList<Vector2d> toolSamples = new ArrayList<>();
+
     private void onMouseEvent(MouseEvent event, MouseEventInvoker invoker) {
-        Vector2d original = new Vector2d(event.getPos());
-        event.setPos(Utility.untransform(original, canvasCenter, canvasTranslate, canvasScale, 0));
+        Vector2d original = event.getPos();
+        List<Vector2d> originalSamples = event.getCoalescedPositions();
+        Matrix3x2dc inverse = getInverseChildMatrix();
+        event.setPos(inverse.transformPosition(original, toolPos));
+        if (originalSamples.size() > 1) {
+            toolSamples.clear();
+            for (int i = 0; i < originalSamples.size(); i++) {
+                if (toolSampleVectors.size() == i)
+                    toolSampleVectors.add(new Vector2d());
+                toolSamples.add(inverse.transformPosition(originalSamples.get(i), toolSampleVectors.get(i)));
+            }
+            event.setCoalescedPositions(toolSamples);
+        } else {
+            event.setCoalescedPositions(null);
+        }
         for (Entry<Tool, Boolean> e : tools.entrySet()) {
             if (e.getValue()) {
                 invoker.invoke(e.getKey(), event);
             }
         }
         event.setPos(original);
+        event.setCoalescedPositions(originalSamples.size() > 1 ? originalSamples : null);
     }
 
     /**
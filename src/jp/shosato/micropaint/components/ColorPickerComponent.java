@@ -10,10 +10,9 @@ import jp.shosato.micropaint.events.mouse.MouseClickEventListener;
 import jp.shosato.micropaint.events.mouse.MouseEvent;
 import jp.shosato.micropaint.events.mouse.MouseLeaveEventListener;
 import jp.shosato.micropaint.events.mouse.MouseMoveEventListener;
+import jp.shosato.micropaint.renderers.Graphics;
 import jp.shosato.micropaint.utils.Utility;
 
-import static org.lwjgl.opengl.GL15.*;
-
 import java.util.ArrayList;
 
 import static org.lwjgl.glfw.GLFW.*;
@@ -32,6 +31,41 @@ public class ColorPickerComponent extends RectangleComponent
     private Vector2d svPosition;
     private double margin = 10;
 
+    /**
+     * 環の分割数。環の形と色は大きさ以外変わらないので、角度ごとの値は最初に一度だけ求める
+     */
+    private static final int RING_SEGMENTS = 51;
+    private static final float[] RING_COS = new float[RING_SEGMENTS + 1];
+    private static final float[] RING_SIN = new float[RING_SEGMENTS + 1];
+    private static final float[] RING_COLORS = new float[RING_SEGMENTS * 24];
+
+    static {
+        for (int i = 0; i <= RING_SEGMENTS; i++) {
+            double arg = (Math.PI * 2) * i / RING_SEGMENTS;
+            RING_COS[i] = (float) Math.cos(arg);
+            RING_SIN[i] = (float) Math.sin(arg);
+        }
+        for (int i = 0; i < RING_SEGMENTS; i++) {
+            Vector4d rgb0 = HSVtoRGB(360.0 * i / RING_SEGMENTS, 1, 1);
+            Vector4d rgb1 = HSVtoRGB(360.0 * ((i + 1) % RING_SEGMENTS) / RING_SEGMENTS, 1, 1);
+            Vector4d[] rgbs = { rgb0, rgb0, rgb1, rgb0, rgb1, rgb1 };
+            for (int j = 0; j < 6; j++) {
+                putColor(RING_COLORS, i * 6 + j, rgbs[j]);
+            }
+        }
+    }
+
+    /* 描画用に作っておく頂点。作ったときの大きさと色相を覚えておき、変わったら作り直す */
+    private final float[] ringVertices = new float[RING_SEGMENTS * 12];
+    private double ringOuterRadius = Double.NaN;
+    private double ringInnerRadius = Double.NaN;
+    private final float[] triangle = new float[6];
+    private final float[] triangleColors = new float[12];
+    private final float[] handle = new float[6];
+    private ArrayList<Vector2d> triangleVertices;
+    private double triangleHue = Double.NaN;
+    private double triangleRadius = Double.NaN;
+
     public ColorPickerComponent(double w, double h) {
         this(new Vector2d(0, 0), w, h, 0, 1, 1);
     }
@@ -62,79 +96,96 @@ public class ColorPickerComponent extends RectangleComponent
     @Override
     public void draw() {
         super.draw();
+        updateGeometry();
+
+        Graphics g = Graphics.get();
+        g.pushMatrix();
+        Vector2d center = getCenter();
+        g.translate(center.x, center.y);
+        g.fillColoredTriangles(ringVertices, RING_COLORS, RING_SEGMENTS * 6);
+        g.fillColoredTriangles(triangle, triangleColors, 3);
+        g.setColor(0.7, 0.7, 0.7, 1);
+        g.fillTriangles(handle, 3);
+        g.popMatrix();
+    }
 
+    /**
+     * 大きさが変わったら環を、色相か大きさが変わったら三角とつまみを作り直す
+     */
+    private void updateGeometry() {
         double outerRadius = getOuterRadius();
         double innerRadius = getInnerRadius();
 
-        glPushMatrix();
-        Vector2d center = getCenter();
-        glTranslated(center.x, center.y, 0);
-        // 環
-        {
-            glBegin(GL_TRIANGLE_STRIP);
-
-            double arg = 0;
-            for (int i = 0, length = 51; i <= length; i++) {
-                Vector4d rgb = HSVtoRGB(arg * 180 / Math.PI, 1, 1);
-                glColor4d(rgb.x, rgb.y, rgb.z, rgb.w);
-                glVertex2d(outerRadius * Math.cos(arg), outerRadius * Math.sin(arg));
-                glVertex2d(innerRadius * Math.cos(arg), innerRadius * Math.sin(arg));
-                arg += (Math.PI * 2) / length;
+        if (outerRadius != ringOuterRadius || innerRadius != ringInnerRadius) {
+            ringOuterRadius = outerRadius;
+            ringInnerRadius = innerRadius;
+            float outer = (float) outerRadius, inner = (float) innerRadius;
+            for (int i = 0; i < RING_SEGMENTS; i++) {
+                float cos0 = RING_COS[i], sin0 = RING_SIN[i];
+                float cos1 = RING_COS[i + 1], sin1 = RING_SIN[i + 1];
+                float[] xy = ringVertices;
+                int o = i * 12;
+                xy[o] = outer * cos0;
+                xy[o + 1] = outer * sin0;
+                xy[o + 2] = inner * cos0;
+                xy[o + 3] = inner * sin0;
+                xy[o + 4] = outer * cos1;
+                xy[o + 5] = outer * sin1;
+                xy[o + 6] = inner * cos0;
+                xy[o + 7] = inner * sin0;
+                xy[o + 8] = outer * cos1;
+                xy[o + 9] = outer * sin1;
+                xy[o + 10] = inner * cos1;
+                xy[o + 11] = inner * sin1;
             }
-
-            glEnd();
         }
 
-        // 三角
-        {
-            glBegin(GL_TRIANGLES);
-
-            double h_degree = Utility.toDegree(h);
-            Vector4d rgb;
-            rgb = HSVtoRGB(h_degree, 0, 0);
-            ArrayList<Vector2d> vertices = getTriangleVertices();
-            glColor4d(rgb.x, rgb.y, rgb.z, rgb.w);
-            glVertex2d(vertices.get(0).x, vertices.get(0).y);
-            rgb = HSVtoRGB(h_degree, 0, 1);
-            glColor4d(rgb.x, rgb.y, rgb.z, rgb.w);
-            glVertex2d(vertices.get(1).x, vertices.get(1).y);
-            rgb = HSVtoRGB(h_degree, 1, 1);
-            glColor4d(rgb.x, rgb.y, rgb.z, rgb.w);
-            glVertex2d(vertices.get(2).x, vertices.get(2).y);
-
-            glEnd();
+        if (h != triangleHue || innerRadius != triangleRadius) {
+            triangleHue = h;
+            triangleRadius = innerRadius;
+            triangleVertices = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                double arg = (i + 1) * 2 * Math.PI / 3 + h;
+                Vector2d vertex = new Vector2d(innerRadius * Math.cos(arg), innerRadius * Math.sin(arg));
+                triangleVertices.add(vertex);
+                triangle[i * 2] = (float) vertex.x;
+                triangle[i * 2 + 1] = (float) vertex.y;
+            }
+            double hDegree = Utility.toDegree(h);
+            putColor(triangleColors, 0, HSVtoRGB(hDegree, 0, 0));
+            putColor(triangleColors, 1, HSVtoRGB(hDegree, 0, 1));
+            putColor(triangleColors, 2, HSVtoRGB(hDegree, 1, 1));
+
+            double wAngle = Utility.toRadian(3);
+            handle[0] = (float) ((outerRadius + 5) * Math.cos(h - wAngle));
+            handle[1] = (float) ((outerRadius + 5) * Math.sin(h - wAngle));
+            handle[2] = (float) ((outerRadius - 20) * Math.cos(h));
+            handle[3] = (float) ((outerRadius - 20) * Math.sin(h));
+            handle[4] = (float) ((outerRadius + 5) * Math.cos(h + wAngle));
+            handle[5] = (float) ((outerRadius + 5) * Math.sin(h + wAngle));
         }
+    }
 
-        // handle
-        {
-            double w_angle = Utility.toRadian(3);
-            glColor4d(0.7, 0.7, 0.7, 1);
-            glBegin(GL_POLYGON);
-            glVertex2d((outerRadius + 5) * Math.cos(h - w_angle), (outerRadius + 5) * Math.sin(h - w_angle));
-            glVertex2d((outerRadius - 20) * Math.cos(h), (outerRadius - 20) * Math.sin(h));
-            glVertex2d((outerRadius + 5) * Math.cos(h + w_angle), (outerRadius + 5) * Math.sin(h + w_angle));
-            glEnd();
-        }
-        glPopMatrix();
+    private static void putColor(float[] colors, int vertex, Vector4d rgba) {
+        colors[vertex * 4] = (float) rgba.x;
+        colors[vertex * 4 + 1] = (float) rgba.y;
+        colors[vertex * 4 + 2] = (float) rgba.z;
+        colors[vertex * 4 + 3] = (float) rgba.w;
     }
 
     private void updateColor() {
         this.color = HSVtoRGB(Utility.toDegree(h), s, v);
+        invalidate();
         if (onColorChanged != null)
             onColorChanged.invoke(new ColorChangedEvent(this.color));
     }
 
+    /**
+     * 三角の頂点（中心基準）。色相が変わるまで同じリストを返すので変更しないこと
+     */
     private ArrayList<Vector2d> getTriangleVertices() {
-        double innerRadius = getInnerRadius();
-
-        ArrayList<Vector2d> vertices = new ArrayList<>();
-        vertices.add(new Vector2d(innerRadius * Math.cos(1 * 2 * Math.PI / 3 + h),
-                innerRadius * Math.sin(1 * 2 * Math.PI / 3 + h)));
-        vertices.add(new Vector2d(innerRadius * Math.cos(2 * 2 * Math.PI / 3 + h),
-                innerRadius * Math.sin(2 * 2 * Math.PI / 3 + h)));
-        vertices.add(new Vector2d(innerRadius * Math.cos(3 * 2 * Math.PI / 3 + h),
-                innerRadius * Math.sin(3 * 2 * Math.PI / 3 + h)));
-        return vertices;
+        updateGeometry();
+        return triangleVertices;
     }
 
     @Override
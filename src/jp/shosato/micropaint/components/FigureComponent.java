@@ -1,6 +1,6 @@
 package jp.shosato.micropaint.components;
 
-import java.util.ArrayList;
+import java.util.List;
 
 import org.joml.Vector2d;
 import org.joml.Vector4d;
@@ -14,8 +14,10 @@ import jp.shosato.micropaint.events.mouse.MouseEnterEventListener;
 import jp.shosato.micropaint.events.mouse.MouseEvent;
 import jp.shosato.micropaint.events.mouse.MouseLeaveEventListener;
 import jp.shosato.micropaint.events.mouse.MouseMoveEventListener;
+import jp.shosato.micropaint.renderers.RenderPass;
 import jp.shosato.micropaint.utils.BoundingBox;
 import jp.shosato.micropaint.utils.IBoundingBox;
+import jp.shosato.micropaint.utils.PointList;
 
 /**
  * 図形コンポーネントの基底クラス
@@ -33,15 +35,153 @@ public abstract class FigureComponent extends BasicComponent implements IFigure,
     protected Vector4d strokeColor = new Vector4d(0, 0, 0, 1);
     protected double strokeWidth = 5;
 
+    /**
+     * 当たり判定で図形の外側に許容する距離（画面のピクセル）
+     */
+    public static final double HIT_TOLERANCE = 5;
+
+    /**
+     * trueにすると図形の頂点と描画用の三角形をネイティブメモリに置くシステムプロパティ
+     * 巨大な図もGCの走査対象にならず、VBOへは写さずに転送する。キャンバスから取り除いた図形はdisposeで解放される
+     */
+    public static final String OFF_HEAP_PROPERTY = "micropaint.offHeapGeometry";
+    protected static final boolean OFF_HEAP = Boolean.getBoolean(OFF_HEAP_PROPERTY);
+
+    /**
+     * 形状や色が変わるたびに増える。描画キャッシュの更新判定に使う
+     */
+    private int revision = 0;
+
+    /**
+     * 外接矩形のキャッシュ。点の追加では広げ、移動では平行移動し、それ以外で形が変わったら作り直す
+     */
+    private BoundingBox boundingBox;
+    private boolean boundingBoxValid = false;
+
     public FigureComponent() {
     }
 
-    public ArrayList<Vector2d> getVertices() {
+    public int getRevision() {
+        return revision;
+    }
+
+    /**
+     * 形状や色を変更したら呼ぶ
+     */
+    protected void changed() {
+        revision++;
+        invalidate();
+    }
+
+    /**
+     * 描画キャッシュだけを更新させる。見た目の変化ではないので再描画は要求しない
+     */
+    protected void changedDetail() {
+        revision++;
+    }
+
+    /**
+     * 描画で許容できる誤差（キャンバス座標）。縮小表示では細部を省いて描ける図形が使う
+     */
+    public void setDetailTolerance(double tolerance) {
+    }
+
+    /**
+     * 外接矩形。形が変わるまで同じ値を返す。変更できない値なのでコピーせずに使ってよい
+     */
+    @Override
+    public BoundingBox getBB() {
+        if (!boundingBoxValid) {
+            boundingBox = computeBB();
+            boundingBoxValid = true;
+        }
+        return boundingBox;
+    }
+
+    /**
+     * 外接矩形を求める。頂点がなければnull
+     */
+    protected abstract BoundingBox computeBB();
+
+    /**
+     * 点を追加したときに外接矩形を広げる
+     */
+    protected void includeInBB(double x, double y) {
+        if (!boundingBoxValid)
+            return;
+        boundingBox = boundingBox == null ? new BoundingBox(x, y, x, y) : boundingBox.including(x, y);
+    }
+
+    /**
+     * 図形全体を移動したときに外接矩形も移動する
+     */
+    protected void translateBB(Vector2d d) {
+        if (boundingBoxValid && boundingBox != null)
+            boundingBox = boundingBox.translated(d.x, d.y);
+    }
+
+    /**
+     * 追加・移動以外で形が変わったら呼ぶ。次のgetBBで作り直す
+     */
+    protected void invalidateBB() {
+        boundingBoxValid = false;
+    }
+
+    /**
+     * 吸着先に辺の中点も使うか。点の細かい自由線では頂点だけにする
+     */
+    public boolean hasSnapMidpoints() {
+        return true;
+    }
+
+    /**
+     * 範囲（この図形の座標系）と図形が重なるか。範囲選択で外接矩形が範囲の境界にかかる図形に使う
+     * 既定では外接矩形で判定する
+     */
+    public boolean intersects(BoundingBox rect) {
+        BoundingBox bb = getBB();
+        return bb != null && bb.intersects(rect);
+    }
+
+    /**
+     * 当たり判定で許容する距離（キャンバス座標）。キャンバスの拡大率によらず画面上でHIT_TOLERANCEピクセルになる
+     */
+    protected double getHitTolerance() {
+        if (parent instanceof Canvas)
+            return ((Canvas) parent).toCanvasLength(HIT_TOLERANCE);
+        return HIT_TOLERANCE;
+    }
+
+    /**
+     * 保持モード描画用の描画パスを書き出す
+     */
+    public abstract void buildRenderPasses(List<RenderPass> passes);
+
+    /**
+     * 頂点の読み取り専用のリスト。取り出すたびにコピーを作るので、たくさん読むときはgetPointsを使う
+     */
+    public List<Vector2d> getVertices() {
+        PointList points = getPoints();
+        return points != null ? points.asList() : null;
+    }
+
+    /**
+     * 頂点の列。頂点を持たない図形はnull。変更しないこと
+     */
+    public PointList getPoints() {
         return null;
-    };
+    }
+
+    /**
+     * 頂点などを手放し、ネイティブメモリに置いていれば解放する。キャンバスから取り除いたときや、描きかけのまま捨てたときに呼ぶ
+     * 変更の通知はしない。どちらの置き方でも以降は空の図形として振る舞うので、もう使わないこと
+     */
+    public void dispose() {
+    }
 
     public void setFill(Vector4d color) {
         this.fillColor = color;
+        changed();
     }
 
     public Vector4d getFill() {
@@ -50,6 +190,7 @@ public abstract class FigureComponent extends BasicComponent implements IFigure,
 
     public void setStroke(Vector4d color) {
         this.strokeColor = color;
+        changed();
     }
 
     public Vector4d getStroke() {
@@ -62,6 +203,7 @@ public abstract class FigureComponent extends BasicComponent implements IFigure,
 
     public void setStrokeWidth(double width) {
         this.strokeWidth = width;
+        changed();
     }
 
     /* dだけ移動 */
@@ -112,4 +254,9 @@ public abstract class FigureComponent extends BasicComponent implements IFigure,
         /* this is nomeaning because it has no children */
         return new Vector2d(0, 0);
     }
+
+    @Override
+    protected Vector2d getCenter(Vector2d dest) {
+        return dest.zero();
+    }
 }
@@ -1,7 +1,5 @@
 package jp.shosato.micropaint.components;
 
-import static org.lwjgl.opengl.GL15.*;
-
 import static org.lwjgl.glfw.GLFW.*;
 
 import java.util.ArrayList;
@@ -14,6 +12,7 @@ import java.awt.FontMetrics;
 import org.joml.Vector2d;
 import org.joml.Vector4d;
 
+import jp.shosato.micropaint.Window;
 import jp.shosato.micropaint.events.EventHandler;
 import jp.shosato.micropaint.events.focus.FocusInEvent;
 import jp.shosato.micropaint.events.focus.FocusInEventListener;
@@ -27,7 +26,7 @@ import jp.shosato.micropaint.events.key.KeyInputEvent;
 import jp.shosato.micropaint.events.key.KeyInputEventListener;
 import jp.shosato.micropaint.events.mouse.MouseClickEventListener;
 import jp.shosato.micropaint.events.mouse.MouseEvent;
-import jp.shosato.micropaint.utils.Utility;
+import jp.shosato.micropaint.renderers.Graphics;
 
 /**
  * テキスト入力用のコンポーネント
@@ -45,7 +44,14 @@ public class InputComponent extends LabelComponent implements CharInputEventList
      */
     public EventHandler<TextInputEventHandler> onTextInput = new EventHandler<>();
 
-    private int age = 0;
+    /**
+     * カーソルの点滅間隔（秒）
+     */
+    private static final double CURSOR_BLINK_INTERVAL = 0.5;
+    /**
+     * 点滅の基準時刻。入力中はカーソルを表示し続けたいので入力のたびに更新
+     */
+    private double blinkStartTime = 0;
     /**
      * カーソル位置
      */
@@ -67,15 +73,25 @@ public class InputComponent extends LabelComponent implements CharInputEventList
         super.draw();
 
         // cursor
-        if (hasFocus && age % 30 == 0) {
+        if (!hasFocus)
+            return;
+
+        /* 次に点滅が切り替わる時刻に再描画を予約 */
+        double elapsed = glfwGetTime() - blinkStartTime;
+        Window window = getWindow();
+        if (window != null)
+            window.requestAnimationFrame(CURSOR_BLINK_INTERVAL - elapsed % CURSOR_BLINK_INTERVAL);
+
+        if ((int) (elapsed / CURSOR_BLINK_INTERVAL) % 2 == 0) {
 
             String text = getText();
 
             if (text == null)
                 return;
 
-            glPushMatrix();
-            Utility.glTransform(dimension, translate, scale, rotate);
+            Graphics g = Graphics.get();
+            g.pushMatrix();
+            g.transform(getLocalMatrix());
             {
                 /* テキストを描画 */
                 drawText();
@@ -83,12 +99,13 @@ public class InputComponent extends LabelComponent implements CharInputEventList
                 /* カーソルを描画 */
                 drawCursor(getMetrix(), text);
             }
-            glPopMatrix();
+            g.popMatrix();
         }
     }
 
     protected void drawCursor(FontMetrics metrics, String text) {
-        glPushMatrix();
+        Graphics g = Graphics.get();
+        g.pushMatrix();
 
         /* 文字の左端からカーソルまでの距離 */
         int cursorW = metrics.stringWidth(text.substring(0, this.cursorPosition));
@@ -99,17 +116,13 @@ public class InputComponent extends LabelComponent implements CharInputEventList
 
         /* テキストの左上座標 */
         Vector2d textTopLeft = getTextTopLeft(w, h);
-        glTranslated(textTopLeft.x, textTopLeft.y, 0);
+        g.translate(textTopLeft.x, textTopLeft.y);
 
         /* カーソルの描画 */
-        glLineWidth(2);
-        glColor4d(0, 0, 0, 1);
-        glBegin(GL_LINES);
-        glVertex2d(cursorW, 0);
-        glVertex2d(cursorW, h);
-        glEnd();
-
-        glPopMatrix();
+        g.setColor(0, 0, 0, 1);
+        g.drawLine(cursorW, 0, cursorW, h, 2);
+
+        g.popMatrix();
     }
 
     /**
@@ -132,6 +145,7 @@ public class InputComponent extends LabelComponent implements CharInputEventList
         } else {
             return;
         }
+        resetBlink();
         StringBuilder sb = new StringBuilder();
         for (Character character : chars) {
             sb.append(character);
@@ -147,6 +161,7 @@ public class InputComponent extends LabelComponent implements CharInputEventList
     @Override
     public void onKeyInput(KeyInputEvent event) {
         if (event.action == GLFW_PRESS) {
+            resetBlink();
             String text = this.getText();
             if (text == null) {
                 text = "";
@@ -193,14 +208,24 @@ public class InputComponent extends LabelComponent implements CharInputEventList
         }
     }
 
+    /**
+     * カーソルを表示状態から点滅し直す
+     */
+    private void resetBlink() {
+        blinkStartTime = glfwGetTime();
+        invalidate();
+    }
+
     @Override
     public void onFocusIn(FocusInEvent event) {
         hasFocus = true;
+        resetBlink();
     }
 
     @Override
     public void onFocusOut(FocusOutEvent event) {
         hasFocus = false;
+        invalidate();
     }
 
     @Override
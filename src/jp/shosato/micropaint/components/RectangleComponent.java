@@ -1,11 +1,10 @@
 package jp.shosato.micropaint.components;
 
-import static org.lwjgl.opengl.GL15.*;
-
 import org.joml.Vector2d;
 import org.joml.Vector4d;
 
 import jp.shosato.micropaint.events.mouse.MouseEvent;
+import jp.shosato.micropaint.renderers.Graphics;
 import jp.shosato.micropaint.utils.BoundingBox;
 import jp.shosato.micropaint.utils.Colors;
 import jp.shosato.micropaint.utils.Utility;
@@ -17,6 +16,10 @@ import jp.shosato.micropaint.utils.Utility;
 public class RectangleComponent extends BasicComponent {
 
     protected Vector4d color = new Vector4d(Colors.GRAY);
+    /**
+     * 当たり判定で点をこの要素の座標系に直す作業領域
+     */
+    private final Vector2d localPos = new Vector2d();
 
     public RectangleComponent() {
     }
@@ -33,27 +36,29 @@ public class RectangleComponent extends BasicComponent {
 
     @Override
     public void draw() {
-        glPushMatrix();
-        Utility.glTransform(dimension, translate, scale, rotate);
+        Graphics g = Graphics.get();
+        g.pushMatrix();
+        g.transform(getLocalMatrix());
 
-        glColor4d(color.x, color.y, color.z, color.w);
-        Utility.drawRectangleFill(new Vector2d(0, 0), dimension);
+        g.setColor(color);
+        g.fillRect(dimension);
 
         for (BasicComponent child : children) {
             child.draw();
         }
 
-        glPopMatrix();
+        g.popMatrix();
     }
 
     @Override
     public boolean contains(Vector2d pos) {
-        Vector2d _pos = Utility.untransform(pos, getCenter(), translate, scale, rotate);
+        Vector2d _pos = getInverseLocalMatrix().transformPosition(pos, localPos);
         return 0 <= _pos.x && _pos.x <= dimension.x && 0 <= _pos.y && _pos.y <= dimension.y;
     }
 
     public void setColor(Vector4d color) {
         this.color = color;
+        invalidate();
     }
 
     @Override
@@ -61,6 +66,11 @@ public class RectangleComponent extends BasicComponent {
         return new Vector2d(dimension).mul(0.5);
     }
 
+    @Override
+    protected Vector2d getCenter(Vector2d dest) {
+        return dest.set(dimension).mul(0.5);
+    }
+
     @Override
     public BoundingBox getBB() {
         return Utility.getBB(new Vector2d(0, 0), dimension);
@@ -35,4 +35,9 @@ public class RootComponent extends BasicComponent {
     public Vector2d getCenter() {
         return new Vector2d(dimension).div(2);
     }
+
+    @Override
+    protected Vector2d getCenter(Vector2d dest) {
+        return dest.set(dimension).div(2);
+    }
 }
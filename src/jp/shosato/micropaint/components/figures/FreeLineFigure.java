@@ -1,6 +1,7 @@
 package jp.shosato.micropaint.components.figures;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import static org.lwjgl.glfw.GLFW.*;
 import static org.lwjgl.opengl.GL15.*;
@@ -11,40 +12,134 @@ import jp.shosato.micropaint.components.Canvas;
 import jp.shosato.micropaint.components.FigureComponent;
 import jp.shosato.micropaint.events.Event;
 import jp.shosato.micropaint.events.mouse.MouseEvent;
+import jp.shosato.micropaint.renderers.Graphics;
+import jp.shosato.micropaint.renderers.RenderPass;
 import jp.shosato.micropaint.utils.BoundingBox;
+import jp.shosato.micropaint.utils.PointList;
+import jp.shosato.micropaint.utils.PolylineSimplifier;
+import jp.shosato.micropaint.utils.StrokeMesh;
 import jp.shosato.micropaint.utils.Utility;
 
 /**
  * 手書きペン
  */
 public class FreeLineFigure extends FigureComponent {
-    private ArrayList<Vector2d> dots = new ArrayList<Vector2d>();
+    private final PointList dots = new PointList(16, OFF_HEAP);
+    /**
+     * 線の三角形。描画中は追加された点の分だけ作り足す
+     */
+    private final StrokeMesh strokeMesh;
+
+    /**
+     * 詳細度ごとの間引きの許容誤差（キャンバス座標）。0番目は間引かない
+     */
+    private static final double[] DETAIL_TOLERANCES = { 0, 0.5, 1, 2, 4, 8, 16, 32 };
+    /**
+     * 詳細度ごとに間引いた線の三角形。必要になったときに作り、点が増えたら捨てる
+     */
+    private final StrokeMesh[] detailMeshes = new StrokeMesh[DETAIL_TOLERANCES.length];
+    /**
+     * 保持モード描画で使う詳細度
+     */
+    private int detailLevel = 0;
+
+    /**
+     * 当たり判定で1つの外接矩形にまとめる線分の数
+     */
+    private static final int CHUNK_SEGMENTS = 16;
+    /**
+     * CHUNK_SEGMENTS本ごとの線分の外接矩形(minX, minY, maxX, maxY)。矩形から遠い線分は距離を計算しない
+     */
+    private double[] chunkBounds = new double[16];
+    /**
+     * chunkBoundsに反映済みの線分の数。点が追加されたら続きから広げる
+     */
+    private int chunkedSegments = 0;
 
     public FreeLineFigure(Vector4d color, double width) {
         this.strokeColor = color;
         this.strokeWidth = width;
         this.fillColor = new Vector4d(0, 0, 0, 0);
+        this.strokeMesh = new StrokeMesh(width, StrokeMesh.Join.ROUND, StrokeMesh.Cap.ROUND, false, OFF_HEAP);
     }
 
     @Override
     public void draw() {
-        glLineWidth((float) strokeWidth);
-        glColor4d(strokeColor.x, strokeColor.y, strokeColor.z, strokeColor.w);
-        glBegin(GL_LINE_STRIP);
-        for (Vector2d dot : dots) {
-            glVertex2d(dot.x, dot.y);
+        StrokeMesh mesh = getStrokeMesh();
+        Graphics g = Graphics.get();
+        g.setColor(strokeColor);
+        g.fillTriangles(mesh.getVertices());
+    }
+
+    @Override
+    public void buildRenderPasses(List<RenderPass> passes) {
+        StrokeMesh mesh = detailLevel == 0 ? getStrokeMesh() : getDetailMesh(detailLevel);
+        passes.add(new RenderPass(GL_TRIANGLES, strokeColor, 1, mesh.getVertices()));
+    }
+
+    /**
+     * 太さが変わったときだけ作り直す
+     */
+    private StrokeMesh getStrokeMesh() {
+        if (strokeMesh.getWidth() != strokeWidth) {
+            strokeMesh.rebuild(dots, strokeWidth);
+        } else {
+            strokeMesh.append(dots);
         }
-        glEnd();
+        return strokeMesh;
+    }
+
+    /**
+     * 誤差が許容範囲に収まる一番粗い詳細度を使う
+     */
+    @Override
+    public void setDetailTolerance(double tolerance) {
+        int level = 0;
+        while (level + 1 < DETAIL_TOLERANCES.length && DETAIL_TOLERANCES[level + 1] <= tolerance) {
+            level++;
+        }
+        if (level != detailLevel) {
+            detailLevel = level;
+            changedDetail();
+        }
+    }
+
+    private StrokeMesh getDetailMesh(int level) {
+        StrokeMesh mesh = detailMeshes[level];
+        if (mesh == null || mesh.getWidth() != strokeWidth) {
+            if (mesh != null)
+                mesh.dispose();
+            mesh = new StrokeMesh(strokeWidth, StrokeMesh.Join.ROUND, StrokeMesh.Cap.ROUND, false, OFF_HEAP);
+            mesh.rebuild(PolylineSimplifier.simplify(dots, DETAIL_TOLERANCES[level]), strokeWidth);
+            detailMeshes[level] = mesh;
+        }
+        return mesh;
     }
 
     public void addDot(Vector2d dot) {
-        dots.add(dot);
+        dots.add(dot.x, dot.y);
+        includeInBB(dot.x, dot.y);
+        discardDetailMeshes();
+        changed();
+    }
+
+    private void discardDetailMeshes() {
+        for (int i = 0; i < detailMeshes.length; i++) {
+            if (detailMeshes[i] != null) {
+                detailMeshes[i].dispose();
+                detailMeshes[i] = null;
+            }
+        }
     }
 
     @Override
     public void onMouseMoveDrawing(Canvas canvas, MouseEvent event) {
-        if (!dots.isEmpty() && dots.get(dots.size() - 1).distance(event.getPos()) > 5) {
-            addDot(new Vector2d(event.getPos()));
+        /* フレームの間に届いた点もすべて使う */
+        for (Vector2d pos : event.getCoalescedPositions()) {
+            int last = dots.size() - 1;
+            if (last >= 0 && pos.distance(dots.getX(last), dots.getY(last)) > 5) {
+                addDot(pos);
+            }
         }
     }
 
@@ -69,34 +164,131 @@ public class FreeLineFigure extends FigureComponent {
         }
     }
 
+    /**
+     * 線の太さの半分に許容範囲を足した距離以内なら当たり。まとまりの外接矩形で線分を絞ってから距離の2乗で比べる
+     */
     @Override
     public boolean contains(Vector2d pos) {
-        for (int i = 0, length = dots.size(); i < length - 1; i++) {
-            double len = pos.distance(dots.get(i));
-            double theta = Utility.getAngleRadian(pos, dots.get(i), dots.get(i + 1));
-            if (theta <= Math.PI / 2 && len * Math.sin(theta) < 5
-                    && len * Math.cos(theta) < dots.get(i).distance(dots.get(i + 1))) {
-                return true;
+        int length = dots.size();
+        if (length == 0)
+            return false;
+        double reach = strokeWidth / 2 + getHitTolerance();
+        double reach2 = reach * reach;
+        if (length == 1)
+            return pos.distanceSquared(dots.getX(0), dots.getY(0)) <= reach2;
+
+        updateChunks();
+        for (int chunk = 0, first = 0; first < length - 1; chunk++, first += CHUNK_SEGMENTS) {
+            int b = chunk * 4;
+            if (pos.x < chunkBounds[b] - reach || pos.y < chunkBounds[b + 1] - reach
+                    || pos.x > chunkBounds[b + 2] + reach || pos.y > chunkBounds[b + 3] + reach)
+                continue;
+            int last = Math.min(first + CHUNK_SEGMENTS, length - 1);
+            for (int i = first; i < last; i++) {
+                if (Utility.getSegmentDistanceSquared(pos.x, pos.y, dots.getX(i), dots.getY(i), dots.getX(i + 1),
+                        dots.getY(i + 1)) <= reach2)
+                    return true;
             }
         }
         return false;
     }
 
     @Override
-    public BoundingBox getBB() {
-        return Utility.getBB(this.dots);
+    public boolean hasSnapMidpoints() {
+        return false;
+    }
+
+    /**
+     * 線の太さの分だけ広げた範囲に線分がかかれば重なる。まとまりの外接矩形で線分を絞る
+     */
+    @Override
+    public boolean intersects(BoundingBox rect) {
+        int length = dots.size();
+        if (length == 0)
+            return false;
+        double margin = strokeWidth / 2;
+        double minX = rect.topLeft.x() - margin, minY = rect.topLeft.y() - margin;
+        double maxX = rect.bottomRight.x() + margin, maxY = rect.bottomRight.y() + margin;
+        if (length == 1) {
+            double x = dots.getX(0), y = dots.getY(0);
+            return minX <= x && x <= maxX && minY <= y && y <= maxY;
+        }
+
+        updateChunks();
+        for (int chunk = 0, first = 0; first < length - 1; chunk++, first += CHUNK_SEGMENTS) {
+            int b = chunk * 4;
+            if (chunkBounds[b] > maxX || chunkBounds[b + 1] > maxY || chunkBounds[b + 2] < minX
+                    || chunkBounds[b + 3] < minY)
+                continue;
+            int last = Math.min(first + CHUNK_SEGMENTS, length - 1);
+            for (int i = first; i < last; i++) {
+                if (Utility.segmentIntersectsRect(dots.getX(i), dots.getY(i), dots.getX(i + 1), dots.getY(i + 1), minX,
+                        minY, maxX, maxY))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * まだ外接矩形に入れていない線分を反映
+     */
+    private void updateChunks() {
+        int segments = dots.size() - 1;
+        if (chunkedSegments >= segments)
+            return;
+        int chunks = (segments + CHUNK_SEGMENTS - 1) / CHUNK_SEGMENTS;
+        if (chunkBounds.length < chunks * 4)
+            chunkBounds = Arrays.copyOf(chunkBounds, Math.max(chunks * 4, chunkBounds.length * 2));
+        for (int i = chunkedSegments; i < segments; i++) {
+            int b = i / CHUNK_SEGMENTS * 4;
+            if (i % CHUNK_SEGMENTS == 0) {
+                chunkBounds[b] = chunkBounds[b + 2] = dots.getX(i);
+                chunkBounds[b + 1] = chunkBounds[b + 3] = dots.getY(i);
+            }
+            double cx = dots.getX(i + 1), cy = dots.getY(i + 1);
+            chunkBounds[b] = Math.min(chunkBounds[b], cx);
+            chunkBounds[b + 1] = Math.min(chunkBounds[b + 1], cy);
+            chunkBounds[b + 2] = Math.max(chunkBounds[b + 2], cx);
+            chunkBounds[b + 3] = Math.max(chunkBounds[b + 3], cy);
+        }
+        chunkedSegments = segments;
+    }
+
+    @Override
+    protected BoundingBox computeBB() {
+        return dots.getBB();
     }
 
     @Override
-    public ArrayList<Vector2d> getVertices() {
+    public PointList getPoints() {
         return dots;
     }
 
+    @Override
+    public void dispose() {
+        dots.dispose();
+        strokeMesh.dispose();
+        discardDetailMeshes();
+        chunkedSegments = 0;
+    }
+
     @Override
     public void move(Vector2d d) {
-        for (Vector2d dot : dots) {
-            dot.add(d);
+        dots.translate(d.x, d.y);
+        translateBB(d);
+        strokeMesh.translate(d.x, d.y);
+        for (int i = 0; i < (chunkedSegments + CHUNK_SEGMENTS - 1) / CHUNK_SEGMENTS; i++) {
+            chunkBounds[i * 4] += d.x;
+            chunkBounds[i * 4 + 1] += d.y;
+            chunkBounds[i * 4 + 2] += d.x;
+            chunkBounds[i * 4 + 3] += d.y;
+        }
+        for (StrokeMesh mesh : detailMeshes) {
+            if (mesh != null)
+                mesh.translate(d.x, d.y);
         }
+        changed();
     }
 
     @Override
@@ -3,7 +3,7 @@ package jp.shosato.micropaint.components.figures;
 import static org.lwjgl.glfw.GLFW.*;
 import static org.lwjgl.opengl.GL15.*;
 
-import java.util.ArrayList;
+import java.util.List;
 
 import org.joml.Vector2d;
 import org.joml.Vector4d;
@@ -12,14 +12,41 @@ import jp.shosato.micropaint.components.Canvas;
 import jp.shosato.micropaint.components.FigureComponent;
 import jp.shosato.micropaint.events.Event;
 import jp.shosato.micropaint.events.mouse.MouseEvent;
+import jp.shosato.micropaint.renderers.Graphics;
+import jp.shosato.micropaint.renderers.RenderPass;
 import jp.shosato.micropaint.utils.BoundingBox;
+import jp.shosato.micropaint.utils.PointList;
+import jp.shosato.micropaint.utils.PolygonSlabs;
+import jp.shosato.micropaint.utils.StrokeMesh;
+import jp.shosato.micropaint.utils.Triangulator;
 import jp.shosato.micropaint.utils.Utility;
 
 /**
  * ポリゴン
  */
 public class PolygonFigure extends FigureComponent {
-    protected ArrayList<Vector2d> vertices = new ArrayList<Vector2d>();
+    protected PointList vertices = new PointList(16, OFF_HEAP);
+    /**
+     * 塗りつぶし用の三角形分割（頂点番号）。頂点番号は平行移動しても変わらないので、頂点の並びが変わるまで使い回す
+     */
+    private int[] triangles;
+    /**
+     * 枠線の三角形。頂点の並びか太さが変わるまで使い回す
+     */
+    private final StrokeMesh strokeMesh = new StrokeMesh(0, StrokeMesh.Join.MITER, StrokeMesh.Cap.BUTT, true, OFF_HEAP);
+    private boolean strokeMeshValid = false;
+    /**
+     * 内外判定の索引。頂点が多い多角形だけ、判定が必要になったときに作る。頂点が変わったら捨てる
+     */
+    private PolygonSlabs slabs;
+    /**
+     * 索引を作ってからの平行移動量。移動では索引を作り直さず、判定する点を逆にずらす
+     */
+    private double slabOffsetX, slabOffsetY;
+    /**
+     * これより頂点が少なければ全部の辺を調べる方が速い
+     */
+    private static final int SLAB_MIN_VERTICES = 32;
 
     public PolygonFigure(Vector4d color) {
         this.fillColor = color;
@@ -31,8 +58,10 @@ public class PolygonFigure extends FigureComponent {
         this.strokeColor = stroke;
     }
 
-    public PolygonFigure(ArrayList<Vector2d> vertices, Vector4d color) {
-        this.vertices = vertices;
+    public PolygonFigure(List<Vector2d> vertices, Vector4d color) {
+        for (Vector2d vertex : vertices) {
+            this.vertices.add(vertex.x, vertex.y);
+        }
         this.fillColor = color;
     }
 
@@ -40,23 +69,29 @@ public class PolygonFigure extends FigureComponent {
     public void draw() {
         /* fill */
         if (fillColor != null) {
-            glColor4d(fillColor.x, fillColor.y, fillColor.z, fillColor.w);
-            glBegin(GL_POLYGON);
-            for (Vector2d vertex : vertices) {
-                glVertex2d(vertex.x, vertex.y);
-            }
-            glEnd();
+            int[] triangles = getTriangles();
+            Graphics g = Graphics.get();
+            g.setColor(fillColor);
+            g.fillTriangles(vertices, triangles, triangles.length);
         }
 
         /* stroke */
         if (strokeColor != null) {
-            glColor4d(strokeColor.x, strokeColor.y, strokeColor.z, strokeColor.w);
-            glLineWidth((float) strokeWidth);
-            glBegin(GL_LINE_LOOP);
-            for (Vector2d vertex : vertices) {
-                glVertex2d(vertex.x, vertex.y);
-            }
-            glEnd();
+            StrokeMesh mesh = getStrokeMesh();
+            Graphics g = Graphics.get();
+            g.setColor(strokeColor);
+            g.fillTriangles(mesh.getVertices());
+        }
+    }
+
+    @Override
+    public void buildRenderPasses(List<RenderPass> passes) {
+        if (fillColor != null && vertices.size() >= 3) {
+            passes.add(new RenderPass(GL_TRIANGLES, fillColor, 1, vertices, getTriangles()));
+        }
+        if (strokeColor != null) {
+            StrokeMesh mesh = getStrokeMesh();
+            passes.add(new RenderPass(GL_TRIANGLES, strokeColor, 1, mesh.getVertices()));
         }
     }
 
@@ -70,10 +105,11 @@ public class PolygonFigure extends FigureComponent {
             case GLFW_MOUSE_BUTTON_LEFT:
                 switch (event.getAction()) {
                     case GLFW_PRESS:
-                        if (vertices.size() >= 3 && event.getPos().distance(vertices.get(0)) < 30) {
+                        Vector2d pos = event.getPos();
+                        if (vertices.size() >= 3 && pos.distance(vertices.getX(0), vertices.getY(0)) < 30) {
                             this.onFinished.invoke(new Event());
                         } else {
-                            this.vertices.add(event.getPos());
+                            this.addVertex(pos);
                         }
                         break;
                     default:
@@ -85,27 +121,101 @@ public class PolygonFigure extends FigureComponent {
 
     @Override
     public boolean contains(Vector2d pos) {
-        return Utility.isInsidePolygon(pos, vertices);
+        if (vertices.size() < SLAB_MIN_VERTICES)
+            return Utility.isInsidePolygon(pos.x, pos.y, vertices);
+        if (slabs == null) {
+            slabs = new PolygonSlabs(vertices);
+            slabOffsetX = 0;
+            slabOffsetY = 0;
+        }
+        return slabs.contains(pos.x - slabOffsetX, pos.y - slabOffsetY);
+    }
+
+    /**
+     * 辺（線の太さを含む）が範囲にかかるか、範囲が内側にあれば重なる
+     */
+    @Override
+    public boolean intersects(BoundingBox rect) {
+        int n = vertices.size();
+        if (n == 0)
+            return false;
+        double margin = strokeColor != null ? strokeWidth / 2 : 0;
+        double minX = rect.topLeft.x() - margin, minY = rect.topLeft.y() - margin;
+        double maxX = rect.bottomRight.x() + margin, maxY = rect.bottomRight.y() + margin;
+        for (int i = 0, j = n - 1; i < n; j = i++) {
+            if (Utility.segmentIntersectsRect(vertices.getX(j), vertices.getY(j), vertices.getX(i), vertices.getY(i),
+                    minX, minY, maxX, maxY))
+                return true;
+        }
+        return fillColor != null && contains(new Vector2d(rect.topLeft));
     }
 
     public void addVertex(Vector2d vertex) {
-        this.vertices.add(vertex);
+        this.vertices.add(vertex.x, vertex.y);
+        includeInBB(vertex.x, vertex.y);
+        changedTopology();
+    }
+
+    /**
+     * 頂点の並びを変更したら呼ぶ。平行移動ではなく形が変わるので三角形分割をやり直す
+     */
+    protected void changedVertices() {
+        invalidateBB();
+        changedTopology();
+    }
+
+    private void changedTopology() {
+        triangles = null;
+        slabs = null;
+        strokeMeshValid = false;
+        changed();
+    }
+
+    protected StrokeMesh getStrokeMesh() {
+        if (!strokeMeshValid || strokeMesh.getWidth() != strokeWidth) {
+            strokeMesh.rebuild(vertices, strokeWidth);
+            strokeMeshValid = true;
+        }
+        return strokeMesh;
+    }
+
+    /**
+     * 三角形分割は必要になったときに一度だけ行う
+     */
+    public int[] getTriangles() {
+        if (triangles == null) {
+            triangles = Triangulator.triangulate(vertices);
+        }
+        return triangles;
     }
 
     @Override
-    public BoundingBox getBB() {
-        return Utility.getBB(vertices);
+    protected BoundingBox computeBB() {
+        return vertices.getBB();
     }
 
     @Override
-    public ArrayList<Vector2d> getVertices() {
+    public PointList getPoints() {
         return vertices;
     }
 
+    @Override
+    public void dispose() {
+        vertices.dispose();
+        strokeMesh.dispose();
+        triangles = null;
+        slabs = null;
+        strokeMeshValid = false;
+    }
+
     @Override
     public void move(Vector2d d) {
-        for (Vector2d vertex : vertices) {
-            vertex.add(d);
-        }
+        vertices.translate(d.x, d.y);
+        translateBB(d);
+        slabOffsetX += d.x;
+        slabOffsetY += d.y;
+        if (strokeMeshValid)
+            strokeMesh.translate(d.x, d.y);
+        changed();
     }
 }
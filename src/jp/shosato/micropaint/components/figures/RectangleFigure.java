@@ -19,17 +19,14 @@ public class RectangleFigure extends PolygonFigure {
 
         assert (this.vertices.size() > 0);
 
-        Vector2d v0 = this.vertices.get(0);
-        Vector2d v1 = new Vector2d(pos.x, v0.y);
-        Vector2d v2 = new Vector2d(pos.x, pos.y);
-        Vector2d v3 = new Vector2d(v0.x, pos.y);
+        double x0 = this.vertices.getX(0), y0 = this.vertices.getY(0);
 
         this.vertices.clear();
-        this.vertices.add(v0);
-        this.vertices.add(v1);
-        this.vertices.add(v2);
-        this.vertices.add(v3);
-
+        this.vertices.add(x0, y0);
+        this.vertices.add(pos.x, y0);
+        this.vertices.add(pos.x, pos.y);
+        this.vertices.add(x0, pos.y);
+        changedVertices();
     }
 
     @Override
@@ -47,7 +44,7 @@ public class RectangleFigure extends PolygonFigure {
                 switch (event.getAction()) {
                     case GLFW_PRESS: {
                         Vector2d pos = event.getPos();
-                        this.vertices.add(new Vector2d(pos));
+                        this.addVertex(new Vector2d(pos));
                     }
                         break;
                     case GLFW_RELEASE: {
@@ -1,6 +1,7 @@
 package jp.shosato.micropaint.controllers;
 
 import java.lang.annotation.Target;
+import java.util.ArrayList;
 import java.util.Iterator;
 
 import org.joml.Vector2d;
@@ -10,7 +11,6 @@ import jp.shosato.micropaint.events.mouse.MouseClickEventListener;
 import jp.shosato.micropaint.events.mouse.MouseEvent;
 import jp.shosato.micropaint.events.mouse.MouseEventListener;
 import jp.shosato.micropaint.utils.Runnable;
-import jp.shosato.micropaint.utils.Utility;
 
 /**
  * マウス関連イベントを発行する処理を共通化
@@ -51,6 +51,12 @@ public class BasicMouseEventInvoker {
     private final Modifier modifier;
     private final TargetRunnable targetRunnable;
 
+    /**
+     * 深さごとの座標と候補の作業領域。イベントのたびに使い回す
+     */
+    private final ArrayList<Vector2d> depthPositions = new ArrayList<>();
+    private final ArrayList<ArrayList<BasicComponent>> depthCandidates = new ArrayList<>();
+
     public BasicMouseEventInvoker(Class cls, Invoker invoker) {
         this(cls, invoker, (BasicComponent component, Vector2d relPos) -> true, true, null);
     }
@@ -74,6 +80,10 @@ public class BasicMouseEventInvoker {
     }
 
     public void invoke(BasicComponent component, MouseEvent event, Vector2d relPos) {
+        invoke(component, event, relPos, 0);
+    }
+
+    private void invoke(BasicComponent component, MouseEvent event, Vector2d relPos, int depth) {
         /**
          * キャプチャリングフェーズ
          */
@@ -89,19 +99,32 @@ public class BasicMouseEventInvoker {
         /**
          * イベント再帰
          */
+        if (depthPositions.size() == depth) {
+            depthPositions.add(new Vector2d());
+            depthCandidates.add(new ArrayList<>());
+        }
         /* 座標逆変換 */
-        Vector2d untransformed = Utility.untransform(relPos, component.getCenter(), component.translate,
-                component.scale, component.rotate);
-        /* 描画順と逆に */
-        for (Iterator<BasicComponent> iter = component.getChildren().descendingIterator(); iter.hasNext();) {
-            BasicComponent child = iter.next();
+        Vector2d untransformed = component.toChildPos(relPos, depthPositions.get(depth));
+        /* 描画順と逆に。範囲内の要素だけを辿るなら、位置で候補を絞ってもらう */
+        ArrayList<BasicComponent> candidates = depthCandidates.get(depth);
+        candidates.clear();
+        if (mustContain) {
+            component.getChildrenAt(untransformed, candidates);
+        } else {
+            for (Iterator<BasicComponent> iter = component.getChildren().descendingIterator(); iter.hasNext();) {
+                candidates.add(iter.next());
+            }
+        }
+        for (BasicComponent child : candidates) {
             if ((!mustContain || child.contains(untransformed)) && !event.cancelled()) {
                 event.setPos(untransformed);
                 /* 再帰呼び出し */
-                invoke(child, event, untransformed);
+                invoke(child, event, untransformed, depth + 1);
             }
         }
 
+        candidates.clear();
+
         /**
          * バブリングフェーズ
          */
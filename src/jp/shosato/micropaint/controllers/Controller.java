@@ -1,12 +1,14 @@
 package jp.shosato.micropaint.controllers;
 
+import static org.lwjgl.glfw.GLFW.glfwGetTime;
 import static org.lwjgl.glfw.GLFW.glfwSetCharCallback;
 import static org.lwjgl.glfw.GLFW.glfwSetCursorPosCallback;
 import static org.lwjgl.glfw.GLFW.glfwSetKeyCallback;
 import static org.lwjgl.glfw.GLFW.glfwSetMouseButtonCallback;
 import static org.lwjgl.glfw.GLFW.glfwSetScrollCallback;
 
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 import org.joml.Vector2d;
 import org.lwjgl.glfw.GLFWCharCallbackI;
@@ -25,6 +27,14 @@ import jp.shosato.micropaint.events.mouse.MouseEvent;
 public class Controller {
     private Vector2d pos = new Vector2d();
 
+    private final long window;
+
+    /**
+     * 前回の発行以降に届いたポインタの位置と時刻。移動イベントは1フレームに1回だけ、まとめて発行する
+     */
+    private ArrayList<Vector2d> pendingPositions = new ArrayList<>();
+    private double[] pendingTimes = new double[16];
+
     private BasicComponent rootComponent;
 
     private FocusController focusController = new FocusController();
@@ -38,12 +48,18 @@ public class Controller {
     }
 
     public Controller(long _window) {
+        this.window = _window;
+
         glfwSetMouseButtonCallback(_window, new GLFWMouseButtonCallback() {
             @Override
             public void invoke(long window, int button, int action, int mods) {
+                /* 押す前の移動を先に届ける */
+                dispatchPointer();
                 MouseEvent event = new MouseEvent(pos, button, action, mods);
                 if (rootComponent != null) {
                     mouseController.mouseClickEventInvoker.invoke(rootComponent, event, pos);
+                    /* クリックやキー入力はまれなので、取りこぼしがないよう画面全体を再描画 */
+                    rootComponent.invalidate();
                 }
             }
         });
@@ -55,12 +71,12 @@ public class Controller {
                 // OpenGLのイベントはステートレスだが、マウスクリック時に座標がわからないのは不便なので保存しておく
                 pos = new Vector2d(x, y);
 
-                if (rootComponent != null) {
-                    mouseController.mouseMoveEventInvoker.invoke(rootComponent, new MouseEvent(pos), pos);
-                    mouseController.mouseLeaveEventInvoker.invoke(rootComponent, new MouseEvent(pos), pos);
-                    mouseController.mouseEnterEventInvoker.invoke(rootComponent, new MouseEvent(pos), pos);
-                    cursorController.setCursor(window, rootComponent, pos);
-                }
+                /* ここでは溜めるだけ。発行はdispatchPointerで */
+                int count = pendingPositions.size();
+                if (count == pendingTimes.length)
+                    pendingTimes = Arrays.copyOf(pendingTimes, count * 2);
+                pendingTimes[count] = glfwGetTime();
+                pendingPositions.add(pos);
             }
         });
 
@@ -68,6 +84,7 @@ public class Controller {
             if (focusController.getFocused() != null) {
                 KeyInputEvent event = new KeyInputEvent(window, key, scancode, action, mods);
                 keyController.invokeKeyInputEvent(focusController.getFocused(), event);
+                rootComponent.invalidate();
             }
         });
 
@@ -77,6 +94,7 @@ public class Controller {
                 if (focusController.getFocused() != null) {
                     CharInputEvent event = new CharInputEvent(window, codepoint);
                     keyController.invokeCharInputEvent(focusController.getFocused(), event);
+                    rootComponent.invalidate();
                 }
             }
         });
@@ -84,11 +102,35 @@ public class Controller {
         glfwSetScrollCallback(_window, new GLFWScrollCallbackI() {
             @Override
             public void invoke(long arg0, double x, double y) {
+                dispatchPointer();
                 if (rootComponent != null) {
                     scrollController.scrollEventInvoker.invoke(rootComponent,
                             new MouseEvent(pos, new Vector2d(x, y)), pos);
+                    rootComponent.invalidate();
                 }
             }
         });
     }
+
+    /**
+     * 溜まったポインタの移動を1回の移動イベントとして発行する。フレームごとにウィンドウから呼ばれる
+     * 途中の位置はMouseEvent.getCoalescedPositionsで取れる
+     */
+    public void dispatchPointer() {
+        int count = pendingPositions.size();
+        if (count == 0)
+            return;
+        if (rootComponent == null) {
+            pendingPositions.clear();
+            return;
+        }
+
+        MouseEvent event = new MouseEvent(pos);
+        event.setCoalescedPositions(pendingPositions);
+        event.setCoalescedTimes(Arrays.copyOf(pendingTimes, count));
+        pendingPositions = new ArrayList<>();
+
+        mouseController.dispatchMove(rootComponent, event);
+        cursorController.setCursor(window, mouseController.getHoveredTarget());
+    }
 }
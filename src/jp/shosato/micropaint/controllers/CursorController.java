@@ -3,47 +3,33 @@ package jp.shosato.micropaint.controllers;
 import static org.lwjgl.glfw.GLFW.glfwCreateStandardCursor;
 import static org.lwjgl.glfw.GLFW.glfwSetCursor;
 
-import org.joml.Vector2d;
+import java.util.HashMap;
 
 import jp.shosato.micropaint.components.BasicComponent;
-import jp.shosato.micropaint.events.mouse.MouseEvent;
-import jp.shosato.micropaint.utils.Utility;
 
 /**
  * カーソルのスタイルに関するクラス
  */
 public class CursorController {
 
-    public void setCursor(long _window, BasicComponent rootComponent, Vector2d pos) {
-        // カーソルの設定
-        MouseEvent cursorSettingEvent = new MouseEvent(pos, 0, 0, 0);
-        invokeCursorSetter(rootComponent, cursorSettingEvent, pos);
-
-        int currentCursorShape = 0;
-        BasicComponent target = cursorSettingEvent.getTarget();
-        if (target != null && target.getCursor() != currentCursorShape) {
-            currentCursorShape = target.getCursor();
-            long cursor = glfwCreateStandardCursor(currentCursorShape);
-            glfwSetCursor(_window, cursor);
-        }
-    }
-
     /**
-     * カーソル設定用の探索関数。カーソルが指している最前面の要素がほしいのでtargetのみ設定して回る
+     * 作ったカーソル。形ごとに一度だけ作り、glfwTerminateで破棄される
      */
-    private void invokeCursorSetter(BasicComponent component, MouseEvent event, Vector2d relPos) {
-        Vector2d untransformed = Utility.untransform(relPos, component.getCenter(), component.translate,
-                component.scale, component.rotate);
+    private final HashMap<Integer, Long> cursors = new HashMap<>();
+    private int currentCursorShape = 0;
 
-        event.setTarget(component);
-
-        for (BasicComponent child : component.getChildren()) {
-            if (child.contains(untransformed)) {
-                event.setPos(untransformed);
-                invokeCursorSetter(child, event, untransformed);
-                if (event.cancelled())
-                    return;
+    /**
+     * ポインタが乗っている最も深い要素（MouseControllerが求めたもの）のカーソルにする。形が変わったときだけ設定する
+     */
+    public void setCursor(long _window, BasicComponent target) {
+        if (target != null && target.getCursor() != currentCursorShape) {
+            currentCursorShape = target.getCursor();
+            Long cursor = cursors.get(currentCursorShape);
+            if (cursor == null) {
+                cursor = glfwCreateStandardCursor(currentCursorShape);
+                cursors.put(currentCursorShape, cursor);
             }
+            glfwSetCursor(_window, cursor);
         }
     }
 }
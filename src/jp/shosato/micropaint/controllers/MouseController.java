@@ -1,5 +1,8 @@
 package jp.shosato.micropaint.controllers;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.joml.Vector2d;
 
 import jp.shosato.micropaint.components.BasicComponent;
@@ -40,68 +43,200 @@ public class MouseController {
             });
 
     /**
-     * [マウス移動イベント] クリックと同じ
+     * [マウス移動・進入・離脱イベント] 経路上の要素にキャプチャリング（上から）とバブリング（下から）で発行
      */
-    public final BasicMouseEventInvoker mouseMoveEventInvoker = new BasicMouseEventInvoker(MouseMoveEventListener.class,
-            (BasicComponent component, MouseEvent event, boolean captureing) -> {
-                if (captureing) {
-                    ((MouseMoveEventListener) component).onMouseMoved(event, true);
-                } else {
-                    ((MouseMoveEventListener) component).onMouseMoved(event);
-                }
-            });
+    private final BasicMouseEventInvoker.Invoker mouseMoveInvoker = (BasicComponent component, MouseEvent event,
+            boolean captureing) -> {
+        if (captureing) {
+            ((MouseMoveEventListener) component).onMouseMoved(event, true);
+        } else {
+            ((MouseMoveEventListener) component).onMouseMoved(event);
+        }
+    };
+
+    private final BasicMouseEventInvoker.Invoker mouseEnterInvoker = (BasicComponent component, MouseEvent event,
+            boolean captureing) -> {
+        if (captureing) {
+            ((MouseEnterEventListener) component).onMouseEnter(event, true);
+        } else {
+            ((MouseEnterEventListener) component).onMouseEnter(event);
+        }
+    };
+
+    private final BasicMouseEventInvoker.Invoker mouseLeaveInvoker = (BasicComponent component, MouseEvent event,
+            boolean captureing) -> {
+        if (captureing) {
+            ((MouseLeaveEventListener) component).onMouseLeave(event, true);
+        } else {
+            ((MouseLeaveEventListener) component).onMouseLeave(event);
+        }
+    };
 
     /**
-     * [マウス離脱イベント] 他のイベントと違い、イベントを発行したい要素外にポインタがあるときに発行するのですべての子要素に対して前の状態と比較する
+     * ポインタが乗っている要素の経路（ルートから最も深い要素まで）と、各要素の座標系に合わせた位置
+     * 移動のたびに新しい経路を1回だけ求め、移動イベントはその経路に、離脱・進入イベントは前の経路との差分にだけ発行する
      */
-    public final BasicMouseEventInvoker mouseLeaveEventInvoker = new BasicMouseEventInvoker(
-            MouseLeaveEventListener.class, (BasicComponent component, MouseEvent event, boolean captureing) -> {
-                if (captureing) {
-                    ((MouseLeaveEventListener) component).onMouseLeave(event, true);
-                } else {
-                    ((MouseLeaveEventListener) component).onMouseLeave(event);
-                }
-            }, new BasicMouseEventInvoker.Condition() {
-                @Override
-                public boolean run(BasicComponent component, Vector2d relPos) {
-                    /**
-                     * 要素の外にマウスがあって、ホバー状態だったもの
-                     */
-                    return !component.contains(relPos) && component.getHovered();
-                }
-            }, false, new BasicMouseEventInvoker.Modifier() {
-                @Override
-                public void run(BasicComponent component) {
-                    /**
-                     * ホバー状態を解除
-                     */
-                    component.setHovered(false);
-                }
-            });
+    private ArrayList<BasicComponent> hoveredPath = new ArrayList<>();
+    private ArrayList<BasicComponent> nextPath = new ArrayList<>();
+    private final ArrayList<Vector2d> positions = new ArrayList<>();
+    private final ArrayList<List<Vector2d>> coalescedPositions = new ArrayList<>();
+    private final ArrayList<BasicComponent> candidates = new ArrayList<>();
+    /**
+     * 経路を探すときの作業領域。交互に使う
+     */
+    private final Vector2d pathPos = new Vector2d();
+    private final Vector2d childPos = new Vector2d();
+    /**
+     * positionsとcoalescedPositionsの中身。深さごとに持ち、移動のたびに使い回す
+     */
+    private final ArrayList<Vector2d> depthPositions = new ArrayList<>();
+    private final ArrayList<ArrayList<Vector2d>> depthSamples = new ArrayList<>();
+    private final ArrayList<ArrayList<Vector2d>> depthSampleLists = new ArrayList<>();
 
-    public final BasicMouseEventInvoker mouseEnterEventInvoker = new BasicMouseEventInvoker(
-            MouseEnterEventListener.class, (BasicComponent component, MouseEvent event, boolean captureing) -> {
-                if (captureing) {
-                    ((MouseEnterEventListener) component).onMouseEnter(event, true);
-                } else {
-                    ((MouseEnterEventListener) component).onMouseEnter(event);
-                }
-            }, new BasicMouseEventInvoker.Condition() {
-                @Override
-                public boolean run(BasicComponent component, Vector2d relPos) {
-                    /**
-                     * 要素の中にマウスがあって、ホバー状態ではなかったもの
-                     */
-                    return component.contains(relPos) && !component.getHovered();
-                }
-            }, true, new BasicMouseEventInvoker.Modifier() {
-                @Override
-                public void run(BasicComponent component) {
-                    /**
-                     * ホバー状態にセット
-                     */
-                    component.setHovered(true);
+    /**
+     * ポインタの移動を発行する。経路を1回だけ求め、移動・離脱・進入イベントとカーソルの決定に使う
+     * @param event 位置とまとめられたサンプルはウィンドウ座標
+     */
+    public void dispatchMove(BasicComponent root, MouseEvent event) {
+        Vector2d pos = event.getPos();
+        nextPath.clear();
+        findPath(root, pos, nextPath);
+
+        computePositions(nextPath, pos);
+        computeCoalescedPositions(nextPath, event.getCoalescedPositions());
+        dispatch(nextPath, 0, event, MouseMoveEventListener.class, mouseMoveInvoker, null, true);
+        coalescedPositions.clear();
+
+        int common = 0;
+        int limit = Math.min(hoveredPath.size(), nextPath.size());
+        while (common < limit && hoveredPath.get(common) == nextPath.get(common)) {
+            common++;
+        }
+
+        if (common < hoveredPath.size()) {
+            computePositions(hoveredPath, pos);
+            dispatch(hoveredPath, common, new MouseEvent(pos), MouseLeaveEventListener.class, mouseLeaveInvoker,
+                    false, false);
+        }
+        ArrayList<BasicComponent> previous = hoveredPath;
+        hoveredPath = nextPath;
+        nextPath = previous;
+        if (common < hoveredPath.size()) {
+            computePositions(hoveredPath, pos);
+            dispatch(hoveredPath, common, new MouseEvent(pos), MouseEnterEventListener.class, mouseEnterInvoker,
+                    true, false);
+        }
+    }
+
+    /**
+     * ポインタが乗っている最も深い要素。なければnull
+     */
+    public BasicComponent getHoveredTarget() {
+        return hoveredPath.isEmpty() ? null : hoveredPath.get(hoveredPath.size() - 1);
+    }
+
+    /**
+     * 手前から調べて最初に当たった子要素だけを辿る
+     */
+    private void findPath(BasicComponent root, Vector2d pos, ArrayList<BasicComponent> path) {
+        if (!root.contains(pos))
+            return;
+        BasicComponent component = root;
+        pathPos.set(pos);
+        while (component != null) {
+            path.add(component);
+            Vector2d untransformed = component.toChildPos(pathPos, childPos);
+            candidates.clear();
+            component.getChildrenAt(untransformed, candidates);
+            component = null;
+            for (BasicComponent child : candidates) {
+                if (child.contains(untransformed)) {
+                    component = child;
+                    pathPos.set(untransformed);
+                    break;
                 }
-            });
+            }
+        }
+        candidates.clear();
+    }
+
+    /**
+     * positions[i]はpath[i]のcontainsに渡す座標系での位置
+     */
+    private void computePositions(ArrayList<BasicComponent> path, Vector2d pos) {
+        positions.clear();
+        Vector2d relPos = pos;
+        for (int depth = 0; depth < path.size(); depth++) {
+            positions.add(relPos);
+            if (depthPositions.size() == depth)
+                depthPositions.add(new Vector2d());
+            relPos = path.get(depth).toChildPos(relPos, depthPositions.get(depth));
+        }
+    }
+
+    /**
+     * まとめられたサンプルもpositionsと同じ座標系に直す
+     */
+    private void computeCoalescedPositions(ArrayList<BasicComponent> path, List<Vector2d> samples) {
+        coalescedPositions.clear();
+        List<Vector2d> relSamples = samples;
+        for (int depth = 0; depth < path.size(); depth++) {
+            coalescedPositions.add(relSamples);
+            if (depthSamples.size() == depth) {
+                depthSamples.add(new ArrayList<>());
+                depthSampleLists.add(new ArrayList<>());
+            }
+            ArrayList<Vector2d> vectors = depthSamples.get(depth);
+            ArrayList<Vector2d> untransformed = depthSampleLists.get(depth);
+            untransformed.clear();
+            BasicComponent component = path.get(depth);
+            for (int i = 0; i < relSamples.size(); i++) {
+                if (vectors.size() == i)
+                    vectors.add(new Vector2d());
+                untransformed.add(component.toChildPos(relSamples.get(i), vectors.get(i)));
+            }
+            relSamples = untransformed;
+        }
+    }
+
+    /**
+     * path[from]以降の要素にイベントを発行する。キャプチャリングフェーズはpath[from]以降に上から、
+     * バブリングフェーズは最も深い要素からルートまでの経路に発行する
+     * @param hovered nullでなければ、発行前にpath[from]以降のホバー状態をこれにする
+     */
+    private void dispatch(ArrayList<BasicComponent> path, int from, MouseEvent event, Class<?> cls,
+            BasicMouseEventInvoker.Invoker invoker, Boolean hovered, boolean coalesced) {
+        if (hovered != null) {
+            for (int i = from; i < path.size(); i++) {
+                path.get(i).setHovered(hovered);
+            }
+        }
 
+        for (int i = from; i < path.size() && !event.cancelled(); i++) {
+            BasicComponent component = path.get(i);
+            if (cls.isInstance(component)) {
+                event.setCurrentTarget(component);
+                event.setTarget(component);
+                setPos(event, i, coalesced);
+                invoker.run(component, event, true);
+            }
+        }
+
+        if (event.getTarget() == null)
+            return;
+        for (int i = path.size() - 1; i >= 0 && !event.cancelled(); i--) {
+            BasicComponent component = path.get(i);
+            if (cls.isInstance(component)) {
+                event.setCurrentTarget(component);
+                setPos(event, i, coalesced);
+                invoker.run(component, event, false);
+            }
+        }
+    }
+
+    private void setPos(MouseEvent event, int depth, boolean coalesced) {
+        event.setPos(positions.get(depth));
+        if (coalesced)
+            event.setCoalescedPositions(coalescedPositions.get(depth));
+    }
 }
@@ -1,20 +1,33 @@
 package jp.shosato.micropaint.events.handlers;
 
 import java.util.ArrayList;
+import java.util.Collection;
 
 import jp.shosato.micropaint.components.FigureComponent;
 import jp.shosato.micropaint.events.Event;
 
 public class SelectionChangedEvent extends Event {
     public enum Action {
-        SELECT, UNSELECT, TOGGLE, UNSELECTALL
+        SELECT, UNSELECT, TOGGLE, UNSELECTALL,
+        /**
+         * targetFiguresを選択状態にし、それ以外の選択を解除
+         */
+        REPLACE
     }
 
     public final Action action;
     public final FigureComponent targetFigure;
+    public final Collection<FigureComponent> targetFigures;
 
     public SelectionChangedEvent(Action action, FigureComponent targetFigure) {
         this.action = action;
         this.targetFigure = targetFigure;
+        this.targetFigures = null;
+    }
+
+    public SelectionChangedEvent(Action action, Collection<FigureComponent> targetFigures) {
+        this.action = action;
+        this.targetFigure = null;
+        this.targetFigures = targetFigures;
     }
 }
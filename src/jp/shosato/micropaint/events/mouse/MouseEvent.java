@@ -1,5 +1,8 @@
 package jp.shosato.micropaint.events.mouse;
 
+import java.util.Collections;
+import java.util.List;
+
 import org.joml.Vector2d;
 
 import jp.shosato.micropaint.events.Event;
@@ -10,6 +13,11 @@ public class MouseEvent extends Event {
     private int mods;
     private int button;
     private Vector2d scroll;
+    /**
+     * 1フレームの間にまとめられたポインタの位置（古い順、最後がpos）と、その時刻（glfwGetTime基準の秒）
+     */
+    private List<Vector2d> coalescedPositions;
+    private double[] coalescedTimes;
 
     public MouseEvent() {
     }
@@ -42,6 +50,35 @@ public class MouseEvent extends Event {
         this.pos = pos;
     }
 
+    /**
+     * まとめられたポインタの位置。posと同じ座標系。すべての点がほしい自由線などが使う
+     */
+    public List<Vector2d> getCoalescedPositions() {
+        return coalescedPositions != null ? coalescedPositions : Collections.singletonList(pos);
+    }
+
+    /**
+     * まとめられた点が設定されているか。falseならgetCoalescedPositionsは現在の位置だけを返す
+     */
+    public boolean hasCoalescedPositions() {
+        return coalescedPositions != null;
+    }
+
+    public void setCoalescedPositions(List<Vector2d> positions) {
+        this.coalescedPositions = positions;
+    }
+
+    /**
+     * getCoalescedPositionsと同じ順の時刻。まとめられていないイベントではnull
+     */
+    public double[] getCoalescedTimes() {
+        return coalescedTimes;
+    }
+
+    public void setCoalescedTimes(double[] times) {
+        this.coalescedTimes = times;
+    }
+
     public int getAction() {
         return action;
     }
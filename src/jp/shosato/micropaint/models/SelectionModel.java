@@ -1,5 +1,6 @@
 package jp.shosato.micropaint.models;
 
+import java.util.Collection;
 import java.util.HashSet;
 
 import jp.shosato.micropaint.components.BasicComponent;
@@ -29,6 +30,16 @@ public class SelectionModel {
         this.selectedFigures.notifyChange();
     }
 
+    /**
+     * 選択をまとめて置き換える。通知は1回だけ
+     */
+    public void replace(final Collection<FigureComponent> figures) {
+        HashSet<FigureComponent> selected = this.selectedFigures.getValue();
+        selected.clear();
+        selected.addAll(figures);
+        this.selectedFigures.notifyChange();
+    }
+
     public void toggleSelection(final FigureComponent figure) {
         if (selectedFigures.getValue().contains(figure)) {
             unselect(figure);
@@ -51,6 +62,9 @@ public class SelectionModel {
             case UNSELECT:
                 unselect(event.targetFigure);
                 break;
+            case REPLACE:
+                replace(event.targetFigures);
+                break;
         }
     }
 
@@ -0,0 +1,396 @@
+package jp.shosato.micropaint.renderers;
+
+import static org.lwjgl.opengl.GL33.*;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import org.lwjgl.BufferUtils;
+
+/**
+ * OpenGL 3.3 coreとシェーダによる実装
+ * * 図形は変形をCPUで済ませてから頂点(x, y, u, v, r, g, b, a)として溜め、テクスチャや状態が変わるときにまとめて描く
+ * * シェーダには投影行列だけを渡す。保持モードの頂点バッファは投影と変形を合わせた行列で描く
+ * * 線と点は描画先のピクセル単位で太さを持つ四角形に展開する
+ */
+public class CoreGraphics extends GpuGraphics {
+
+    private static final String VERTEX_SHADER = String.join("\n",
+            "#version 330 core",
+            "layout(location = 0) in vec2 position;",
+            "layout(location = 1) in vec2 texCoord;",
+            "layout(location = 2) in vec4 color;",
+            "uniform mat4 transform;",
+            "out vec2 vTexCoord;",
+            "out vec4 vColor;",
+            "void main() {",
+            "    vTexCoord = texCoord;",
+            "    vColor = color;",
+            "    gl_Position = transform * vec4(position, 0.0, 1.0);",
+            "}");
+
+    private static final String SOLID_FRAGMENT_SHADER = String.join("\n",
+            "#version 330 core",
+            "in vec2 vTexCoord;",
+            "in vec4 vColor;",
+            "out vec4 fragColor;",
+            "void main() {",
+            "    fragColor = vColor;",
+            "}");
+
+    private static final String TEXTURED_FRAGMENT_SHADER = String.join("\n",
+            "#version 330 core",
+            "uniform sampler2D image;",
+            "in vec2 vTexCoord;",
+            "in vec4 vColor;",
+            "out vec4 fragColor;",
+            "void main() {",
+            "    fragColor = texture(image, vTexCoord) * vColor;",
+            "}");
+
+    /**
+     * 1頂点のfloat数(x, y, u, v, r, g, b, a)
+     */
+    private static final int STRIDE = 8;
+
+    private int solidProgram;
+    private int solidTransform;
+    private int texturedProgram;
+    private int texturedTransform;
+
+    /**
+     * 溜めた図形を流し込むバッファ
+     */
+    private int streamVao;
+    private int streamVbo;
+    /**
+     * 保持モードの頂点バッファを描くときに使う。座標以外の属性は定数にする
+     */
+    private int bufferVao;
+
+    private float[] batch = new float[STRIDE * 1024];
+    private int batchVertices = 0;
+    private FloatBuffer upload = BufferUtils.createFloatBuffer(STRIDE * 1024);
+    /**
+     * 溜めている図形のテクスチャ（0なら単色）と、テクスチャがアルファ乗算済みか
+     */
+    private int batchTexture = 0;
+    private boolean batchPremultiplied = false;
+
+    private final float[] transform = new float[16];
+    private final FloatBuffer transformBuffer = BufferUtils.createFloatBuffer(16);
+
+    /**
+     * 変形後の座標の受け渡し用
+     */
+    private float tx, ty;
+
+    @Override
+    public boolean requiresCoreProfile() {
+        return true;
+    }
+
+    @Override
+    public void init() {
+        solidProgram = createProgram(VERTEX_SHADER, SOLID_FRAGMENT_SHADER);
+        solidTransform = glGetUniformLocation(solidProgram, "transform");
+        texturedProgram = createProgram(VERTEX_SHADER, TEXTURED_FRAGMENT_SHADER);
+        texturedTransform = glGetUniformLocation(texturedProgram, "transform");
+        glUseProgram(texturedProgram);
+        glUniform1i(glGetUniformLocation(texturedProgram, "image"), 0);
+        glUseProgram(0);
+
+        streamVao = glGenVertexArrays();
+        streamVbo = glGenBuffers();
+        glBindVertexArray(streamVao);
+        glBindBuffer(GL_ARRAY_BUFFER, streamVbo);
+        glEnableVertexAttribArray(0);
+        glVertexAttribPointer(0, 2, GL_FLOAT, false, STRIDE * Float.BYTES, 0L);
+        glEnableVertexAttribArray(1);
+        glVertexAttribPointer(1, 2, GL_FLOAT, false, STRIDE * Float.BYTES, 2L * Float.BYTES);
+        glEnableVertexAttribArray(2);
+        glVertexAttribPointer(2, 4, GL_FLOAT, false, STRIDE * Float.BYTES, 4L * Float.BYTES);
+        glBindVertexArray(0);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+
+        bufferVao = glGenVertexArrays();
+    }
+
+    @Override
+    public void beginFrame(int width, int height, int pixelWidth, int pixelHeight) {
+        super.beginFrame(width, height, pixelWidth, pixelHeight);
+        batchVertices = 0;
+        applyViewport();
+        glDisable(GL_SCISSOR_TEST);
+
+        glClearColor(0, 0, 0, 0);
+        glClear(GL_COLOR_BUFFER_BIT);
+
+        glEnable(GL_BLEND);
+        glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
+    }
+
+    @Override
+    public void flush() {
+        if (batchVertices == 0)
+            return;
+
+        int length = batchVertices * STRIDE;
+        if (upload.capacity() < length)
+            upload = BufferUtils.createFloatBuffer(Math.max(length, upload.capacity() * 2));
+        upload.clear();
+        upload.put(batch, 0, length).flip();
+
+        getProjection(transform);
+        if (batchTexture == 0) {
+            glUseProgram(solidProgram);
+            glUniformMatrix4fv(solidTransform, false, toBuffer(transform));
+        } else {
+            glUseProgram(texturedProgram);
+            glUniformMatrix4fv(texturedTransform, false, toBuffer(transform));
+            glActiveTexture(GL_TEXTURE0);
+            glBindTexture(GL_TEXTURE_2D, batchTexture);
+        }
+        if (batchPremultiplied)
+            glBlendFunc(GL_ONE, GL_ONE_MINUS_SRC_ALPHA);
+
+        glBindVertexArray(streamVao);
+        glBindBuffer(GL_ARRAY_BUFFER, streamVbo);
+        /* 前のフレームの描画を待たないよう毎回確保し直す */
+        glBufferData(GL_ARRAY_BUFFER, (long) length * Float.BYTES, GL_STREAM_DRAW);
+        glBufferSubData(GL_ARRAY_BUFFER, 0, upload);
+        glDrawArrays(GL_TRIANGLES, 0, batchVertices);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        glBindVertexArray(0);
+
+        if (batchPremultiplied)
+            glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
+        if (batchTexture != 0)
+            glBindTexture(GL_TEXTURE_2D, 0);
+        glUseProgram(0);
+        batchVertices = 0;
+    }
+
+    @Override
+    public void dispose() {
+        glDeleteProgram(solidProgram);
+        glDeleteProgram(texturedProgram);
+        glDeleteBuffers(streamVbo);
+        glDeleteVertexArrays(streamVao);
+        glDeleteVertexArrays(bufferVao);
+    }
+
+    @Override
+    public void setScissor(int x, int y, int w, int h) {
+        flush();
+        super.setScissor(x, y, w, h);
+        applyScissor(x, y, w, h);
+    }
+
+    @Override
+    public void disableScissor() {
+        flush();
+        super.disableScissor();
+        glDisable(GL_SCISSOR_TEST);
+    }
+
+    /* ---- 溜める ---- */
+
+    /**
+     * テクスチャが変わるなら溜めた分を先に描き、count頂点分の場所を空ける
+     */
+    private void begin(int texture, boolean premultiplied, int count) {
+        if (batchVertices > 0 && (texture != batchTexture || premultiplied != batchPremultiplied))
+            flush();
+        batchTexture = texture;
+        batchPremultiplied = premultiplied;
+        int length = (batchVertices + count) * STRIDE;
+        if (batch.length < length) {
+            float[] grown = new float[Math.max(length, batch.length * 2)];
+            System.arraycopy(batch, 0, grown, 0, batchVertices * STRIDE);
+            batch = grown;
+        }
+    }
+
+    /**
+     * 描画先の座標(x, y)の頂点を追加
+     */
+    private void put(float x, float y, float u, float v, float r, float g, float b, float a) {
+        int i = batchVertices++ * STRIDE;
+        batch[i] = x;
+        batch[i + 1] = y;
+        batch[i + 2] = u;
+        batch[i + 3] = v;
+        batch[i + 4] = r;
+        batch[i + 5] = g;
+        batch[i + 6] = b;
+        batch[i + 7] = a;
+    }
+
+    /**
+     * 現在の変形で(x, y)を描画先の座標に移し、tx, tyに入れる
+     */
+    private void transform(float x, float y) {
+        tx = (float) (matrix.m00 * x + matrix.m10 * y + matrix.m20);
+        ty = (float) (matrix.m01 * x + matrix.m11 * y + matrix.m21);
+    }
+
+    private void putTransformed(float x, float y) {
+        transform(x, y);
+        put(tx, ty, 0, 0, red, green, blue, alpha);
+    }
+
+    /* ---- 図形 ---- */
+
+    @Override
+    public void fillTriangles(float[] vertices, int vertexCount) {
+        begin(0, false, vertexCount);
+        for (int i = 0; i < vertexCount * 2; i += 2) {
+            putTransformed(vertices[i], vertices[i + 1]);
+        }
+    }
+
+    @Override
+    public void fillTriangles(float[] vertices, int[] indices, int indexCount) {
+        begin(0, false, indexCount);
+        for (int i = 0; i < indexCount; i++) {
+            putTransformed(vertices[indices[i] * 2], vertices[indices[i] * 2 + 1]);
+        }
+    }
+
+    @Override
+    public void fillColoredTriangles(float[] vertices, float[] colors, int vertexCount) {
+        begin(0, false, vertexCount);
+        for (int i = 0; i < vertexCount; i++) {
+            transform(vertices[i * 2], vertices[i * 2 + 1]);
+            put(tx, ty, 0, 0, colors[i * 4], colors[i * 4 + 1], colors[i * 4 + 2], colors[i * 4 + 3]);
+        }
+    }
+
+    @Override
+    public void drawLines(float[] vertices, int vertexCount, float width) {
+        for (int i = 0; i + 1 < vertexCount; i += 2) {
+            transform(vertices[i * 2], vertices[i * 2 + 1]);
+            float x0 = tx, y0 = ty;
+            transform(vertices[i * 2 + 2], vertices[i * 2 + 3]);
+            float x1 = tx, y1 = ty;
+
+            float length = (float) Math.hypot(x1 - x0, y1 - y0);
+            if (length == 0)
+                continue;
+            float dx = (x1 - x0) / length, dy = (y1 - y0) / length;
+            putSegment(x0, y0, x1, y1, dx, dy, width);
+        }
+    }
+
+    /**
+     * 線分を太さwidthの四角形として追加。座標は描画先のピクセル
+     */
+    private void putSegment(float x0, float y0, float x1, float y1, float dx, float dy, float width) {
+        begin(0, false, 6);
+        float nx = -dy * width / 2, ny = dx * width / 2;
+        put(x0 + nx, y0 + ny, 0, 0, red, green, blue, alpha);
+        put(x1 + nx, y1 + ny, 0, 0, red, green, blue, alpha);
+        put(x1 - nx, y1 - ny, 0, 0, red, green, blue, alpha);
+        put(x0 + nx, y0 + ny, 0, 0, red, green, blue, alpha);
+        put(x1 - nx, y1 - ny, 0, 0, red, green, blue, alpha);
+        put(x0 - nx, y0 - ny, 0, 0, red, green, blue, alpha);
+    }
+
+    @Override
+    public void drawPoints(float[] vertices, int vertexCount, float size) {
+        begin(0, false, vertexCount * 6);
+        float h = size / 2;
+        for (int i = 0; i < vertexCount * 2; i += 2) {
+            transform(vertices[i], vertices[i + 1]);
+            put(tx - h, ty - h, 0, 0, red, green, blue, alpha);
+            put(tx + h, ty - h, 0, 0, red, green, blue, alpha);
+            put(tx + h, ty + h, 0, 0, red, green, blue, alpha);
+            put(tx - h, ty - h, 0, 0, red, green, blue, alpha);
+            put(tx + h, ty + h, 0, 0, red, green, blue, alpha);
+            put(tx - h, ty + h, 0, 0, red, green, blue, alpha);
+        }
+    }
+
+    @Override
+    public void drawTexture(int texture, float[] vertices, int vertexCount, boolean premultiplied) {
+        begin(texture, premultiplied, vertexCount);
+        /* アルファ乗算済みのテクスチャには色もアルファ乗算済みで掛ける */
+        float r = premultiplied ? red * alpha : red;
+        float g = premultiplied ? green * alpha : green;
+        float b = premultiplied ? blue * alpha : blue;
+        for (int i = 0; i < vertexCount * 4; i += 4) {
+            transform(vertices[i], vertices[i + 1]);
+            put(tx, ty, vertices[i + 2], vertices[i + 3], r, g, b, alpha);
+        }
+    }
+
+    @Override
+    public void drawBuffer(VertexBuffer vertices, VertexBuffer colors, IndexBuffer indices, IntBuffer firsts,
+            IntBuffer counts) {
+        flush();
+        getTransform(transform);
+        glUseProgram(solidProgram);
+        glUniformMatrix4fv(solidTransform, false, toBuffer(transform));
+
+        glBindVertexArray(bufferVao);
+        vertices.bind();
+        glEnableVertexAttribArray(0);
+        glVertexAttribPointer(0, 2, GL_FLOAT, false, 0, 0L);
+        glDisableVertexAttribArray(1);
+        glVertexAttrib2f(1, 0, 0);
+        if (colors != null) {
+            colors.bind();
+            glEnableVertexAttribArray(2);
+            glVertexAttribPointer(2, 4, GL_FLOAT, false, 0, 0L);
+        } else {
+            glDisableVertexAttribArray(2);
+            glVertexAttrib4f(2, red, green, blue, alpha);
+        }
+        if (indices != null) {
+            indices.bind();
+            glMultiDrawElements(GL_TRIANGLES, counts, GL_UNSIGNED_INT, toIndexOffsets(firsts));
+        } else {
+            glMultiDrawArrays(GL_TRIANGLES, firsts, counts);
+        }
+        glBindVertexArray(0);
+        VertexBuffer.unbind();
+        IndexBuffer.unbind();
+        glUseProgram(0);
+    }
+
+    private FloatBuffer toBuffer(float[] values) {
+        transformBuffer.clear();
+        transformBuffer.put(values).flip();
+        return transformBuffer;
+    }
+
+    private static int createProgram(String vertexSource, String fragmentSource) {
+        int vertex = compileShader(GL_VERTEX_SHADER, vertexSource);
+        int fragment = compileShader(GL_FRAGMENT_SHADER, fragmentSource);
+        int program = glCreateProgram();
+        glAttachShader(program, vertex);
+        glAttachShader(program, fragment);
+        glLinkProgram(program);
+        if (glGetProgrami(program, GL_LINK_STATUS) == GL_FALSE) {
+            System.err.println("CoreGraphics: failed to link program");
+            System.err.println(glGetProgramInfoLog(program));
+        }
+        glDetachShader(program, vertex);
+        glDetachShader(program, fragment);
+        glDeleteShader(vertex);
+        glDeleteShader(fragment);
+        return program;
+    }
+
+    private static int compileShader(int type, String source) {
+        int shader = glCreateShader(type);
+        glShaderSource(shader, source);
+        glCompileShader(shader);
+        if (glGetShaderi(shader, GL_COMPILE_STATUS) == GL_FALSE) {
+            System.err.println("CoreGraphics: failed to compile shader");
+            System.err.println(glGetShaderInfoLog(shader));
+        }
+        return shader;
+    }
+}
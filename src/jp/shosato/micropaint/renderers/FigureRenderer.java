@@ -0,0 +1,525 @@
+package jp.shosato.micropaint.renderers;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import org.joml.Vector4d;
+import org.lwjgl.BufferUtils;
+
+import jp.shosato.micropaint.components.BasicComponent;
+import jp.shosato.micropaint.components.FigureComponent;
+
+/**
+ * 確定した図形を保持モードで描画するレンダラ
+ * * 図形ごとの頂点はVBOに一度だけ転送し、図形のrevisionが変わったときだけ再転送する
+ * * 描画順で連続し、描画状態（種類・線幅）が同じパスは1つのバッファにまとめ、一度の描画呼び出しで描く
+ * * 色は頂点ごとに持たせるので、塗りと枠線が交互に並んでも図形をまたいでまとまる
+ * * 見えている図形だけを描くときは、バッチのうちその図形の範囲だけをまとめて描く
+ */
+public class FigureRenderer {
+
+    /**
+     * 図形ごとのキャッシュ
+     */
+    private static class Entry {
+        final FigureComponent figure;
+        int revision;
+        /**
+         * 前回の転送から中身が変わったかどうか
+         */
+        boolean dirty = false;
+        ArrayList<RenderPass> passes = new ArrayList<>();
+        /**
+         * パスがどのバッチのどこに置かれているか
+         */
+        final ArrayList<Slot> slots = new ArrayList<>();
+        /**
+         * 最後に見えていた描画の番号
+         */
+        int visibleStamp = 0;
+
+        Entry(FigureComponent figure) {
+            this.figure = figure;
+            this.revision = figure.getRevision() - 1;
+        }
+
+        /**
+         * パスを作り直す
+         * @return バッファ上の配置が変わったかどうか
+         */
+        boolean rebuild() {
+            ArrayList<RenderPass> old = passes;
+            passes = new ArrayList<>();
+            figure.buildRenderPasses(passes);
+            revision = figure.getRevision();
+
+            if (old.size() != passes.size())
+                return true;
+            for (int i = 0; i < passes.size(); i++) {
+                if (!old.get(i).hasSameLayout(passes.get(i)))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    private static class Slot {
+        final Entry entry;
+        final int passIndex;
+        Batch batch;
+        int first;
+        int count;
+        int firstIndex;
+        int indexCount;
+        /**
+         * 転送済みのインデックス。頂点の移動だけならインデックスは転送し直さない
+         */
+        int[] uploadedIndices;
+        /**
+         * 転送済みの色。色が変わらなければ色は転送し直さない
+         */
+        Vector4d uploadedColor;
+
+        Slot(Entry entry, int passIndex) {
+            this.entry = entry;
+            this.passIndex = passIndex;
+        }
+
+        RenderPass getPass() {
+            return entry.passes.get(passIndex);
+        }
+
+        boolean hasSameLayout(Slot other) {
+            return entry == other.entry && passIndex == other.passIndex && first == other.first
+                    && count == other.count && firstIndex == other.firstIndex && indexCount == other.indexCount;
+        }
+
+        /**
+         * バッチ内の位置に合わせてずらしたインデックス
+         */
+        int[] getRebasedIndices() {
+            int[] indices = getPass().indices;
+            int[] rebased = new int[indices.length];
+            for (int i = 0; i < indices.length; i++) {
+                rebased[i] = indices[i] + first;
+            }
+            return rebased;
+        }
+
+        void upload() {
+            RenderPass pass = getPass();
+            uploadVertices();
+            if (pass.isIndexed() && uploadedIndices != pass.indices) {
+                batch.indexBuffer.update(firstIndex, getRebasedIndices(), indexCount);
+                uploadedIndices = pass.indices;
+            }
+            if (!pass.color.equals(uploadedColor)) {
+                batch.colorBuffer.update(first, fillColors(pass.color, count), count);
+                uploadedColor = pass.color;
+            }
+        }
+
+        /**
+         * ネイティブメモリ上の頂点は一時バッファに写さずにそのまま転送する
+         */
+        void uploadVertices() {
+            RenderPass pass = getPass();
+            if (pass.isOffHeap()) {
+                batch.vertexBuffer.update(first, pass.offHeapVertices.getBuffer());
+            } else {
+                batch.vertexBuffer.update(first, pass.vertices, pass.vertexCount);
+            }
+        }
+    }
+
+    /**
+     * 1回の描画呼び出しで描くパスの集まり
+     */
+    private static class Batch {
+        final RenderPass state;
+        final ArrayList<Slot> slots = new ArrayList<>();
+        VertexBuffer vertexBuffer;
+        /**
+         * 頂点ごとの色(r, g, b, a)。頂点バッファと同じ並び
+         */
+        VertexBuffer colorBuffer;
+        IndexBuffer indexBuffer;
+        int vertexCount = 0;
+        int indexCount = 0;
+
+        Batch(RenderPass state) {
+            this.state = state;
+        }
+
+        /**
+         * 古いバッチの先頭部分と同じ並びなら、そのバッファを使い回して追記できる
+         */
+        boolean startsWith(Batch old) {
+            if (old.slots.size() > slots.size())
+                return false;
+            for (int i = 0; i < old.slots.size(); i++) {
+                if (!old.slots.get(i).hasSameLayout(slots.get(i)))
+                    return false;
+            }
+            return true;
+        }
+
+        boolean fits(Batch old) {
+            return vertexCount <= old.vertexBuffer.getCapacity()
+                    && (!state.isIndexed() || indexCount <= old.indexBuffer.getCapacity());
+        }
+
+        void takeBuffers(Batch old) {
+            vertexBuffer = old.vertexBuffer;
+            colorBuffer = old.colorBuffer;
+            indexBuffer = old.indexBuffer;
+            old.vertexBuffer = null;
+            old.colorBuffer = null;
+            old.indexBuffer = null;
+        }
+
+        /**
+         * from番目以降のパスを転送
+         */
+        void upload(int from, boolean reallocate) {
+            /* ネイティブメモリ上の頂点があれば、1つにまとめず図形ごとに転送する */
+            boolean offHeap = false;
+            for (int i = from; i < slots.size() && !offHeap; i++) {
+                offHeap = slots.get(i).getPass().isOffHeap();
+            }
+
+            int start = from < slots.size() ? slots.get(from).first : vertexCount;
+            float[] vertices = null;
+            if (!offHeap) {
+                vertices = new float[(vertexCount - start) * 2];
+                for (int i = from; i < slots.size(); i++) {
+                    Slot slot = slots.get(i);
+                    RenderPass pass = slot.getPass();
+                    System.arraycopy(pass.vertices, 0, vertices, (slot.first - start) * 2, pass.vertexCount * 2);
+                }
+            }
+
+            float[] colors = new float[(vertexCount - start) * 4];
+            for (int i = from; i < slots.size(); i++) {
+                Slot slot = slots.get(i);
+                Vector4d color = slot.getPass().color;
+                for (int j = (slot.first - start) * 4, end = j + slot.count * 4; j < end; j += 4) {
+                    colors[j] = (float) color.x;
+                    colors[j + 1] = (float) color.y;
+                    colors[j + 2] = (float) color.z;
+                    colors[j + 3] = (float) color.w;
+                }
+                slot.uploadedColor = color;
+            }
+
+            int startIndex = from < slots.size() ? slots.get(from).firstIndex : indexCount;
+            int[] indices = new int[indexCount - startIndex];
+            if (state.isIndexed()) {
+                for (int i = from; i < slots.size(); i++) {
+                    Slot slot = slots.get(i);
+                    System.arraycopy(slot.getRebasedIndices(), 0, indices, slot.firstIndex - startIndex,
+                            slot.indexCount);
+                    slot.uploadedIndices = slot.getPass().indices;
+                }
+            }
+
+            if (vertexBuffer == null)
+                vertexBuffer = new VertexBuffer();
+            if (colorBuffer == null)
+                colorBuffer = new VertexBuffer(4);
+            if (state.isIndexed() && indexBuffer == null)
+                indexBuffer = new IndexBuffer();
+
+            if (reallocate) {
+                /* 図形は続けて追加されることが多いので余裕を持って確保 */
+                if (offHeap) {
+                    vertexBuffer.allocate(vertexCount * 2);
+                } else {
+                    vertexBuffer.upload(vertices, vertexCount, vertexCount * 2);
+                }
+                colorBuffer.upload(colors, vertexCount, vertexCount * 2);
+                if (state.isIndexed())
+                    indexBuffer.upload(indices, indexCount, indexCount * 2);
+            } else if (start < vertexCount) {
+                if (!offHeap)
+                    vertexBuffer.update(start, vertices, vertexCount - start);
+                colorBuffer.update(start, colors, vertexCount - start);
+                if (state.isIndexed())
+                    indexBuffer.update(startIndex, indices, indexCount - startIndex);
+            }
+            if (offHeap) {
+                for (int i = from; i < slots.size(); i++) {
+                    slots.get(i).uploadVertices();
+                }
+            }
+        }
+
+        void draw(GpuGraphics g) {
+            IntBuffer starts = rangeStarts(1);
+            IntBuffer lengths = rangeLengths(1);
+            starts.put(0).flip();
+            lengths.put(state.isIndexed() ? indexCount : vertexCount).flip();
+            g.drawBuffer(vertexBuffer, colorBuffer, indexBuffer, starts, lengths);
+        }
+
+        /**
+         * visibleStampの図形のパスだけを描く。バッファ上で隣り合うパスは1つの範囲にまとめる
+         */
+        void drawVisible(GpuGraphics g, int visibleStamp) {
+            IntBuffer starts = rangeStarts(slots.size());
+            IntBuffer lengths = rangeLengths(slots.size());
+            int end = -1;
+            for (Slot slot : slots) {
+                if (slot.entry.visibleStamp != visibleStamp)
+                    continue;
+                int start = state.isIndexed() ? slot.firstIndex : slot.first;
+                int length = state.isIndexed() ? slot.indexCount : slot.count;
+                if (start == end) {
+                    int last = lengths.position() - 1;
+                    lengths.put(last, lengths.get(last) + length);
+                } else {
+                    starts.put(start);
+                    lengths.put(length);
+                }
+                end = start + length;
+            }
+            starts.flip();
+            lengths.flip();
+            if (!lengths.hasRemaining())
+                return;
+
+            g.drawBuffer(vertexBuffer, colorBuffer, indexBuffer, starts, lengths);
+        }
+
+        void delete() {
+            if (vertexBuffer != null)
+                vertexBuffer.delete();
+            if (colorBuffer != null)
+                colorBuffer.delete();
+            if (indexBuffer != null)
+                indexBuffer.delete();
+        }
+    }
+
+    private final IdentityHashMap<FigureComponent, Entry> entries = new IdentityHashMap<>();
+    private ArrayList<Entry> order = new ArrayList<>();
+    private ArrayList<Entry> nextOrder = new ArrayList<>();
+    private ArrayList<Batch> batches = new ArrayList<>();
+    /**
+     * 前回の描画から中身が変わった図形
+     */
+    private final ArrayList<Entry> dirtyEntries = new ArrayList<>();
+    private int visibleStamp = 0;
+
+    /* 部分描画用の一時バッファ。GLはシングルスレッドなので使い回す */
+    private static IntBuffer rangeStarts = BufferUtils.createIntBuffer(256);
+    private static IntBuffer rangeLengths = BufferUtils.createIntBuffer(256);
+
+    /* 色の転送用の一時配列 */
+    private static float[] colorScratch = new float[1024];
+
+    /**
+     * count頂点分の同じ色の並び
+     */
+    private static float[] fillColors(Vector4d color, int count) {
+        if (colorScratch.length < count * 4)
+            colorScratch = new float[Math.max(count * 4, colorScratch.length * 2)];
+        for (int i = 0; i < count * 4; i += 4) {
+            colorScratch[i] = (float) color.x;
+            colorScratch[i + 1] = (float) color.y;
+            colorScratch[i + 2] = (float) color.z;
+            colorScratch[i + 3] = (float) color.w;
+        }
+        return colorScratch;
+    }
+
+    private static IntBuffer rangeStarts(int capacity) {
+        if (rangeStarts.capacity() < capacity)
+            rangeStarts = BufferUtils.createIntBuffer(Math.max(capacity, rangeStarts.capacity() * 2));
+        rangeStarts.clear();
+        return rangeStarts;
+    }
+
+    private static IntBuffer rangeLengths(int capacity) {
+        if (rangeLengths.capacity() < capacity)
+            rangeLengths = BufferUtils.createIntBuffer(Math.max(capacity, rangeLengths.capacity() * 2));
+        rangeLengths.clear();
+        return rangeLengths;
+    }
+
+    /**
+     * 子要素のうち図形を描画順に描く
+     */
+    public void render(List<? extends BasicComponent> children) {
+        render(children, null);
+    }
+
+    /**
+     * 子要素のうち、visibleに含まれる図形だけを描画順に描く
+     * @param visible nullなら全て
+     */
+    public void render(List<? extends BasicComponent> children, Collection<FigureComponent> visible) {
+        /* バッファはGPU上に置くので、GPUの資源を描けない実装では何もしない */
+        GpuGraphics g = GpuGraphics.current();
+        if (g == null)
+            return;
+
+        if (sync(children)) {
+            rebuildBatches();
+        } else {
+            /* 頂点数が変わらない更新（移動など）はその図形の範囲だけ転送する */
+            for (Entry entry : dirtyEntries) {
+                for (Slot slot : entry.slots) {
+                    slot.upload();
+                }
+            }
+        }
+        for (Entry entry : dirtyEntries) {
+            entry.dirty = false;
+        }
+        dirtyEntries.clear();
+
+        boolean culling = visible != null && visible.size() < order.size();
+        if (culling) {
+            visibleStamp++;
+            for (FigureComponent figure : visible) {
+                Entry entry = entries.get(figure);
+                if (entry != null)
+                    entry.visibleStamp = visibleStamp;
+            }
+        }
+
+        for (Batch batch : batches) {
+            if (culling) {
+                batch.drawVisible(g, visibleStamp);
+            } else {
+                batch.draw(g);
+            }
+        }
+    }
+
+    /**
+     * 図形の並びと各図形のrevisionを確認する
+     * @return バッチの組み直しが必要かどうか
+     */
+    private boolean sync(List<? extends BasicComponent> children) {
+        boolean layoutChanged = false;
+
+        nextOrder.clear();
+        for (BasicComponent child : children) {
+            if (!(child instanceof FigureComponent))
+                continue;
+            FigureComponent figure = (FigureComponent) child;
+
+            Entry entry = entries.get(figure);
+            if (entry == null) {
+                entry = new Entry(figure);
+                entries.put(figure, entry);
+            }
+            if (entry.revision != figure.getRevision()) {
+                if (entry.rebuild()) {
+                    layoutChanged = true;
+                }
+                entry.dirty = true;
+                dirtyEntries.add(entry);
+            }
+            nextOrder.add(entry);
+        }
+
+        if (!nextOrder.equals(order)) {
+            layoutChanged = true;
+            if (nextOrder.size() != entries.size()) {
+                /* 削除された図形を忘れる */
+                entries.clear();
+                for (Entry entry : nextOrder) {
+                    entries.put(entry.figure, entry);
+                }
+            }
+        }
+
+        ArrayList<Entry> tmp = order;
+        order = nextOrder;
+        nextOrder = tmp;
+
+        return layoutChanged;
+    }
+
+    /**
+     * 描画順に連続する同じ描画状態のパスをまとめ直す。前回と先頭が同じバッチはバッファを使い回す
+     */
+    private void rebuildBatches() {
+        IdentityHashMap<RenderPass, Batch> oldBatches = new IdentityHashMap<>();
+        for (Batch batch : batches) {
+            oldBatches.put(batch.slots.get(0).getPass(), batch);
+        }
+        for (Entry entry : order) {
+            entry.slots.clear();
+        }
+
+        ArrayList<Batch> next = new ArrayList<>();
+        Batch current = null;
+        for (Entry entry : order) {
+            for (int i = 0; i < entry.passes.size(); i++) {
+                RenderPass pass = entry.passes.get(i);
+                if (pass.vertexCount == 0)
+                    continue;
+                if (current == null || !current.state.hasSameState(pass)) {
+                    current = new Batch(pass);
+                    next.add(current);
+                }
+                Slot slot = new Slot(entry, i);
+                slot.batch = current;
+                slot.first = current.vertexCount;
+                slot.count = pass.vertexCount;
+                slot.firstIndex = current.indexCount;
+                slot.indexCount = pass.getIndexCount();
+                current.vertexCount += slot.count;
+                current.indexCount += slot.indexCount;
+                current.slots.add(slot);
+                entry.slots.add(slot);
+            }
+        }
+
+        for (Batch batch : next) {
+            Batch old = oldBatches.get(batch.slots.get(0).getPass());
+            if (old != null && old.vertexBuffer != null && batch.startsWith(old) && batch.fits(old)) {
+                /* 追記分と中身が変わった図形だけ転送 */
+                batch.takeBuffers(old);
+                int from = old.slots.size();
+                for (int i = 0; i < from; i++) {
+                    Slot slot = batch.slots.get(i);
+                    slot.uploadedIndices = old.slots.get(i).uploadedIndices;
+                    slot.uploadedColor = old.slots.get(i).uploadedColor;
+                    if (slot.entry.dirty) {
+                        slot.upload();
+                    }
+                }
+                batch.upload(from, false);
+            } else {
+                if (old != null && old.vertexBuffer != null && old.state.isIndexed() == batch.state.isIndexed())
+                    batch.takeBuffers(old);
+                batch.upload(0, true);
+            }
+        }
+
+        for (Batch batch : batches) {
+            batch.delete();
+        }
+        batches = next;
+    }
+
+    /**
+     * GLのリソースを解放
+     */
+    public void dispose() {
+        for (Batch batch : batches) {
+            batch.delete();
+        }
+        batches.clear();
+        entries.clear();
+        order.clear();
+    }
+}
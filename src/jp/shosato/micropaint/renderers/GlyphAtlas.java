@@ -0,0 +1,252 @@
+package jp.shosato.micropaint.renderers;
+
+import static org.lwjgl.opengl.GL15.*;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+import org.lwjgl.BufferUtils;
+
+/**
+ * フォントごとのグリフアトラス
+ * 文字は初めて使われたときに一度だけawtで描き、1枚のテクスチャの空いている場所に転送する
+ * テクスチャは白地で、アルファに文字の濃さを持つ。色は描画時の色を掛けて付ける
+ */
+public class GlyphAtlas {
+
+    /**
+     * テクスチャ上の1文字分の領域
+     */
+    public static class Glyph {
+        public final int x;
+        public final int y;
+        public final int width;
+        public final int height;
+        /**
+         * 次の文字までの幅
+         */
+        public final int advance;
+
+        Glyph(int x, int y, int width, int height, int advance) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.advance = advance;
+        }
+    }
+
+    private static final HashMap<Font, GlyphAtlas> atlases = new HashMap<>();
+
+    /**
+     * 同じフォントを使う要素はアトラスを共有する
+     */
+    public static GlyphAtlas get(Font font) {
+        GlyphAtlas atlas = atlases.get(font);
+        if (atlas == null) {
+            atlas = new GlyphAtlas(font);
+            atlases.put(font, atlas);
+        }
+        return atlas;
+    }
+
+    /**
+     * グリフ同士の隙間。隣の文字がにじまないように空ける
+     */
+    private static final int PADDING = 1;
+    /**
+     * テクスチャの幅・高さの上限。これより大きな文字は切り詰め、アトラスが埋まったら以降の文字は描かない
+     */
+    private static final int MAX_SIZE = 4096;
+
+    private final Font font;
+    private final FontMetrics metrics;
+    private final HashMap<Integer, Glyph> glyphs = new HashMap<>();
+
+    private int texture = 0;
+    private int width = 256;
+    private int height = 256;
+    /**
+     * テクスチャの中身の控え。アトラスを広げるときに転送し直す
+     */
+    private byte[] pixels;
+    /**
+     * テクスチャを作り直すたびに増える。作成済みのテクスチャ座標が古くなったことを表す
+     */
+    private int generation = 0;
+
+    /* 詰め込み位置。行の高さはフォントの高さで一定 */
+    private int cursorX = 0;
+    private int cursorY = 0;
+    /**
+     * アトラスが埋まったことを一度だけ知らせる
+     */
+    private boolean full = false;
+
+    private GlyphAtlas(Font font) {
+        this.font = font;
+
+        BufferedImage tmpImage = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = tmpImage.createGraphics();
+        this.metrics = g.getFontMetrics(font);
+        g.dispose();
+
+        this.pixels = new byte[width * height * 4];
+    }
+
+    public FontMetrics getMetrics() {
+        return metrics;
+    }
+
+    public int getLineHeight() {
+        return metrics.getHeight();
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * テクスチャの中身(RGBA)。GPUを使わずに文字を描くときに読む
+     */
+    public byte[] getPixels() {
+        return pixels;
+    }
+
+    public int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * 文字のグリフ。まだアトラスになければ描いて追加する
+     */
+    public Glyph getGlyph(int codePoint) {
+        Glyph glyph = glyphs.get(codePoint);
+        if (glyph == null) {
+            glyph = rasterize(codePoint);
+            glyphs.put(codePoint, glyph);
+        }
+        return glyph;
+    }
+
+    /**
+     * アトラスのテクスチャ。まだなければ作る
+     */
+    public int getTexture() {
+        if (texture == 0) {
+            allocate();
+        }
+        return texture;
+    }
+
+    private Glyph rasterize(int codePoint) {
+        int advance = metrics.charWidth(codePoint);
+        int w = Math.min(Math.max(1, advance), MAX_SIZE - PADDING);
+        int h = Math.min(Math.max(1, metrics.getHeight()), MAX_SIZE - PADDING);
+
+        /* 1文字も入らない幅なら横に広げる。既存の行はそのまま使える */
+        if (w + PADDING > width) {
+            int newWidth = width;
+            while (w + PADDING > newWidth) {
+                newWidth *= 2;
+            }
+            grow(Math.min(newWidth, MAX_SIZE), height);
+        }
+        if (cursorX + w + PADDING > width) {
+            cursorX = 0;
+            cursorY += h + PADDING;
+        }
+        if (cursorY + h + PADDING > height) {
+            int newHeight = height;
+            while (cursorY + h + PADDING > newHeight && newHeight < MAX_SIZE) {
+                newHeight *= 2;
+            }
+            if (cursorY + h + PADDING > newHeight) {
+                if (!full)
+                    System.err.println("Glyph atlas is full: " + font);
+                full = true;
+                return new Glyph(0, 0, 0, 0, advance);
+            }
+            grow(width, newHeight);
+        }
+
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setFont(font);
+        g.setColor(Color.WHITE);
+        g.drawString(new String(Character.toChars(codePoint)), 0, metrics.getAscent());
+        g.dispose();
+
+        int[] argb = new int[w * h];
+        image.getRGB(0, 0, w, h, argb, 0, w);
+        ByteBuffer buffer = BufferUtils.createByteBuffer(w * h * 4);
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                byte alpha = (byte) ((argb[y * w + x] >> 24) & 0xff);
+                int i = ((cursorY + y) * width + cursorX + x) * 4;
+                pixels[i] = pixels[i + 1] = pixels[i + 2] = (byte) 0xff;
+                pixels[i + 3] = alpha;
+                buffer.put((byte) 0xff).put((byte) 0xff).put((byte) 0xff).put(alpha);
+            }
+        }
+        buffer.flip();
+
+        if (texture != 0) {
+            /* 追加した文字の部分だけ転送 */
+            glBindTexture(GL_TEXTURE_2D, texture);
+            glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+            glTexSubImage2D(GL_TEXTURE_2D, 0, cursorX, cursorY, w, h, GL_RGBA, GL_UNSIGNED_BYTE, buffer);
+            glBindTexture(GL_TEXTURE_2D, 0);
+        }
+
+        Glyph glyph = new Glyph(cursorX, cursorY, w, h, advance);
+        cursorX += w + PADDING;
+        return glyph;
+    }
+
+    /**
+     * アトラスを指定の大きさに広げる。既存のグリフの位置は変わらないがテクスチャ座標は変わる
+     */
+    private void grow(int newWidth, int newHeight) {
+        byte[] newPixels = new byte[newWidth * newHeight * 4];
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(pixels, y * width * 4, newPixels, y * newWidth * 4, width * 4);
+        }
+        pixels = newPixels;
+        width = newWidth;
+        height = newHeight;
+
+        if (texture != 0) {
+            /* 描画待ちの文字が古いテクスチャを参照しているので先に描いておく */
+            if (Graphics.get() != null)
+                Graphics.get().flush();
+            glDeleteTextures(texture);
+            texture = 0;
+        }
+        generation++;
+    }
+
+    private void allocate() {
+        ByteBuffer buffer = BufferUtils.createByteBuffer(pixels.length);
+        buffer.put(pixels).flip();
+
+        texture = glGenTextures();
+        glBindTexture(GL_TEXTURE_2D, texture);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+        glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+        glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA, width, height, 0, GL_RGBA, GL_UNSIGNED_BYTE, buffer);
+        glBindTexture(GL_TEXTURE_2D, 0);
+    }
+}
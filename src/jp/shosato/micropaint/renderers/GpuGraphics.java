@@ -0,0 +1,86 @@
+package jp.shosato.micropaint.renderers;
+
+import static org.lwjgl.opengl.GL11.*;
+
+import java.nio.IntBuffer;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.PointerBuffer;
+
+/**
+ * OpenGLで描く実装の共通部分。テクスチャや頂点バッファなどGPU上の資源を描く入口はここにだけある
+ */
+public abstract class GpuGraphics extends Graphics {
+
+    /**
+     * 描画中の実装がGPU上の資源を描けるならそれを返す。描けなければnull
+     */
+    public static GpuGraphics current() {
+        Graphics g = Graphics.get();
+        return g instanceof GpuGraphics ? (GpuGraphics) g : null;
+    }
+
+    @Override
+    public boolean supportsGpuResources() {
+        return true;
+    }
+
+    /**
+     * ビューポートはフレームバッファのピクセルで設定し、座標の単位との違いは投影行列が吸収する
+     */
+    @Override
+    protected void applyViewport() {
+        glViewport(0, 0, targetPixelWidth, targetPixelHeight);
+    }
+
+    /**
+     * 座標の単位で指定されたシザーをピクセルに直して設定
+     */
+    protected void applyScissor(int x, int y, int w, int h) {
+        int x0 = x * targetPixelWidth / targetWidth;
+        int y0 = y * targetPixelHeight / targetHeight;
+        int x1 = (x + w) * targetPixelWidth / targetWidth;
+        int y1 = (y + h) * targetPixelHeight / targetHeight;
+        glEnable(GL_SCISSOR_TEST);
+        glScissor(x0, y0, x1 - x0, y1 - y0);
+    }
+
+    /**
+     * テクスチャを貼った三角形を描く。テクスチャの色に現在の色を掛ける
+     * @param vertices (x, y, u, v)の並び
+     * @param premultiplied テクスチャの色がアルファ乗算済みか
+     */
+    public abstract void drawTexture(int texture, float[] vertices, int vertexCount, boolean premultiplied);
+
+    @Override
+    public void drawText(GlyphAtlas atlas, float[] vertices, int vertexCount) {
+        drawTexture(atlas.getTexture(), vertices, vertexCount, false);
+    }
+
+    /**
+     * 頂点バッファの三角形を現在の変形で描く
+     * @param colors 頂点ごとの色(r, g, b, a)。nullなら現在の色
+     * @param indices nullならfirsts, countsは頂点の範囲、そうでなければ頂点番号の範囲
+     */
+    public abstract void drawBuffer(VertexBuffer vertices, VertexBuffer colors, IndexBuffer indices, IntBuffer firsts,
+            IntBuffer counts);
+
+    /* 範囲指定の描画用の一時バッファ。GLはシングルスレッドなので使い回す。ネイティブライブラリを読むので必要になってから作る */
+    private static PointerBuffer offsets;
+
+    /**
+     * 頂点番号の範囲の先頭をバイト単位のオフセットに直す
+     */
+    protected static PointerBuffer toIndexOffsets(IntBuffer firsts) {
+        if (offsets == null)
+            offsets = BufferUtils.createPointerBuffer(Math.max(firsts.remaining(), 256));
+        if (offsets.capacity() < firsts.remaining())
+            offsets = BufferUtils.createPointerBuffer(Math.max(firsts.remaining(), offsets.capacity() * 2));
+        offsets.clear();
+        for (int i = firsts.position(); i < firsts.limit(); i++) {
+            offsets.put((long) firsts.get(i) * Integer.BYTES);
+        }
+        offsets.flip();
+        return offsets;
+    }
+}
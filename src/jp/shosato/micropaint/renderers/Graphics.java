@@ -0,0 +1,454 @@
+package jp.shosato.micropaint.renderers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.joml.Matrix3x2d;
+import org.joml.Matrix3x2dc;
+import org.joml.Vector2d;
+import org.joml.Vector4d;
+
+import jp.shosato.micropaint.utils.PointList;
+
+/**
+ * 描画の窓口。要素はOpenGLを直接呼ばず、ここに図形を渡して描く
+ * * 変形はCPU側の行列スタックで管理し、描画するときに各実装へ渡す
+ * * 実装はシステムプロパティ micropaint.renderer で選ぶ（core: OpenGL 3.3 core + シェーダ、legacy: 固定機能）
+ */
+public abstract class Graphics {
+
+    /**
+     * 実装を選ぶシステムプロパティ
+     */
+    public static final String RENDERER_PROPERTY = "micropaint.renderer";
+
+    /**
+     * マルチサンプルアンチエイリアスのサンプル数を指定するシステムプロパティ。0か1なら使わない
+     */
+    public static final String SAMPLES_PROPERTY = "micropaint.samples";
+
+    private static final int DEFAULT_SAMPLES = 4;
+
+    private static Graphics current;
+
+    /**
+     * 描画中の実装。ウィンドウの作成時に設定される
+     */
+    public static Graphics get() {
+        return current;
+    }
+
+    public static void setCurrent(Graphics graphics) {
+        current = graphics;
+    }
+
+    /**
+     * システムプロパティで指定された実装を作る。コンテキストを作る前に呼び、GLの呼び出しはinitまで行わない
+     */
+    public static Graphics create() {
+        String name = System.getProperty(RENDERER_PROPERTY, "core");
+        Graphics graphics;
+        switch (name) {
+            case "core":
+                graphics = new CoreGraphics();
+                break;
+            case "legacy":
+                graphics = new LegacyGraphics();
+                break;
+            default:
+                System.err.println("Unknown renderer: " + name + ", falling back to legacy");
+                graphics = new LegacyGraphics();
+                break;
+        }
+        graphics.setSamples(Integer.getInteger(SAMPLES_PROPERTY, DEFAULT_SAMPLES));
+        return graphics;
+    }
+
+    /**
+     * 選択枠などの破線の点灯・消灯の長さ（ピクセル）
+     */
+    public static final float DASH_LENGTH = 8;
+
+    /**
+     * 現在の変形
+     */
+    protected final Matrix3x2d matrix = new Matrix3x2d();
+    /**
+     * pushMatrixで退避した行列。要素は使い回して描画中に生成しない
+     */
+    private final ArrayList<Matrix3x2d> matrixStack = new ArrayList<>();
+    private int matrixDepth = 0;
+
+    /**
+     * 画面とオフスクリーンの描画先のサンプル数
+     */
+    private int samples = 0;
+
+    protected float red = 1, green = 1, blue = 1, alpha = 1;
+
+    /**
+     * 描画先の大きさ（座標の単位）と、y軸が下向きか
+     */
+    protected int targetWidth = 1;
+    protected int targetHeight = 1;
+    protected boolean targetYDown = true;
+    /**
+     * 描画先の実際のピクセル数。HiDPIの画面ではフレームバッファが座標の単位より細かい
+     */
+    protected int targetPixelWidth = 1;
+    protected int targetPixelHeight = 1;
+
+    private static class Target {
+        int width;
+        int height;
+        int pixelWidth;
+        int pixelHeight;
+        boolean yDown;
+        boolean scissorEnabled;
+        final int[] scissor = new int[4];
+    }
+
+    private final ArrayList<Target> targetStack = new ArrayList<>();
+    private int targetDepth = 0;
+
+    protected boolean scissorEnabled = false;
+    protected final int[] scissor = new int[4];
+
+    /**
+     * OpenGL 3.3 coreのコンテキストが必要か
+     */
+    public boolean requiresCoreProfile() {
+        return false;
+    }
+
+    /**
+     * 頂点バッファやテクスチャなどGPU上の資源を描けるか。描けなければ呼び出し側が直接描く
+     */
+    public boolean supportsGpuResources() {
+        return false;
+    }
+
+    /**
+     * マルチサンプルのサンプル数。0か1ならアンチエイリアスしない
+     */
+    public int getSamples() {
+        return samples;
+    }
+
+    public void setSamples(int samples) {
+        this.samples = Math.max(0, samples);
+    }
+
+    /**
+     * コンテキストを作った後に一度だけ呼ぶ
+     */
+    public abstract void init();
+
+    /**
+     * フレームの描画を始める。画面を消去し、行列を初期化する
+     */
+    public void beginFrame(int width, int height) {
+        beginFrame(width, height, width, height);
+    }
+
+    /**
+     * 座標の単位とピクセルが一致しない描画先（HiDPIの画面）でフレームの描画を始める
+     * @param width 座標の単位での幅。要素の座標はこれを基準にする
+     * @param pixelWidth フレームバッファのピクセル数（glfwGetFramebufferSize）
+     */
+    public void beginFrame(int width, int height, int pixelWidth, int pixelHeight) {
+        targetWidth = width;
+        targetHeight = height;
+        targetPixelWidth = pixelWidth;
+        targetPixelHeight = pixelHeight;
+        targetYDown = true;
+        matrix.identity();
+        matrixDepth = 0;
+        targetDepth = 0;
+        scissorEnabled = false;
+    }
+
+    /**
+     * フレームの描画を終える。溜めている図形を全て描く
+     */
+    public void endFrame() {
+        flush();
+    }
+
+    /**
+     * 溜めている図形を描く。GLの状態を直接変える前に呼ぶ
+     */
+    public abstract void flush();
+
+    public void dispose() {
+    }
+
+    /* ---- 行列 ---- */
+
+    public void pushMatrix() {
+        if (matrixDepth == matrixStack.size())
+            matrixStack.add(new Matrix3x2d());
+        matrixStack.get(matrixDepth++).set(matrix);
+    }
+
+    public void popMatrix() {
+        matrix.set(matrixStack.get(--matrixDepth));
+    }
+
+    public void translate(double x, double y) {
+        matrix.translate(x, y);
+    }
+
+    public void scale(double x, double y) {
+        matrix.scale(x, y);
+    }
+
+    /**
+     * 度数法。glRotated(degree, 0, 0, -1)と同じ向き
+     */
+    public void rotate(double degree) {
+        matrix.rotate(-Math.toRadians(degree));
+    }
+
+    /**
+     * 要素の変形（中心を基準に移動・拡大・回転）
+     */
+    public void transform(Vector2d dimension, Vector2d translate, Vector2d scale, double rotate) {
+        translate(dimension.x / 2 + translate.x, dimension.y / 2 + translate.y);
+        scale(scale.x, scale.y);
+        rotate(rotate);
+        translate(-dimension.x / 2, -dimension.y / 2);
+    }
+
+    /**
+     * 要素がキャッシュしている変形の行列をかける
+     */
+    public void transform(Matrix3x2dc m) {
+        matrix.mul(m);
+    }
+
+    /**
+     * 任意の点を中心にした変形
+     */
+    public void transformAt(Vector2d center, Vector2d translate, Vector2d scale, double rotate) {
+        translate(center.x + translate.x, center.y + translate.y);
+        scale(scale.x, scale.y);
+        rotate(rotate);
+        translate(-center.x, -center.y);
+    }
+
+    public Matrix3x2dc getMatrix() {
+        return matrix;
+    }
+
+    /* ---- 描画先 ---- */
+
+    /**
+     * オフスクリーンなど別の描画先に切り替える。行列とシザーは退避して初期化する
+     * 切り替えた先では座標の単位とピクセルが一致する
+     * @param yDown y軸が下向きか。テクスチャとして貼るときの向きに合わせて選ぶ
+     */
+    public void pushTarget(int width, int height, boolean yDown) {
+        flush();
+        if (targetDepth == targetStack.size())
+            targetStack.add(new Target());
+        Target saved = targetStack.get(targetDepth++);
+        saved.width = targetWidth;
+        saved.height = targetHeight;
+        saved.pixelWidth = targetPixelWidth;
+        saved.pixelHeight = targetPixelHeight;
+        saved.yDown = targetYDown;
+        saved.scissorEnabled = scissorEnabled;
+        System.arraycopy(scissor, 0, saved.scissor, 0, 4);
+
+        pushMatrix();
+        matrix.identity();
+        targetWidth = width;
+        targetHeight = height;
+        targetPixelWidth = width;
+        targetPixelHeight = height;
+        targetYDown = yDown;
+        applyViewport();
+        disableScissor();
+    }
+
+    public void popTarget() {
+        flush();
+        Target saved = targetStack.get(--targetDepth);
+        targetWidth = saved.width;
+        targetHeight = saved.height;
+        targetPixelWidth = saved.pixelWidth;
+        targetPixelHeight = saved.pixelHeight;
+        targetYDown = saved.yDown;
+        popMatrix();
+        applyViewport();
+        if (saved.scissorEnabled) {
+            setScissor(saved.scissor[0], saved.scissor[1], saved.scissor[2], saved.scissor[3]);
+        } else {
+            disableScissor();
+        }
+    }
+
+    protected abstract void applyViewport();
+
+    /**
+     * 描画範囲の制限（glScissorと同じく左下原点の、描画先の座標の単位）
+     */
+    public void setScissor(int x, int y, int w, int h) {
+        scissorEnabled = true;
+        scissor[0] = x;
+        scissor[1] = y;
+        scissor[2] = w;
+        scissor[3] = h;
+    }
+
+    public void disableScissor() {
+        scissorEnabled = false;
+    }
+
+    /* ---- 色 ---- */
+
+    public void setColor(double r, double g, double b, double a) {
+        red = (float) r;
+        green = (float) g;
+        blue = (float) b;
+        alpha = (float) a;
+    }
+
+    public void setColor(Vector4d color) {
+        setColor(color.x, color.y, color.z, color.w);
+    }
+
+    /* ---- 図形 ---- */
+
+    /**
+     * 三角形の頂点(x, y)の並びを現在の色で塗る
+     */
+    public abstract void fillTriangles(float[] vertices, int vertexCount);
+
+    /**
+     * 頂点番号で指定した三角形を塗る
+     */
+    public abstract void fillTriangles(float[] vertices, int[] indices, int indexCount);
+
+    /**
+     * 点の列を三角形の頂点の並びとして塗る
+     */
+    public void fillTriangles(PointList vertices) {
+        fillTriangles(toArray(vertices), vertices.size());
+    }
+
+    /**
+     * 点の列の頂点番号で指定した三角形を塗る
+     */
+    public void fillTriangles(PointList vertices, int[] indices, int indexCount) {
+        fillTriangles(toArray(vertices), indices, indexCount);
+    }
+
+    /**
+     * ネイティブメモリに置いた点を配列に写すための一時領域。描画はシングルスレッドなので使い回す
+     */
+    private float[] pointScratch = new float[256];
+
+    /**
+     * 点の列の座標の配列。ヒープにあればそのまま、ネイティブメモリにあれば一時領域に写して返す
+     */
+    private float[] toArray(PointList points) {
+        float[] array = points.getArray();
+        if (array != null)
+            return array;
+        if (pointScratch.length < points.size() * 2)
+            pointScratch = new float[Math.max(points.size() * 2, pointScratch.length * 2)];
+        points.getBuffer().get(pointScratch, 0, points.size() * 2);
+        return pointScratch;
+    }
+
+    /**
+     * 頂点ごとに色(r, g, b, a)を持つ三角形を塗る
+     */
+    public abstract void fillColoredTriangles(float[] vertices, float[] colors, int vertexCount);
+
+    /**
+     * 2頂点ずつの線分を描く。破線はLineBatchが線分に切ってから渡す
+     * @param width 太さ（ピクセル）
+     */
+    public abstract void drawLines(float[] vertices, int vertexCount, float width);
+
+    /**
+     * 点を正方形で描く
+     * @param size 一辺の長さ（ピクセル）
+     */
+    public abstract void drawPoints(float[] vertices, int vertexCount, float size);
+
+    /**
+     * グリフアトラスの文字を描く
+     * @param vertices (x, y, u, v)の並び
+     */
+    public abstract void drawText(GlyphAtlas atlas, float[] vertices, int vertexCount);
+
+    private final float[] rectangle = new float[12];
+
+    public void fillRect(double x0, double y0, double x1, double y1) {
+        float[] v = rectangle;
+        v[0] = (float) x0;
+        v[1] = (float) y0;
+        v[2] = (float) x1;
+        v[3] = (float) y0;
+        v[4] = (float) x1;
+        v[5] = (float) y1;
+        v[6] = (float) x0;
+        v[7] = (float) y0;
+        v[8] = (float) x1;
+        v[9] = (float) y1;
+        v[10] = (float) x0;
+        v[11] = (float) y1;
+        fillTriangles(v, 6);
+    }
+
+    public void fillRect(Vector2d dimension) {
+        fillRect(0, 0, dimension.x, dimension.y);
+    }
+
+    private final float[] line = new float[4];
+
+    public void drawLine(double x0, double y0, double x1, double y1, float width) {
+        line[0] = (float) x0;
+        line[1] = (float) y0;
+        line[2] = (float) x1;
+        line[3] = (float) y1;
+        drawLines(line, 2, width);
+    }
+
+    /* ---- 実装用 ---- */
+
+    /**
+     * 描画先の座標(x, y)を正規化デバイス座標に移す行列（列優先の4x4）
+     */
+    protected void getProjection(float[] out) {
+        Arrays.fill(out, 0);
+        out[0] = 2f / targetWidth;
+        out[5] = targetYDown ? -2f / targetHeight : 2f / targetHeight;
+        out[10] = 1;
+        out[12] = -1;
+        out[13] = targetYDown ? 1 : -1;
+        out[15] = 1;
+    }
+
+    /**
+     * 投影と現在の変形を合わせた行列（列優先の4x4）
+     */
+    protected void getTransform(float[] out) {
+        float sx = 2f / targetWidth;
+        float sy = targetYDown ? -2f / targetHeight : 2f / targetHeight;
+        float ty = targetYDown ? 1 : -1;
+        Arrays.fill(out, 0);
+        out[0] = (float) (matrix.m00 * sx);
+        out[1] = (float) (matrix.m01 * sy);
+        out[4] = (float) (matrix.m10 * sx);
+        out[5] = (float) (matrix.m11 * sy);
+        out[10] = 1;
+        out[12] = (float) (matrix.m20 * sx - 1);
+        out[13] = (float) (matrix.m21 * sy + ty);
+        out[15] = 1;
+    }
+}
@@ -0,0 +1,77 @@
+package jp.shosato.micropaint.renderers;
+
+import static org.lwjgl.opengl.GL15.*;
+
+import java.nio.IntBuffer;
+
+import org.lwjgl.BufferUtils;
+
+/**
+ * インデックスバッファ(IBO)のラッパ
+ */
+public class IndexBuffer {
+    private final int id;
+    /**
+     * 確保済みのインデックス数
+     */
+    private int capacity = 0;
+
+    public IndexBuffer() {
+        id = glGenBuffers();
+    }
+
+    /**
+     * バッファを作り直して全インデックスを転送
+     */
+    public void upload(int[] indices, int indexCount, int capacity) {
+        this.capacity = Math.max(indexCount, capacity);
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, id);
+        glBufferData(GL_ELEMENT_ARRAY_BUFFER, (long) this.capacity * Integer.BYTES, GL_STATIC_DRAW);
+        if (indexCount > 0) {
+            glBufferSubData(GL_ELEMENT_ARRAY_BUFFER, 0, toIntBuffer(indices, indexCount));
+        }
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0);
+    }
+
+    /**
+     * 指定した位置から部分的に転送
+     */
+    public void update(int firstIndex, int[] indices, int indexCount) {
+        assert (firstIndex + indexCount <= capacity);
+
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, id);
+        glBufferSubData(GL_ELEMENT_ARRAY_BUFFER, (long) firstIndex * Integer.BYTES, toIntBuffer(indices, indexCount));
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public void bind() {
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, id);
+    }
+
+    public static void unbind() {
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0);
+    }
+
+    public void delete() {
+        glDeleteBuffers(id);
+    }
+
+    /**
+     * 転送用の一時バッファ。GLはシングルスレッドなので使い回す
+     */
+    private static IntBuffer scratch = BufferUtils.createIntBuffer(1024);
+
+    private static IntBuffer toIntBuffer(int[] indices, int indexCount) {
+        if (scratch.capacity() < indexCount) {
+            scratch = BufferUtils.createIntBuffer(Math.max(indexCount, scratch.capacity() * 2));
+        }
+        scratch.clear();
+        scratch.put(indices, 0, indexCount);
+        scratch.flip();
+        return scratch;
+    }
+}
@@ -0,0 +1,131 @@
+package jp.shosato.micropaint.renderers;
+
+import static org.lwjgl.opengl.GL30.*;
+
+import java.nio.ByteBuffer;
+
+/**
+ * オフスクリーンのフレームバッファに描いた内容をテクスチャとして保持し、毎フレーム貼り付けるだけにする
+ * 描画内容の座標系は、貼り付け先の要素の座標系（左上原点、1単位1ピクセル）
+ */
+public class LayerCache {
+    private int framebuffer = 0;
+    private int texture = 0;
+    private int width = 0;
+    private int height = 0;
+
+    /**
+     * begin時に束縛されていたフレームバッファ。endで戻す
+     */
+    private int previousFramebuffer = 0;
+
+    /**
+     * サンプル数が指定されていれば、ここに描いてからテクスチャへ解決する
+     */
+    private final MultisampleTarget multisample = new MultisampleTarget();
+    private boolean multisampled = false;
+
+    private final float[] quad = new float[24];
+
+    /**
+     * キャッシュへの描画を開始。以降の描画は要素の座標系でキャッシュに書き込まれる
+     */
+    public void begin(int w, int h) {
+        w = Math.max(1, w);
+        h = Math.max(1, h);
+        if (framebuffer == 0 || w != width || h != height) {
+            allocate(w, h);
+        }
+
+        /* テクスチャの1行目が上端になるよう、y軸は上向きで描く */
+        Graphics g = Graphics.get();
+        g.pushTarget(width, height, false);
+        previousFramebuffer = glGetInteger(GL_FRAMEBUFFER_BINDING);
+        multisampled = multisample.prepare(width, height, g.getSamples());
+        if (multisampled) {
+            multisample.bind();
+        } else {
+            glBindFramebuffer(GL_FRAMEBUFFER, framebuffer);
+        }
+        glClearColor(0, 0, 0, 0);
+        glClear(GL_COLOR_BUFFER_BIT);
+
+        /* 透明な下地に重ねていくので、色はアルファ乗算済みで蓄積する */
+        glBlendFuncSeparate(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA, GL_ONE, GL_ONE_MINUS_SRC_ALPHA);
+    }
+
+    /**
+     * キャッシュへの描画を終了し、元の描画先に戻す
+     */
+    public void end() {
+        Graphics g = Graphics.get();
+        g.flush();
+        glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
+        if (multisampled)
+            multisample.resolve(framebuffer);
+        glBindFramebuffer(GL_FRAMEBUFFER, previousFramebuffer);
+        g.popTarget();
+    }
+
+    /**
+     * キャッシュを(0, 0)-(width, height)に貼り付ける
+     */
+    public void draw() {
+        GpuGraphics g = GpuGraphics.current();
+        if (texture == 0 || g == null)
+            return;
+
+        float w = width, h = height;
+        float[] v = quad;
+        put(v, 0, 0, 0, 0, 0);
+        put(v, 1, w, 0, 1, 0);
+        put(v, 2, w, h, 1, 1);
+        put(v, 3, 0, 0, 0, 0);
+        put(v, 4, w, h, 1, 1);
+        put(v, 5, 0, h, 0, 1);
+
+        g.setColor(1, 1, 1, 1);
+        g.drawTexture(texture, v, 6, true);
+    }
+
+    private static void put(float[] v, int vertex, float x, float y, float u, float t) {
+        v[vertex * 4] = x;
+        v[vertex * 4 + 1] = y;
+        v[vertex * 4 + 2] = u;
+        v[vertex * 4 + 3] = t;
+    }
+
+    private void allocate(int w, int h) {
+        dispose();
+        width = w;
+        height = h;
+
+        texture = glGenTextures();
+        glBindTexture(GL_TEXTURE_2D, texture);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+        glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA8, width, height, 0, GL_RGBA, GL_UNSIGNED_BYTE, (ByteBuffer) null);
+        glBindTexture(GL_TEXTURE_2D, 0);
+
+        int previous = glGetInteger(GL_FRAMEBUFFER_BINDING);
+        framebuffer = glGenFramebuffers();
+        glBindFramebuffer(GL_FRAMEBUFFER, framebuffer);
+        glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, texture, 0);
+        if (glCheckFramebufferStatus(GL_FRAMEBUFFER) != GL_FRAMEBUFFER_COMPLETE) {
+            System.err.println("LayerCache: framebuffer is incomplete");
+        }
+        glBindFramebuffer(GL_FRAMEBUFFER, previous);
+    }
+
+    public void dispose() {
+        multisample.dispose();
+        if (framebuffer != 0)
+            glDeleteFramebuffers(framebuffer);
+        if (texture != 0)
+            glDeleteTextures(texture);
+        framebuffer = 0;
+        texture = 0;
+    }
+}
@@ -0,0 +1,169 @@
+package jp.shosato.micropaint.renderers;
+
+import static org.lwjgl.opengl.GL15.*;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import org.lwjgl.BufferUtils;
+
+/**
+ * 固定機能パイプラインによる実装。比較用に残している
+ * 図形は受け取るたびに即時モードで描く
+ */
+public class LegacyGraphics extends GpuGraphics {
+
+    private final float[] transform = new float[16];
+    private final FloatBuffer transformBuffer = BufferUtils.createFloatBuffer(16);
+
+    @Override
+    public void init() {
+        glMatrixMode(GL_PROJECTION);
+        glLoadIdentity();
+        glMatrixMode(GL_MODELVIEW);
+        glLoadIdentity();
+    }
+
+    @Override
+    public void beginFrame(int width, int height, int pixelWidth, int pixelHeight) {
+        super.beginFrame(width, height, pixelWidth, pixelHeight);
+        applyViewport();
+        glDisable(GL_SCISSOR_TEST);
+
+        glClearColor(0, 0, 0, 0);
+        glClear(GL_COLOR_BUFFER_BIT);
+
+        // アンチエイリアシングは描画先のマルチサンプルで行う
+        glEnable(GL_BLEND);
+        glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void setScissor(int x, int y, int w, int h) {
+        super.setScissor(x, y, w, h);
+        applyScissor(x, y, w, h);
+    }
+
+    @Override
+    public void disableScissor() {
+        super.disableScissor();
+        glDisable(GL_SCISSOR_TEST);
+    }
+
+    /**
+     * CPU側の行列をモデルビュー行列に設定
+     */
+    private void loadTransform() {
+        getTransform(transform);
+        transformBuffer.clear();
+        transformBuffer.put(transform).flip();
+        glLoadMatrixf(transformBuffer);
+    }
+
+    @Override
+    public void fillTriangles(float[] vertices, int vertexCount) {
+        loadTransform();
+        glColor4f(red, green, blue, alpha);
+        glBegin(GL_TRIANGLES);
+        for (int i = 0; i < vertexCount * 2; i += 2) {
+            glVertex2f(vertices[i], vertices[i + 1]);
+        }
+        glEnd();
+    }
+
+    @Override
+    public void fillTriangles(float[] vertices, int[] indices, int indexCount) {
+        loadTransform();
+        glColor4f(red, green, blue, alpha);
+        glBegin(GL_TRIANGLES);
+        for (int i = 0; i < indexCount; i++) {
+            glVertex2f(vertices[indices[i] * 2], vertices[indices[i] * 2 + 1]);
+        }
+        glEnd();
+    }
+
+    @Override
+    public void fillColoredTriangles(float[] vertices, float[] colors, int vertexCount) {
+        loadTransform();
+        glBegin(GL_TRIANGLES);
+        for (int i = 0; i < vertexCount; i++) {
+            glColor4f(colors[i * 4], colors[i * 4 + 1], colors[i * 4 + 2], colors[i * 4 + 3]);
+            glVertex2f(vertices[i * 2], vertices[i * 2 + 1]);
+        }
+        glEnd();
+    }
+
+    @Override
+    public void drawLines(float[] vertices, int vertexCount, float width) {
+        loadTransform();
+        glLineWidth(width);
+        glColor4f(red, green, blue, alpha);
+        glBegin(GL_LINES);
+        for (int i = 0; i < vertexCount * 2; i += 2) {
+            glVertex2f(vertices[i], vertices[i + 1]);
+        }
+        glEnd();
+    }
+
+    @Override
+    public void drawPoints(float[] vertices, int vertexCount, float size) {
+        loadTransform();
+        glPointSize(size);
+        glColor4f(red, green, blue, alpha);
+        glBegin(GL_POINTS);
+        for (int i = 0; i < vertexCount * 2; i += 2) {
+            glVertex2f(vertices[i], vertices[i + 1]);
+        }
+        glEnd();
+    }
+
+    @Override
+    public void drawTexture(int texture, float[] vertices, int vertexCount, boolean premultiplied) {
+        loadTransform();
+        if (premultiplied)
+            glBlendFunc(GL_ONE, GL_ONE_MINUS_SRC_ALPHA);
+        glBindTexture(GL_TEXTURE_2D, texture);
+        glEnable(GL_TEXTURE_2D);
+        glColor4f(red, green, blue, alpha);
+        glBegin(GL_TRIANGLES);
+        for (int i = 0; i < vertexCount * 4; i += 4) {
+            glTexCoord2f(vertices[i + 2], vertices[i + 3]);
+            glVertex2f(vertices[i], vertices[i + 1]);
+        }
+        glEnd();
+        glDisable(GL_TEXTURE_2D);
+        glBindTexture(GL_TEXTURE_2D, 0);
+        if (premultiplied)
+            glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
+    }
+
+    @Override
+    public void drawBuffer(VertexBuffer vertices, VertexBuffer colors, IndexBuffer indices, IntBuffer firsts,
+            IntBuffer counts) {
+        loadTransform();
+        glColor4f(red, green, blue, alpha);
+        if (colors != null) {
+            glEnableClientState(GL_COLOR_ARRAY);
+            colors.bind();
+            glColorPointer(4, GL_FLOAT, 0, 0L);
+        }
+        glEnableClientState(GL_VERTEX_ARRAY);
+        vertices.bind();
+        glVertexPointer(2, GL_FLOAT, 0, 0L);
+        if (indices != null) {
+            indices.bind();
+            glMultiDrawElements(GL_TRIANGLES, counts, GL_UNSIGNED_INT, toIndexOffsets(firsts));
+            IndexBuffer.unbind();
+        } else {
+            glMultiDrawArrays(GL_TRIANGLES, firsts, counts);
+        }
+        VertexBuffer.unbind();
+        glDisableClientState(GL_VERTEX_ARRAY);
+        if (colors != null)
+            glDisableClientState(GL_COLOR_ARRAY);
+    }
+}
@@ -0,0 +1,105 @@
+package jp.shosato.micropaint.renderers;
+
+import java.util.Arrays;
+
+import org.joml.Matrix3x2dc;
+
+/**
+ * 線分を溜めておき、まとめて1回で描く
+ */
+public class LineBatch {
+    private float[] vertices = new float[256];
+    private int vertexCount = 0;
+
+    /**
+     * 破線に切った線分（線分と同じ座標系）。線分か、切ったときの変形の拡大・回転が変わるまで使い回す
+     * 破線の長さは描画先の単位なので平行移動だけなら作り直さない
+     */
+    private float[] dashes = new float[256];
+    private int dashVertexCount = 0;
+    private boolean dashesValid = false;
+    private double dashM00, dashM01, dashM10, dashM11;
+
+    public void clear() {
+        vertexCount = 0;
+        dashesValid = false;
+    }
+
+    public void addLine(double x0, double y0, double x1, double y1) {
+        if ((vertexCount + 2) * 2 > vertices.length) {
+            vertices = Arrays.copyOf(vertices, vertices.length * 2);
+        }
+        int i = vertexCount * 2;
+        vertices[i++] = (float) x0;
+        vertices[i++] = (float) y0;
+        vertices[i++] = (float) x1;
+        vertices[i++] = (float) y1;
+        vertexCount += 2;
+        dashesValid = false;
+    }
+
+    /**
+     * 長方形の枠
+     */
+    public void addRectangle(double left, double top, double right, double bottom) {
+        addLine(left, top, right, top);
+        addLine(right, top, right, bottom);
+        addLine(right, bottom, left, bottom);
+        addLine(left, bottom, left, top);
+    }
+
+    public boolean isEmpty() {
+        return vertexCount == 0;
+    }
+
+    /**
+     * 現在の色で描く
+     * @param width 太さ（ピクセル）
+     * @param dashed 破線にするか
+     */
+    public void draw(float width, boolean dashed) {
+        if (vertexCount == 0)
+            return;
+        Graphics g = Graphics.get();
+        if (!dashed) {
+            g.drawLines(vertices, vertexCount, width);
+            return;
+        }
+        Matrix3x2dc m = g.getMatrix();
+        if (!dashesValid || m.m00() != dashM00 || m.m01() != dashM01 || m.m10() != dashM10 || m.m11() != dashM11)
+            buildDashes(m);
+        g.drawLines(dashes, dashVertexCount, width);
+    }
+
+    /**
+     * 線分を描画先でGraphics.DASH_LENGTHごとの点灯・消灯に切る。各線分は始点から点灯で始まる
+     */
+    private void buildDashes(Matrix3x2dc m) {
+        dashVertexCount = 0;
+        for (int i = 0; i + 1 < vertexCount; i += 2) {
+            float x0 = vertices[i * 2], y0 = vertices[i * 2 + 1];
+            float x1 = vertices[i * 2 + 2], y1 = vertices[i * 2 + 3];
+            float dx = x1 - x0, dy = y1 - y0;
+            float length = (float) Math.hypot(m.m00() * dx + m.m10() * dy, m.m01() * dx + m.m11() * dy);
+            if (length == 0)
+                continue;
+            for (float s = 0; s < length; s += Graphics.DASH_LENGTH * 2) {
+                float e = Math.min(s + Graphics.DASH_LENGTH, length);
+                if ((dashVertexCount + 2) * 2 > dashes.length) {
+                    dashes = Arrays.copyOf(dashes, dashes.length * 2);
+                }
+                int j = dashVertexCount * 2;
+                dashes[j++] = x0 + dx * (s / length);
+                dashes[j++] = y0 + dy * (s / length);
+                dashes[j++] = x0 + dx * (e / length);
+                dashes[j++] = y0 + dy * (e / length);
+                dashVertexCount += 2;
+            }
+        }
+        dashM00 = m.m00();
+        dashM01 = m.m01();
+        dashM10 = m.m10();
+        dashM11 = m.m11();
+        dashesValid = true;
+    }
+}
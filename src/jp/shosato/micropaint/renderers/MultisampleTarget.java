@@ -0,0 +1,110 @@
+package jp.shosato.micropaint.renderers;
+
+import static org.lwjgl.opengl.GL30.*;
+
+/**
+ * マルチサンプルのフレームバッファ。ここに描いてから、1回のブリットで通常のフレームバッファへ解決する
+ * 図形ごとのスムージングと違って継ぎ目が出ず、負荷もサンプル数で決まる
+ */
+public class MultisampleTarget {
+    private int framebuffer = 0;
+    private int colorBuffer = 0;
+    private int width = 0;
+    private int height = 0;
+    private int samples = 0;
+    /**
+     * 作れなかったサンプル数。毎フレーム作り直そうとしないよう覚えておく
+     */
+    private int unsupportedSamples = 0;
+    /**
+     * ドライバのサンプル数の上限。問い合わせは同期を伴うので一度だけ行う
+     */
+    private static int maxSamples = -1;
+
+    /**
+     * 大きさかサンプル数が変わったら作り直す。ドライバの上限を超えるサンプル数は切り詰める
+     * @return 使えるならtrue。サンプル数が1以下なら作らない
+     */
+    public boolean prepare(int w, int h, int requestedSamples) {
+        w = Math.max(1, w);
+        h = Math.max(1, h);
+        if (requestedSamples <= 1) {
+            dispose();
+            return false;
+        }
+        if (maxSamples < 0)
+            maxSamples = glGetInteger(GL_MAX_SAMPLES);
+        int s = Math.min(requestedSamples, maxSamples);
+        if (s <= 1 || s == unsupportedSamples) {
+            dispose();
+            return false;
+        }
+        if (framebuffer == 0 || w != width || h != height || s != samples) {
+            return allocate(w, h, s);
+        }
+        return true;
+    }
+
+    public int getFramebuffer() {
+        return framebuffer;
+    }
+
+    public int getSamples() {
+        return samples;
+    }
+
+    /**
+     * 以降の描画をこのフレームバッファに向ける
+     */
+    public void bind() {
+        glBindFramebuffer(GL_FRAMEBUFFER, framebuffer);
+    }
+
+    /**
+     * 描いた内容をdestinationの(0, 0)-(width, height)へ解決し、destinationを束縛した状態で戻る
+     */
+    public void resolve(int destination) {
+        glBindFramebuffer(GL_READ_FRAMEBUFFER, framebuffer);
+        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, destination);
+        glBlitFramebuffer(0, 0, width, height, 0, 0, width, height, GL_COLOR_BUFFER_BIT, GL_NEAREST);
+        glBindFramebuffer(GL_FRAMEBUFFER, destination);
+    }
+
+    /**
+     * 作れなければ片付けてfalseを返す。呼び出し側はマルチサンプルなしで描く
+     */
+    private boolean allocate(int w, int h, int s) {
+        dispose();
+        width = w;
+        height = h;
+        samples = s;
+
+        colorBuffer = glGenRenderbuffers();
+        glBindRenderbuffer(GL_RENDERBUFFER, colorBuffer);
+        glRenderbufferStorageMultisample(GL_RENDERBUFFER, samples, GL_RGBA8, width, height);
+        glBindRenderbuffer(GL_RENDERBUFFER, 0);
+
+        int previous = glGetInteger(GL_FRAMEBUFFER_BINDING);
+        framebuffer = glGenFramebuffers();
+        glBindFramebuffer(GL_FRAMEBUFFER, framebuffer);
+        glFramebufferRenderbuffer(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_RENDERBUFFER, colorBuffer);
+        boolean complete = glCheckFramebufferStatus(GL_FRAMEBUFFER) == GL_FRAMEBUFFER_COMPLETE;
+        glBindFramebuffer(GL_FRAMEBUFFER, previous);
+        if (!complete) {
+            System.err.println("MultisampleTarget: framebuffer is incomplete, " + s + " samples");
+            dispose();
+            unsupportedSamples = s;
+        }
+        return complete;
+    }
+
+    public void dispose() {
+        if (framebuffer != 0)
+            glDeleteFramebuffers(framebuffer);
+        if (colorBuffer != 0)
+            glDeleteRenderbuffers(colorBuffer);
+        framebuffer = 0;
+        colorBuffer = 0;
+        samples = 0;
+    }
+}
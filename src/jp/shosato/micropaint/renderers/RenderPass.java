@@ -0,0 +1,80 @@
+package jp.shosato.micropaint.renderers;
+
+import org.joml.Vector4d;
+
+import jp.shosato.micropaint.utils.PointList;
+
+/**
+ * 図形の描画単位。プリミティブの種類・線幅が同じパスは、色が違っても一度の描画呼び出しにまとめられる
+ */
+public class RenderPass {
+    public final int mode;
+    public final Vector4d color;
+    public final float lineWidth;
+    /**
+     * 頂点座標(x, y)の並び。頂点がネイティブメモリにあるならnull
+     */
+    public final float[] vertices;
+    /**
+     * ネイティブメモリに置いた頂点。nullでなければverticesの代わりにこの中身を写さずに転送する
+     */
+    public final PointList offHeapVertices;
+    public final int vertexCount;
+    /**
+     * 頂点番号の並び。nullならインデックスを使わずに描く
+     */
+    public final int[] indices;
+
+    public RenderPass(int mode, Vector4d color, float lineWidth, float[] vertices, int vertexCount, int[] indices) {
+        this(mode, color, lineWidth, vertices, null, vertexCount, indices);
+    }
+
+    /**
+     * 点の列の中身を写さずにそのまま使う
+     */
+    public RenderPass(int mode, Vector4d color, float lineWidth, PointList vertices) {
+        this(mode, color, lineWidth, vertices, null);
+    }
+
+    public RenderPass(int mode, Vector4d color, float lineWidth, PointList vertices, int[] indices) {
+        this(mode, color, lineWidth, vertices.getArray(), vertices.isOffHeap() ? vertices : null, vertices.size(),
+                indices);
+    }
+
+    private RenderPass(int mode, Vector4d color, float lineWidth, float[] vertices, PointList offHeapVertices,
+            int vertexCount, int[] indices) {
+        this.mode = mode;
+        this.color = new Vector4d(color);
+        this.lineWidth = lineWidth;
+        this.vertices = vertices;
+        this.offHeapVertices = offHeapVertices;
+        this.vertexCount = vertexCount;
+        this.indices = indices;
+    }
+
+    public boolean isOffHeap() {
+        return offHeapVertices != null;
+    }
+
+    public boolean isIndexed() {
+        return indices != null;
+    }
+
+    public int getIndexCount() {
+        return indices != null ? indices.length : 0;
+    }
+
+    /**
+     * 描画状態が同じならまとめて描画できる。色は頂点ごとに持つので含めない
+     */
+    public boolean hasSameState(RenderPass other) {
+        return mode == other.mode && lineWidth == other.lineWidth && isIndexed() == other.isIndexed();
+    }
+
+    /**
+     * 描画状態と頂点数が同じなら、バッファ上の配置を変えずに中身だけ更新できる
+     */
+    public boolean hasSameLayout(RenderPass other) {
+        return hasSameState(other) && vertexCount == other.vertexCount && getIndexCount() == other.getIndexCount();
+    }
+}
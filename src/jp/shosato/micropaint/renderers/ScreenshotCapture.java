@@ -0,0 +1,245 @@
+package jp.shosato.micropaint.renderers;
+
+import static org.lwjgl.opengl.GL32.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.lwjgl.opengl.GL;
+
+/**
+ * 画面の一部を画像ファイルに保存する
+ * * 描画直後にピクセルバッファオブジェクト(PBO)へ非同期に読み出し、GPUの転送完了を待たずに描画を続ける
+ * * 転送が終わったフレームで取り出し、上下反転・並べ替え・エンコード・書き込みは別スレッドで行う
+ */
+public class ScreenshotCapture {
+
+    private static class Request {
+        final int x;
+        final int y;
+        final int width;
+        final int height;
+        final String path;
+        int pixelBuffer = 0;
+        /**
+         * 読み出し完了を知るための同期オブジェクト。使えない環境では0
+         */
+        long fence = 0;
+
+        Request(int x, int y, int width, int height, String path) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.path = path;
+        }
+    }
+
+    /**
+     * 次の描画後に読み出す要求
+     */
+    private final ArrayDeque<Request> pending = new ArrayDeque<>();
+    /**
+     * GPUからの転送を待っている要求
+     */
+    private final ArrayDeque<Request> reading = new ArrayDeque<>();
+
+    private final ExecutorService encoder = Executors.newSingleThreadExecutor((Runnable runnable) -> {
+        Thread thread = new Thread(runnable, "screenshot-encoder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * 保存を要求。拡張子が.pngならPNG、それ以外はPPMで保存する
+     * @param x フレームバッファのピクセル座標（左上原点）
+     */
+    public void request(int x, int y, int width, int height, String path) {
+        if (width <= 0 || height <= 0)
+            return;
+        pending.add(new Request(x, y, width, height, path));
+    }
+
+    public boolean hasPending() {
+        return !pending.isEmpty();
+    }
+
+    /**
+     * 転送待ちがあれば、ループは眠らずに確認を続ける必要がある
+     */
+    public boolean isReading() {
+        return !reading.isEmpty();
+    }
+
+    /**
+     * 描画が終わり、バッファを入れ替える前に呼ぶ。裏バッファからPBOへの読み出しを開始する
+     */
+    public void readBack(int framebufferHeight) {
+        if (pending.isEmpty())
+            return;
+
+        boolean canFence = GL.getCapabilities().OpenGL32;
+
+        glReadBuffer(GL_BACK);
+        glPixelStorei(GL_PACK_ALIGNMENT, 1);
+        while (!pending.isEmpty()) {
+            Request request = pending.poll();
+            request.pixelBuffer = glGenBuffers();
+            glBindBuffer(GL_PIXEL_PACK_BUFFER, request.pixelBuffer);
+            glBufferData(GL_PIXEL_PACK_BUFFER, (long) request.width * request.height * 4, GL_STREAM_READ);
+            /* OpenGLは左下原点 */
+            glReadPixels(request.x, framebufferHeight - request.y - request.height, request.width, request.height,
+                    GL_RGBA, GL_UNSIGNED_BYTE, 0L);
+            if (canFence)
+                request.fence = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+            reading.add(request);
+        }
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+    }
+
+    /**
+     * 毎ループ呼ぶ。転送が終わった要求を取り出してエンコードに回す
+     */
+    public void poll() {
+        while (!reading.isEmpty()) {
+            Request request = reading.peek();
+            if (request.fence != 0) {
+                int status = glClientWaitSync(request.fence, 0, 0);
+                if (status == GL_TIMEOUT_EXPIRED)
+                    return;
+                glDeleteSync(request.fence);
+                request.fence = 0;
+            }
+            reading.poll();
+
+            int size = request.width * request.height * 4;
+            byte[] pixels = new byte[size];
+            glBindBuffer(GL_PIXEL_PACK_BUFFER, request.pixelBuffer);
+            ByteBuffer mapped = glMapBuffer(GL_PIXEL_PACK_BUFFER, GL_READ_ONLY, size, null);
+            if (mapped != null) {
+                mapped.get(pixels);
+                glUnmapBuffer(GL_PIXEL_PACK_BUFFER);
+            } else {
+                System.err.println("ScreenshotCapture: failed to map pixel buffer");
+            }
+            glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+            glDeleteBuffers(request.pixelBuffer);
+
+            if (mapped != null)
+                encoder.execute(() -> write(request, pixels));
+        }
+    }
+
+    /**
+     * 読み出し中のものは捨てる。エンコード中のものは書き終わるのを待つ
+     */
+    public void dispose() {
+        for (Request request : reading) {
+            if (request.fence != 0)
+                glDeleteSync(request.fence);
+            glDeleteBuffers(request.pixelBuffer);
+        }
+        reading.clear();
+        pending.clear();
+        encoder.shutdown();
+    }
+
+    private static void write(Request request, byte[] rgba) {
+        byte[] rgb = toTopDownRGB(rgba, request.width, request.height);
+        try (FileChannel channel = FileChannel.open(Paths.get(request.path), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (request.path.toLowerCase().endsWith(".png")) {
+                writePNG(channel, rgb, request.width, request.height);
+            } else {
+                writePPM(channel, rgb, request.width, request.height);
+            }
+        } catch (IOException e) {
+            System.out.println(e);
+        }
+    }
+
+    /**
+     * 下から上に並んだRGBAを、上から下に並んだRGBに並べ替える
+     */
+    private static byte[] toTopDownRGB(byte[] rgba, int w, int h) {
+        byte[] rgb = new byte[w * h * 3];
+        for (int y = 0; y < h; y++) {
+            int src = (h - 1 - y) * w * 4;
+            int dst = y * w * 3;
+            for (int x = 0; x < w; x++) {
+                rgb[dst++] = rgba[src++];
+                rgb[dst++] = rgba[src++];
+                rgb[dst++] = rgba[src++];
+                src++;
+            }
+        }
+        return rgb;
+    }
+
+    private static void writePPM(FileChannel channel, byte[] rgb, int w, int h) throws IOException {
+        writeFully(channel, ByteBuffer.wrap(String.format("P6\n%s %s\n255\n", w, h).getBytes()));
+        writeFully(channel, ByteBuffer.wrap(rgb));
+    }
+
+    private static final byte[] PNG_SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+
+    private static void writePNG(FileChannel channel, byte[] rgb, int w, int h) throws IOException {
+        writeFully(channel, ByteBuffer.wrap(PNG_SIGNATURE));
+
+        ByteBuffer header = ByteBuffer.allocate(13);
+        header.putInt(w).putInt(h);
+        /* 8bit, RGB, deflate, フィルタ方式0, インターレースなし */
+        header.put((byte) 8).put((byte) 2).put((byte) 0).put((byte) 0).put((byte) 0);
+        writeChunk(channel, "IHDR", header.array(), header.capacity());
+
+        /* 各行の先頭にフィルタの種類（0: なし）を置く */
+        int stride = w * 3;
+        byte[] raw = new byte[(stride + 1) * h];
+        for (int y = 0; y < h; y++) {
+            System.arraycopy(rgb, y * stride, raw, y * (stride + 1) + 1, stride);
+        }
+
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        deflater.setInput(raw);
+        deflater.finish();
+        byte[] compressed = new byte[Math.max(64, raw.length / 2)];
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == compressed.length) {
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            }
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+        deflater.end();
+        writeChunk(channel, "IDAT", compressed, length);
+
+        writeChunk(channel, "IEND", new byte[0], 0);
+    }
+
+    private static void writeChunk(FileChannel channel, String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes();
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+
+        ByteBuffer chunk = ByteBuffer.allocate(12 + length);
+        chunk.putInt(length).put(typeBytes).put(data, 0, length).putInt((int) crc.getValue());
+        chunk.flip();
+        writeFully(channel, chunk);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,922 @@
+package jp.shosato.micropaint.renderers;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jp.shosato.micropaint.components.BasicComponent;
+
+/**
+ * CPUだけで描く実装。ウィンドウもGPUも使わずに、要素の木をARGBの配列に描く
+ * * 図形は描画先のピクセル座標の辺の集まりにして、アクティブエッジテーブルで走査線ごとに塗る（非ゼロ規則）
+ * * 1ピクセルを縦にSUBSAMPLES本の走査線で調べ、横方向は辺の位置から覆う割合を求めてアンチエイリアスする
+ * * 三角形の集まりは向きをそろえてから1つの図形として塗るので、重なりや継ぎ目が二重に塗られない
+ * * 頂点バッファやテクスチャは使えないので、キャンバスは図形をキャッシュせず直接描く
+ * * 要素の木は呼び出したスレッドでたどって塗る命令を溜めるだけにし、flushで描画先を横の帯に分けて並列に塗る
+ */
+public class SoftwareGraphics extends Graphics {
+
+    /**
+     * 1ピクセルあたりの縦方向の標本数
+     */
+    private static final int SUBSAMPLES = 4;
+    private static final float SAMPLE_WEIGHT = 1f / SUBSAMPLES;
+    /**
+     * これより薄い部分は塗らない
+     */
+    private static final float MIN_COVERAGE = 1f / 512;
+
+    /**
+     * 帯を塗るスレッドの数（呼び出したスレッドを含む）
+     */
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+    /**
+     * 帯の最小の高さ（行）。細かくしすぎると、帯をまたぐ図形の辺を帯ごとにたどり直す手間が増える
+     */
+    private static final int MIN_BAND_ROWS = 32;
+
+    /**
+     * 帯を塗るスレッド。全てのインスタンスで共有し、必要になってから作る
+     */
+    private static ExecutorService workers;
+
+    private final int width;
+    private final int height;
+    private final int[] pixels;
+
+    /* 組み立て中の図形の辺。yの小さい端点を上端として持つ */
+    private int edgeCount = 0;
+    private float[] edgeTop = new float[256];
+    private float[] edgeBottom = new float[256];
+    private float[] edgeX = new float[256];
+    private float[] edgeSlope = new float[256];
+    private int[] edgeWinding = new int[256];
+    /**
+     * 同じ辺を探す開番地法のハッシュ表（辺の番号+1）。stampが今の図形のものでない欄は空として扱う
+     */
+    private int[] edgeTable = new int[512];
+    private int[] edgeTableStamp = new int[512];
+    private int edgeStamp = 1;
+    private float pathMinX, pathMinY, pathMaxX, pathMaxY;
+    private long[] sortKeys = new long[256];
+
+    /* 溜めた図形の辺。図形ごとに上端の順に並ぶ */
+    private int listedEdges = 0;
+    private float[] listTop = new float[1024];
+    private float[] listBottom = new float[1024];
+    private float[] listX = new float[1024];
+    private float[] listSlope = new float[1024];
+    private int[] listWinding = new int[1024];
+
+    /**
+     * 溜めた命令。先頭からcommandCount個が有効で、オブジェクトは次のフレームで使い回す
+     */
+    private final ArrayList<Command> commands = new ArrayList<>();
+    private int commandCount = 0;
+
+    private final Band[] bands;
+    private final AtomicInteger nextBand = new AtomicInteger();
+
+    /* 頂点色の三角形の組み立て用 */
+    private final float[] triangleX = new float[3];
+    private final float[] triangleY = new float[3];
+    private final float[] triangleColors = new float[12];
+    private float triangleDet;
+
+    /* 描画範囲（ピクセル、左上原点、終端は含まない） */
+    private int clipX0, clipY0, clipX1, clipY1;
+
+    /**
+     * 変形後の座標の受け渡し用
+     */
+    private float tx, ty;
+
+    /**
+     * 溜めた描画命令
+     */
+    private static class Command {
+        static final int FILL = 0;
+        static final int SHADED = 1;
+        static final int TEXT = 2;
+
+        int kind;
+        /* 塗る範囲。行は描画範囲で切り詰め済み */
+        int rowStart, rowEnd, clipX0, clipX1;
+        /* 塗りの色(RGB)と不透明度（0〜1）、文字用の0〜255の色 */
+        int color;
+        float alpha;
+        float red, green, blue;
+
+        /* FILL, SHADED: 溜めた辺の範囲 */
+        int firstEdge, edgeCount;
+
+        /* SHADED: 描画先での三角形の頂点と、頂点ごとの色(0〜255) */
+        final float[] triangleX = new float[3];
+        final float[] triangleY = new float[3];
+        final float[] triangleColors = new float[12];
+        float triangleDet;
+
+        /* TEXT: アトラスの控えと、描画先での頂点(x, y, u, v) */
+        byte[] texels;
+        int texWidth, texHeight;
+        float[] vertices = new float[0];
+        int vertexCount;
+    }
+
+    public SoftwareGraphics(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.pixels = new int[width * height];
+        int bandCount = THREADS > 1 ? Math.max(1, Math.min(THREADS * 4, height / MIN_BAND_ROWS)) : 1;
+        this.bands = new Band[bandCount];
+        for (int i = 0; i < bandCount; i++) {
+            bands[i] = new Band(height * i / bandCount, height * (i + 1) / bandCount);
+        }
+        this.targetWidth = width;
+        this.targetHeight = height;
+        this.targetPixelWidth = width;
+        this.targetPixelHeight = height;
+        updateClip();
+    }
+
+    /**
+     * 要素の木を描く。描画中だけこの実装を現在の実装にする
+     */
+    public void render(BasicComponent root) {
+        Graphics previous = Graphics.get();
+        Graphics.setCurrent(this);
+        try {
+            beginFrame(width, height);
+            root.draw();
+            endFrame();
+        } finally {
+            Graphics.setCurrent(previous);
+        }
+    }
+
+    /**
+     * 描いた結果。1要素1ピクセルのARGB（アルファ非乗算）で、左上から行ごとに並ぶ
+     */
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public BufferedImage toImage() {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(0, 0, width, height, pixels, 0, width);
+        return image;
+    }
+
+    @Override
+    public void init() {
+    }
+
+    @Override
+    public void beginFrame(int width, int height, int pixelWidth, int pixelHeight) {
+        super.beginFrame(this.width, this.height, this.width, this.height);
+        commandCount = 0;
+        listedEdges = 0;
+        Arrays.fill(pixels, 0);
+        updateClip();
+    }
+
+    /**
+     * 溜めた命令を帯ごとに塗る。全ての帯を塗り終えてから戻る
+     */
+    @Override
+    public void flush() {
+        if (commandCount == 0)
+            return;
+        nextBand.set(0);
+        if (bands.length == 1) {
+            paintBands();
+        } else {
+            Future<?>[] futures = new Future<?>[THREADS - 1];
+            for (int i = 0; i < futures.length; i++) {
+                futures[i] = workers().submit(this::paintBands);
+            }
+            paintBands();
+            await(futures);
+        }
+        commandCount = 0;
+        listedEdges = 0;
+    }
+
+    /**
+     * まだ誰も塗っていない帯を順に取って塗る
+     */
+    private void paintBands() {
+        int i;
+        while ((i = nextBand.getAndIncrement()) < bands.length) {
+            bands[i].paint();
+        }
+    }
+
+    /**
+     * 全ての帯が塗り終わるのを待つ。途中で割り込まれても、作業領域を使い回せるよう最後まで待つ
+     */
+    private static void await(Future<?>[] futures) {
+        boolean interrupted = false;
+        Throwable failure = null;
+        for (Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (failure == null)
+                        failure = e.getCause();
+                    break;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        if (failure != null)
+            throw new IllegalStateException("SoftwareGraphics: failed to paint a band", failure);
+    }
+
+    private static synchronized ExecutorService workers() {
+        if (workers == null) {
+            workers = Executors.newFixedThreadPool(THREADS - 1, (Runnable runnable) -> {
+                Thread thread = new Thread(runnable, "software-rasterizer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return workers;
+    }
+
+    @Override
+    protected void applyViewport() {
+    }
+
+    @Override
+    public void setScissor(int x, int y, int w, int h) {
+        super.setScissor(x, y, w, h);
+        updateClip();
+    }
+
+    @Override
+    public void disableScissor() {
+        super.disableScissor();
+        updateClip();
+    }
+
+    /**
+     * シザーはglScissorと同じく左下原点なので上下を反転して使う
+     */
+    private void updateClip() {
+        clipX0 = 0;
+        clipY0 = 0;
+        clipX1 = width;
+        clipY1 = height;
+        if (scissorEnabled) {
+            clipX0 = Math.max(0, scissor[0]);
+            clipX1 = Math.min(width, scissor[0] + scissor[2]);
+            clipY0 = Math.max(0, height - scissor[1] - scissor[3]);
+            clipY1 = Math.min(height, height - scissor[1]);
+        }
+    }
+
+    /* ---- 図形 ---- */
+
+    @Override
+    public void fillTriangles(float[] vertices, int vertexCount) {
+        for (int i = 0; i + 2 < vertexCount; i += 3) {
+            addTriangle(vertices, i, i + 1, i + 2);
+        }
+        fillPath(false);
+    }
+
+    @Override
+    public void fillTriangles(float[] vertices, int[] indices, int indexCount) {
+        for (int i = 0; i + 2 < indexCount; i += 3) {
+            addTriangle(vertices, indices[i], indices[i + 1], indices[i + 2]);
+        }
+        fillPath(false);
+    }
+
+    /**
+     * 頂点色は三角形ごとに塗り、ピクセルの中心で色を補間する
+     */
+    @Override
+    public void fillColoredTriangles(float[] vertices, float[] colors, int vertexCount) {
+        for (int i = 0; i + 2 < vertexCount; i += 3) {
+            for (int j = 0; j < 3; j++) {
+                transform(vertices[(i + j) * 2], vertices[(i + j) * 2 + 1]);
+                triangleX[j] = tx;
+                triangleY[j] = ty;
+                for (int c = 0; c < 4; c++) {
+                    triangleColors[j * 4 + c] = colors[(i + j) * 4 + c] * 255;
+                }
+            }
+            triangleDet = (triangleY[1] - triangleY[2]) * (triangleX[0] - triangleX[2])
+                    + (triangleX[2] - triangleX[1]) * (triangleY[0] - triangleY[2]);
+            if (triangleDet == 0)
+                continue;
+            addTriangle(triangleX[0], triangleY[0], triangleX[1], triangleY[1], triangleX[2], triangleY[2]);
+            fillPath(true);
+        }
+    }
+
+    @Override
+    public void drawLines(float[] vertices, int vertexCount, float width) {
+        for (int i = 0; i + 1 < vertexCount; i += 2) {
+            transform(vertices[i * 2], vertices[i * 2 + 1]);
+            float x0 = tx, y0 = ty;
+            transform(vertices[i * 2 + 2], vertices[i * 2 + 3]);
+            float x1 = tx, y1 = ty;
+
+            float length = (float) Math.hypot(x1 - x0, y1 - y0);
+            if (length == 0)
+                continue;
+            float dx = (x1 - x0) / length, dy = (y1 - y0) / length;
+            addSegment(x0, y0, x1, y1, dx, dy, width);
+        }
+        fillPath(false);
+    }
+
+    /**
+     * 線分を太さwidthの四角形として追加。座標は描画先のピクセル
+     */
+    private void addSegment(float x0, float y0, float x1, float y1, float dx, float dy, float width) {
+        float nx = -dy * width / 2, ny = dx * width / 2;
+        addQuad(x0 + nx, y0 + ny, x1 + nx, y1 + ny, x1 - nx, y1 - ny, x0 - nx, y0 - ny);
+    }
+
+    @Override
+    public void drawPoints(float[] vertices, int vertexCount, float size) {
+        float h = size / 2;
+        for (int i = 0; i < vertexCount * 2; i += 2) {
+            transform(vertices[i], vertices[i + 1]);
+            addQuad(tx - h, ty - h, tx + h, ty - h, tx + h, ty + h, tx - h, ty + h);
+        }
+        fillPath(false);
+    }
+
+    /**
+     * 文字はアトラスの控えから読む。アトラスが広がっても古い控えは書き換わらないので、参照を取っておけばよい
+     */
+    @Override
+    public void drawText(GlyphAtlas atlas, float[] vertices, int vertexCount) {
+        if (vertexCount < 3 || clipX0 >= clipX1 || clipY0 >= clipY1)
+            return;
+        Command c = addCommand(Command.TEXT);
+        c.rowStart = clipY0;
+        c.rowEnd = clipY1;
+        c.red = red * 255;
+        c.green = green * 255;
+        c.blue = blue * 255;
+        c.color = pack(c.red, c.green, c.blue);
+        c.texels = atlas.getPixels();
+        c.texWidth = atlas.getWidth();
+        c.texHeight = atlas.getHeight();
+        if (c.vertices.length < vertexCount * 4)
+            c.vertices = new float[vertexCount * 4];
+        for (int i = 0; i < vertexCount * 4; i += 4) {
+            transform(vertices[i], vertices[i + 1]);
+            c.vertices[i] = tx;
+            c.vertices[i + 1] = ty;
+            c.vertices[i + 2] = vertices[i + 2];
+            c.vertices[i + 3] = vertices[i + 3];
+        }
+        c.vertexCount = vertexCount;
+    }
+
+    /* ---- 辺の登録 ---- */
+
+    private void transform(float x, float y) {
+        tx = (float) (matrix.m00 * x + matrix.m10 * y + matrix.m20);
+        ty = (float) (matrix.m01 * x + matrix.m11 * y + matrix.m21);
+    }
+
+    private void addTriangle(float[] vertices, int a, int b, int c) {
+        transform(vertices[a * 2], vertices[a * 2 + 1]);
+        float x0 = tx, y0 = ty;
+        transform(vertices[b * 2], vertices[b * 2 + 1]);
+        float x1 = tx, y1 = ty;
+        transform(vertices[c * 2], vertices[c * 2 + 1]);
+        addTriangle(x0, y0, x1, y1, tx, ty);
+    }
+
+    /**
+     * 向きをそろえて追加する。逆向きの三角形が重なっても打ち消し合わない
+     */
+    private void addTriangle(float x0, float y0, float x1, float y1, float x2, float y2) {
+        float area = (x1 - x0) * (y2 - y0) - (x2 - x0) * (y1 - y0);
+        if (area > 0) {
+            addEdge(x0, y0, x1, y1);
+            addEdge(x1, y1, x2, y2);
+            addEdge(x2, y2, x0, y0);
+        } else if (area < 0) {
+            addEdge(x0, y0, x2, y2);
+            addEdge(x2, y2, x1, y1);
+            addEdge(x1, y1, x0, y0);
+        }
+    }
+
+    /**
+     * 凸四角形を向きをそろえて追加
+     */
+    private void addQuad(float x0, float y0, float x1, float y1, float x2, float y2, float x3, float y3) {
+        float area = (x0 * y1 - x1 * y0) + (x1 * y2 - x2 * y1) + (x2 * y3 - x3 * y2) + (x3 * y0 - x0 * y3);
+        if (area > 0) {
+            addEdge(x0, y0, x1, y1);
+            addEdge(x1, y1, x2, y2);
+            addEdge(x2, y2, x3, y3);
+            addEdge(x3, y3, x0, y0);
+        } else if (area < 0) {
+            addEdge(x0, y0, x3, y3);
+            addEdge(x3, y3, x2, y2);
+            addEdge(x2, y2, x1, y1);
+            addEdge(x1, y1, x0, y0);
+        }
+    }
+
+    private void addEdge(float x0, float y0, float x1, float y1) {
+        if (y0 == y1 || Float.isNaN(x0) || Float.isNaN(x1))
+            return;
+        int winding = 1;
+        if (y0 > y1) {
+            float t = x0;
+            x0 = x1;
+            x1 = t;
+            t = y0;
+            y0 = y1;
+            y1 = t;
+            winding = -1;
+        }
+
+        float slope = (x1 - x0) / (y1 - y0);
+
+        /* 三角形の継ぎ目の辺は逆向きで2回現れるので、巻き数を足して打ち消す */
+        int mask = edgeTable.length - 1;
+        int slot = hashEdge(y0, y1, x0, slope) & mask;
+        while (edgeTableStamp[slot] == edgeStamp) {
+            int e = edgeTable[slot] - 1;
+            if (edgeTop[e] == y0 && edgeBottom[e] == y1 && edgeX[e] == x0 && edgeSlope[e] == slope) {
+                edgeWinding[e] += winding;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (edgeCount == edgeTop.length) {
+            int capacity = edgeCount * 2;
+            edgeTop = Arrays.copyOf(edgeTop, capacity);
+            edgeBottom = Arrays.copyOf(edgeBottom, capacity);
+            edgeX = Arrays.copyOf(edgeX, capacity);
+            edgeSlope = Arrays.copyOf(edgeSlope, capacity);
+            edgeWinding = Arrays.copyOf(edgeWinding, capacity);
+        }
+        if (edgeCount == 0) {
+            pathMinX = pathMaxX = x0;
+            pathMinY = y0;
+            pathMaxY = y1;
+        }
+        edgeTop[edgeCount] = y0;
+        edgeBottom[edgeCount] = y1;
+        edgeX[edgeCount] = x0;
+        edgeSlope[edgeCount] = slope;
+        edgeWinding[edgeCount] = winding;
+        edgeCount++;
+        edgeTable[slot] = edgeCount;
+        edgeTableStamp[slot] = edgeStamp;
+        if (edgeCount * 2 > edgeTable.length)
+            growEdgeTable();
+
+        pathMinX = Math.min(pathMinX, Math.min(x0, x1));
+        pathMaxX = Math.max(pathMaxX, Math.max(x0, x1));
+        pathMinY = Math.min(pathMinY, y0);
+        pathMaxY = Math.max(pathMaxY, y1);
+    }
+
+    private static int hashEdge(float top, float bottom, float x, float slope) {
+        int h = Float.floatToRawIntBits(top);
+        h = h * 31 + Float.floatToRawIntBits(bottom);
+        h = h * 31 + Float.floatToRawIntBits(x);
+        h = h * 31 + Float.floatToRawIntBits(slope);
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * 表を倍にして今の図形の辺を入れ直す
+     */
+    private void growEdgeTable() {
+        edgeTable = new int[edgeTable.length * 2];
+        edgeTableStamp = new int[edgeTable.length];
+        int mask = edgeTable.length - 1;
+        for (int e = 0; e < edgeCount; e++) {
+            int slot = hashEdge(edgeTop[e], edgeBottom[e], edgeX[e], edgeSlope[e]) & mask;
+            while (edgeTableStamp[slot] == edgeStamp)
+                slot = (slot + 1) & mask;
+            edgeTable[slot] = e + 1;
+            edgeTableStamp[slot] = edgeStamp;
+        }
+    }
+
+    /* ---- 命令の記録 ---- */
+
+    private Command addCommand(int kind) {
+        if (commandCount == commands.size())
+            commands.add(new Command());
+        Command c = commands.get(commandCount++);
+        c.kind = kind;
+        c.clipX0 = clipX0;
+        c.clipX1 = clipX1;
+        c.alpha = alpha;
+        return c;
+    }
+
+    /**
+     * 登録した辺で囲まれた部分を塗る命令を溜め、辺を空にする
+     * @param shaded 三角形の頂点色を補間するか。falseなら現在の色
+     */
+    private void fillPath(boolean shaded) {
+        int edges = edgeCount;
+        edgeCount = 0;
+        edgeStamp++;
+        if (edges == 0)
+            return;
+
+        int rowStart = Math.max(clipY0, (int) Math.floor(pathMinY));
+        int rowEnd = Math.min(clipY1, (int) Math.ceil(pathMaxY));
+        if (rowStart >= rowEnd || pathMaxX < clipX0 || pathMinX >= clipX1)
+            return;
+
+        /* 上端の順に並べる。上位に順序を保つ整数にしたy、下位に辺の番号を入れる */
+        /* 打ち消し合った辺は除く */
+        if (sortKeys.length < edges)
+            sortKeys = new long[Math.max(edges, sortKeys.length * 2)];
+        int n = 0;
+        for (int i = 0; i < edges; i++) {
+            if (edgeWinding[i] == 0)
+                continue;
+            int bits = Float.floatToIntBits(edgeTop[i]);
+            bits ^= (bits >> 31) & 0x7fffffff;
+            sortKeys[n++] = ((long) bits << 32) | i;
+        }
+        if (n == 0)
+            return;
+        Arrays.sort(sortKeys, 0, n);
+
+        if (listedEdges + n > listTop.length) {
+            int capacity = Math.max(listedEdges + n, listTop.length * 2);
+            listTop = Arrays.copyOf(listTop, capacity);
+            listBottom = Arrays.copyOf(listBottom, capacity);
+            listX = Arrays.copyOf(listX, capacity);
+            listSlope = Arrays.copyOf(listSlope, capacity);
+            listWinding = Arrays.copyOf(listWinding, capacity);
+        }
+        for (int i = 0; i < n; i++) {
+            int e = (int) sortKeys[i];
+            int j = listedEdges + i;
+            listTop[j] = edgeTop[e];
+            listBottom[j] = edgeBottom[e];
+            listX[j] = edgeX[e];
+            listSlope[j] = edgeSlope[e];
+            listWinding[j] = edgeWinding[e];
+        }
+
+        Command c = addCommand(shaded ? Command.SHADED : Command.FILL);
+        c.rowStart = rowStart;
+        c.rowEnd = rowEnd;
+        c.color = pack(red * 255, green * 255, blue * 255);
+        c.firstEdge = listedEdges;
+        c.edgeCount = n;
+        listedEdges += n;
+        if (shaded) {
+            System.arraycopy(triangleX, 0, c.triangleX, 0, 3);
+            System.arraycopy(triangleY, 0, c.triangleY, 0, 3);
+            System.arraycopy(triangleColors, 0, c.triangleColors, 0, 12);
+            c.triangleDet = triangleDet;
+        }
+    }
+
+    /* ---- 走査線 ---- */
+
+    /**
+     * 描画先の行[rowStart, rowEnd)を塗る。走査線の作業領域を帯ごとに持つので、別の帯とは並列に塗れる
+     */
+    private class Band {
+        private final int rowStart;
+        private final int rowEnd;
+
+        private int[] active = new int[64];
+        private float[] activeX = new float[64];
+        /**
+         * 1行分の被覆率の差分。累積するとピクセルごとの被覆率になる
+         */
+        private final float[] cover = new float[width + 2];
+        private int coverMin, coverMax;
+
+        /* 塗っている命令と、その色(RGB)と不透明度（0〜1）。頂点色のときはピクセルごとに補間する */
+        private Command command;
+        private int fillColor;
+        private float fillAlpha;
+
+        Band(int rowStart, int rowEnd) {
+            this.rowStart = rowStart;
+            this.rowEnd = rowEnd;
+        }
+
+        /**
+         * 溜めた命令のうち、この帯にかかるものを順に塗る
+         */
+        void paint() {
+            for (int i = 0; i < commandCount; i++) {
+                Command c = commands.get(i);
+                if (c.rowEnd <= rowStart || c.rowStart >= rowEnd)
+                    continue;
+                if (c.kind == Command.TEXT) {
+                    drawText(c);
+                } else {
+                    fillPath(c);
+                }
+            }
+        }
+
+        /**
+         * 溜めた辺で囲まれた部分のうち、この帯の行を塗る
+         */
+        private void fillPath(Command c) {
+            command = c;
+            fillColor = c.color;
+            fillAlpha = c.alpha;
+
+            int first = Math.max(c.rowStart, rowStart);
+            int last = Math.min(c.rowEnd, rowEnd);
+            int next = c.firstEdge;
+            int end = c.firstEdge + c.edgeCount;
+            int activeCount = 0;
+            for (int row = first; row < last; row++) {
+                coverMin = Integer.MAX_VALUE;
+                coverMax = -1;
+                for (int s = 0; s < SUBSAMPLES; s++) {
+                    float sy = row + (s + 0.5f) * SAMPLE_WEIGHT;
+
+                    /* 下端を過ぎた辺を外しながら交点を求めて挿入ソート。前の標本とほぼ同じ順なので速い */
+                    int kept = 0;
+                    for (int i = 0; i < activeCount; i++) {
+                        int e = active[i];
+                        if (listBottom[e] <= sy)
+                            continue;
+                        kept = insertActive(kept, e, listX[e] + (sy - listTop[e]) * listSlope[e]);
+                    }
+                    activeCount = kept;
+
+                    /* 上端に達した辺を加える。標本の間に収まる短い辺や、帯より上で終わる辺は飛ばす */
+                    while (next < end) {
+                        int e = next;
+                        if (listTop[e] > sy)
+                            break;
+                        next++;
+                        if (listBottom[e] <= sy)
+                            continue;
+                        if (activeCount == active.length) {
+                            active = Arrays.copyOf(active, activeCount * 2);
+                            activeX = Arrays.copyOf(activeX, activeCount * 2);
+                        }
+                        activeCount = insertActive(activeCount, e, listX[e] + (sy - listTop[e]) * listSlope[e]);
+                    }
+                    if (activeCount == 0) {
+                        /* 次の辺が始まる行まで飛ばす */
+                        if (next < end && s == SUBSAMPLES - 1 && coverMax < 0)
+                            row = Math.max(row, Math.min(last, (int) listTop[next]) - 1);
+                        continue;
+                    }
+
+                    /* 非ゼロ規則で内側の区間を積む */
+                    int winding = 0;
+                    float spanStart = 0;
+                    for (int i = 0; i < activeCount; i++) {
+                        int before = winding;
+                        winding += listWinding[active[i]];
+                        if (before == 0 && winding != 0) {
+                            spanStart = activeX[i];
+                        } else if (before != 0 && winding == 0) {
+                            addSpan(spanStart, activeX[i]);
+                        }
+                    }
+                }
+                if (coverMax >= 0)
+                    compositeRow(row);
+            }
+        }
+
+        /**
+         * 交点xの順を保つようにcount番目までの並びに辺を挿入し、新しい個数を返す
+         */
+        private int insertActive(int count, int e, float x) {
+            int j = count;
+            while (j > 0 && activeX[j - 1] > x) {
+                activeX[j] = activeX[j - 1];
+                active[j] = active[j - 1];
+                j--;
+            }
+            activeX[j] = x;
+            active[j] = e;
+            return count + 1;
+        }
+
+        /**
+         * 1本の標本走査線で[x0, x1)が内側であることを記録。端のピクセルは覆う割合だけ積む
+         */
+        private void addSpan(float x0, float x1) {
+            x0 = Math.max(x0, command.clipX0);
+            x1 = Math.min(x1, command.clipX1);
+            if (x0 >= x1)
+                return;
+            int i0 = (int) x0, i1 = (int) x1;
+            float f0 = x0 - i0, f1 = x1 - i1;
+            cover[i0] += (1 - f0) * SAMPLE_WEIGHT;
+            cover[i0 + 1] += f0 * SAMPLE_WEIGHT;
+            cover[i1] -= (1 - f1) * SAMPLE_WEIGHT;
+            cover[i1 + 1] -= f1 * SAMPLE_WEIGHT;
+            coverMin = Math.min(coverMin, i0);
+            coverMax = Math.max(coverMax, i1);
+        }
+
+        /**
+         * 積んだ被覆率で1行を合成し、作業領域を空にする
+         */
+        private void compositeRow(int row) {
+            boolean shaded = command.kind == Command.SHADED;
+            int end = Math.min(coverMax, command.clipX1 - 1);
+            int base = row * width;
+            boolean opaque = !shaded && fillAlpha >= 1;
+            int solid = 0xff000000 | fillColor;
+            float accumulated = 0;
+            int x = coverMin;
+            while (x <= end) {
+                accumulated += cover[x];
+                /* 被覆率が変わらない区間をまとめて塗る */
+                int runEnd = x + 1;
+                while (runEnd <= end && cover[runEnd] == 0)
+                    runEnd++;
+                float coverage = Math.min(accumulated, 1);
+                if (coverage < MIN_COVERAGE) {
+                    /* 覆っていない */
+                } else if (shaded) {
+                    for (int i = x; i < runEnd; i++) {
+                        shade(i + 0.5f, row + 0.5f);
+                        blend(base + i, fillColor, fillAlpha * coverage);
+                    }
+                } else if (opaque && coverage >= 1 - MIN_COVERAGE) {
+                    /* 内側の不透明な部分は合成しない */
+                    Arrays.fill(pixels, base + x, base + runEnd, solid);
+                } else {
+                    blendRun(base + x, base + runEnd, fillColor, fillAlpha * coverage);
+                }
+                x = runEnd;
+            }
+            Arrays.fill(cover, coverMin, coverMax + 2, 0);
+        }
+
+        /**
+         * 三角形の頂点色をピクセルの中心で補間してfillColorとfillAlphaに入れる。縁のピクセルは三角形内に寄せる
+         */
+        private void shade(float cx, float cy) {
+            float[] x = command.triangleX, y = command.triangleY, c = command.triangleColors;
+            float det = command.triangleDet;
+            float l0 = ((y[1] - y[2]) * (cx - x[2]) + (x[2] - x[1]) * (cy - y[2])) / det;
+            float l1 = ((y[2] - y[0]) * (cx - x[2]) + (x[0] - x[2]) * (cy - y[2])) / det;
+            l0 = Math.max(0, Math.min(1, l0));
+            l1 = Math.max(0, Math.min(1 - l0, l1));
+            float l2 = 1 - l0 - l1;
+            fillColor = pack(l0 * c[0] + l1 * c[4] + l2 * c[8], l0 * c[1] + l1 * c[5] + l2 * c[9],
+                    l0 * c[2] + l1 * c[6] + l2 * c[10]);
+            fillAlpha = (l0 * c[3] + l1 * c[7] + l2 * c[11]) / 255 * command.alpha;
+        }
+
+        /**
+         * 文字の三角形のうち、この帯の行を塗る。四角形の縁は文字の外側なので、アンチエイリアスせずピクセルの中心で判定する
+         */
+        private void drawText(Command c) {
+            byte[] texels = c.texels;
+            int texW = c.texWidth, texH = c.texHeight;
+            float[] v = c.vertices;
+            float alpha = c.alpha;
+            int rowFirst = Math.max(c.rowStart, rowStart);
+            int rowLast = Math.min(c.rowEnd, rowEnd);
+
+            for (int i = 0; i + 2 < c.vertexCount; i += 3) {
+                float x0 = v[i * 4], y0 = v[i * 4 + 1];
+                float x1 = v[i * 4 + 4], y1 = v[i * 4 + 5];
+                float x2 = v[i * 4 + 8], y2 = v[i * 4 + 9];
+                float det = (y1 - y2) * (x0 - x2) + (x2 - x1) * (y0 - y2);
+                if (det == 0)
+                    continue;
+
+                int px0 = Math.max(c.clipX0, (int) Math.floor(Math.min(x0, Math.min(x1, x2))));
+                int px1 = Math.min(c.clipX1, (int) Math.ceil(Math.max(x0, Math.max(x1, x2))));
+                int py0 = Math.max(rowFirst, (int) Math.floor(Math.min(y0, Math.min(y1, y2))));
+                int py1 = Math.min(rowLast, (int) Math.ceil(Math.max(y0, Math.max(y1, y2))));
+                float u0 = v[i * 4 + 2], v0 = v[i * 4 + 3];
+                float u1 = v[i * 4 + 6], v1 = v[i * 4 + 7];
+                float u2 = v[i * 4 + 10], v2 = v[i * 4 + 11];
+
+                for (int py = py0; py < py1; py++) {
+                    float cy = py + 0.5f;
+                    for (int px = px0; px < px1; px++) {
+                        float cx = px + 0.5f;
+                        float l0 = ((y1 - y2) * (cx - x2) + (x2 - x1) * (cy - y2)) / det;
+                        float l1 = ((y2 - y0) * (cx - x2) + (x0 - x2) * (cy - y2)) / det;
+                        float l2 = 1 - l0 - l1;
+                        /* 対角線上のピクセルを隣の三角形と二重に塗らないよう、片側だけ境界を含める */
+                        if (l0 < 0 || l1 < 0 || l2 <= 0)
+                            continue;
+                        int tu = clamp((int) ((l0 * u0 + l1 * u1 + l2 * u2) * texW), 0, texW - 1);
+                        int tv = clamp((int) ((l0 * v0 + l1 * v1 + l2 * v2) * texH), 0, texH - 1);
+                        int t = (tv * texW + tu) * 4;
+                        float a = (texels[t + 3] & 0xff) / 255f * alpha;
+                        if (a < MIN_COVERAGE)
+                            continue;
+                        /* アトラスは白地なので、ほとんどの場合は色をそのまま使える */
+                        int color = c.color;
+                        if ((texels[t] & texels[t + 1] & texels[t + 2]) != -1)
+                            color = pack(c.red * (texels[t] & 0xff) / 255, c.green * (texels[t + 1] & 0xff) / 255,
+                                    c.blue * (texels[t + 2] & 0xff) / 255);
+                        blend(py * width + px, color, a);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 連続したピクセルに同じ色を同じ不透明度で重ねる
+     */
+    private void blendRun(int from, int to, int rgb, float a) {
+        int w = (int) (a * 256 + 0.5f), inv = 256 - w;
+        int rb = (rgb & 0xff00ff) * w, g = (rgb & 0x00ff00) * w;
+        for (int i = from; i < to; i++) {
+            int dst = pixels[i];
+            if (dst >>> 24 != 255) {
+                blend(i, rgb, a);
+                continue;
+            }
+            pixels[i] = 0xff000000 | ((rb + (dst & 0xff00ff) * inv) >>> 8) & 0xff00ff
+                    | ((g + (dst & 0x00ff00) * inv) >>> 8) & 0x00ff00;
+        }
+    }
+
+    /**
+     * ピクセルに色(RGB)を不透明度a(0〜1)で重ねる
+     */
+    private void blend(int index, int rgb, float a) {
+        if (a >= 1) {
+            pixels[index] = 0xff000000 | rgb;
+            return;
+        }
+        int dst = pixels[index];
+        int da = dst >>> 24;
+        if (da == 255) {
+            /* 下地が不透明なら整数で混ぜる。赤と青は1回の乗算でまとめて計算する */
+            int w = (int) (a * 256 + 0.5f), inv = 256 - w;
+            int rb = (((rgb & 0xff00ff) * w + (dst & 0xff00ff) * inv) >>> 8) & 0xff00ff;
+            int g = (((rgb & 0x00ff00) * w + (dst & 0x00ff00) * inv) >>> 8) & 0x00ff00;
+            pixels[index] = 0xff000000 | rb | g;
+            return;
+        }
+        if (da == 0) {
+            pixels[index] = (clamp((int) (a * 255 + 0.5f), 0, 255) << 24) | rgb;
+            return;
+        }
+        float dstAlpha = da / 255f * (1 - a);
+        float outAlpha = a + dstAlpha;
+        float r = (rgb >> 16) & 0xff, g = (rgb >> 8) & 0xff, b = rgb & 0xff;
+        float dr = (dst >> 16) & 0xff, dg = (dst >> 8) & 0xff, db = dst & 0xff;
+        pixels[index] = (clamp((int) (outAlpha * 255 + 0.5f), 0, 255) << 24)
+                | pack((r * a + dr * dstAlpha) / outAlpha, (g * a + dg * dstAlpha) / outAlpha,
+                        (b * a + db * dstAlpha) / outAlpha);
+    }
+
+    /**
+     * 0〜255の色をRGBにまとめる
+     */
+    private static int pack(float r, float g, float b) {
+        return (clamp((int) (r + 0.5f), 0, 255) << 16) | (clamp((int) (g + 0.5f), 0, 255) << 8)
+                | clamp((int) (b + 0.5f), 0, 255);
+    }
+
+    private static int clamp(int v, int min, int max) {
+        return v < min ? min : (v > max ? max : v);
+    }
+}
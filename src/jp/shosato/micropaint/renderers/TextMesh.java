@@ -0,0 +1,131 @@
+package jp.shosato.micropaint.renderers;
+
+import java.util.Arrays;
+
+import org.joml.Vector4d;
+
+/**
+ * 1つの文字列を、グリフアトラスを貼った四角形の集まりとして描く
+ * 文字列が変わっても頂点を並べ直すだけで、文字の描画やテクスチャの転送はしない
+ */
+public class TextMesh {
+    /**
+     * 1頂点あたり(x, y, u, v)
+     */
+    private static final int COMPONENTS = 4;
+
+    private GlyphAtlas atlas;
+    private String text = "";
+    private int width = 0;
+
+    private float[] vertices = new float[6 * COMPONENTS * 16];
+    private int vertexCount = 0;
+    private boolean dirty = true;
+    /**
+     * 頂点を作ったときのアトラスの世代
+     */
+    private int builtGeneration = -1;
+
+    public TextMesh(GlyphAtlas atlas) {
+        this.atlas = atlas;
+    }
+
+    public void setAtlas(GlyphAtlas atlas) {
+        this.atlas = atlas;
+        this.width = measure(text);
+        this.dirty = true;
+    }
+
+    public void setText(String text) {
+        this.text = text == null ? "" : text;
+        this.width = measure(this.text);
+        this.dirty = true;
+    }
+
+    public GlyphAtlas getAtlas() {
+        return atlas;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return atlas.getLineHeight();
+    }
+
+    private int measure(String str) {
+        int w = 0;
+        for (int i = 0; i < str.length();) {
+            int codePoint = str.codePointAt(i);
+            w += atlas.getMetrics().charWidth(codePoint);
+            i += Character.charCount(codePoint);
+        }
+        return w;
+    }
+
+    /**
+     * 文字列の左上を原点として描く
+     */
+    public void draw(Vector4d color) {
+        if (dirty || builtGeneration != atlas.getGeneration()) {
+            build();
+        }
+        if (vertexCount == 0)
+            return;
+
+        Graphics g = Graphics.get();
+        g.setColor(color);
+        g.drawText(atlas, vertices, vertexCount);
+    }
+
+    private void build() {
+        /* グリフの追加でアトラスが広がることがあるので、先に全部そろえてから座標を計算する */
+        int length = text.codePointCount(0, text.length());
+        GlyphAtlas.Glyph[] glyphs = new GlyphAtlas.Glyph[length];
+        for (int i = 0, j = 0; i < text.length(); j++) {
+            int codePoint = text.codePointAt(i);
+            glyphs[j] = atlas.getGlyph(codePoint);
+            i += Character.charCount(codePoint);
+        }
+
+        if (vertices.length < length * 6 * COMPONENTS) {
+            vertices = Arrays.copyOf(vertices, Math.max(length * 6 * COMPONENTS, vertices.length * 2));
+        }
+
+        float texW = atlas.getWidth(), texH = atlas.getHeight();
+        int n = 0;
+        float x = 0;
+        for (GlyphAtlas.Glyph glyph : glyphs) {
+            float x1 = x + glyph.width, y1 = glyph.height;
+            float u0 = glyph.x / texW, v0 = glyph.y / texH;
+            float u1 = (glyph.x + glyph.width) / texW, v1 = (glyph.y + glyph.height) / texH;
+
+            n = put(n, x, 0, u0, v0);
+            n = put(n, x1, 0, u1, v0);
+            n = put(n, x1, y1, u1, v1);
+            n = put(n, x, 0, u0, v0);
+            n = put(n, x1, y1, u1, v1);
+            n = put(n, x, y1, u0, v1);
+
+            x += glyph.advance;
+        }
+        vertexCount = n / COMPONENTS;
+
+        dirty = false;
+        builtGeneration = atlas.getGeneration();
+    }
+
+    private int put(int n, float x, float y, float u, float v) {
+        vertices[n++] = x;
+        vertices[n++] = y;
+        vertices[n++] = u;
+        vertices[n++] = v;
+        return n;
+    }
+
+    public void dispose() {
+        vertexCount = 0;
+        dirty = true;
+    }
+}
@@ -0,0 +1,103 @@
+package jp.shosato.micropaint.renderers;
+
+import static org.lwjgl.opengl.GL15.*;
+
+import java.nio.FloatBuffer;
+
+import org.lwjgl.BufferUtils;
+
+/**
+ * 頂点バッファオブジェクト(VBO)のラッパ
+ * 1頂点あたりcomponents個のfloatを保持する。既定は2次元座標(x, y)
+ */
+public class VertexBuffer {
+    private final int id;
+    private final int components;
+    /**
+     * 確保済みの頂点数
+     */
+    private int capacity = 0;
+
+    public VertexBuffer() {
+        this(2);
+    }
+
+    public VertexBuffer(int components) {
+        this.id = glGenBuffers();
+        this.components = components;
+    }
+
+    /**
+     * バッファを作り直して全頂点を転送
+     */
+    public void upload(float[] vertices, int vertexCount, int capacity) {
+        allocate(Math.max(vertexCount, capacity));
+        if (vertexCount > 0) {
+            update(0, vertices, vertexCount);
+        }
+    }
+
+    /**
+     * 中身を転送せずにcapacity頂点分の領域を確保し直す
+     */
+    public void allocate(int capacity) {
+        this.capacity = capacity;
+        glBindBuffer(GL_ARRAY_BUFFER, id);
+        glBufferData(GL_ARRAY_BUFFER, (long) capacity * components * Float.BYTES, GL_STATIC_DRAW);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+    }
+
+    /**
+     * 指定した頂点位置から部分的に転送
+     */
+    public void update(int firstVertex, float[] vertices, int vertexCount) {
+        assert (firstVertex + vertexCount <= capacity);
+
+        glBindBuffer(GL_ARRAY_BUFFER, id);
+        glBufferSubData(GL_ARRAY_BUFFER, (long) firstVertex * components * Float.BYTES,
+                toFloatBuffer(vertices, vertexCount * components));
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+    }
+
+    /**
+     * ネイティブメモリ上の頂点を一時バッファを介さずに転送。positionからlimitまでを送る
+     */
+    public void update(int firstVertex, FloatBuffer vertices) {
+        assert (firstVertex + vertices.remaining() / components <= capacity);
+
+        glBindBuffer(GL_ARRAY_BUFFER, id);
+        glBufferSubData(GL_ARRAY_BUFFER, (long) firstVertex * components * Float.BYTES, vertices);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public void bind() {
+        glBindBuffer(GL_ARRAY_BUFFER, id);
+    }
+
+    public static void unbind() {
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+    }
+
+    public void delete() {
+        glDeleteBuffers(id);
+    }
+
+    /**
+     * 転送用の一時バッファ。GLはシングルスレッドなので使い回す
+     */
+    private static FloatBuffer scratch = BufferUtils.createFloatBuffer(1024);
+
+    private static FloatBuffer toFloatBuffer(float[] values, int length) {
+        if (scratch.capacity() < length) {
+            scratch = BufferUtils.createFloatBuffer(Math.max(length, scratch.capacity() * 2));
+        }
+        scratch.clear();
+        scratch.put(values, 0, length);
+        scratch.flip();
+        return scratch;
+    }
+}
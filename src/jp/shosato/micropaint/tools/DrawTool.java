@@ -1,17 +1,19 @@
 package jp.shosato.micropaint.tools;
 
-import static org.lwjgl.opengl.GL11.*;
-
-import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import org.joml.Vector2d;
 import org.joml.Vector4d;
 
 import jp.shosato.micropaint.components.Canvas;
 import jp.shosato.micropaint.components.FigureComponent;
+import jp.shosato.micropaint.components.figures.PolygonFigure;
 import jp.shosato.micropaint.events.mouse.MouseClickEventListener;
 import jp.shosato.micropaint.events.mouse.MouseEvent;
 import jp.shosato.micropaint.events.mouse.MouseMoveEventListener;
+import jp.shosato.micropaint.renderers.Graphics;
+import jp.shosato.micropaint.utils.PointList;
 
 /**
  * 図形を描画するツール
@@ -28,6 +30,17 @@ public class DrawTool extends Tool implements MouseMoveEventListener, MouseClick
     private Vector4d snapPointColor = new Vector4d(0, 1, 0, 1);
     private Vector4d firstPointColor = highlightPointColor;
 
+    /**
+     * ポインタの吸着先（キャンバス座標）。頂点や辺の中点、格子に吸着しているときに強調する
+     */
+    private final Vector2d snapTarget = new Vector2d();
+    private boolean snapped = false;
+    /**
+     * snapPosで置き換える前のイベントの位置とまとめられた点（設定されていなければnull）。restorePosで戻す
+     */
+    private Vector2d originalPos;
+    private List<Vector2d> originalSamples;
+
     public DrawTool(Canvas canvas) {
         super(canvas);
     }
@@ -41,29 +54,28 @@ public class DrawTool extends Tool implements MouseMoveEventListener, MouseClick
             current.draw();
 
             // 描画中はわかりやすくするため頂点も描画
-            ArrayList<Vector2d> vertices = current.getVertices();
+            Graphics g = Graphics.get();
+            PointList vertices = current.getPoints();
             if (vertices.size() > 0) {
-                Vector2d v = vertices.get(0);
-                glPointSize(10.0f);
-                glBegin(GL_POINTS);
-                glColor4d(firstPointColor.x, firstPointColor.y, firstPointColor.z, firstPointColor.w);
-                glVertex2d(v.x, v.y);
-                glEnd();
+                g.setColor(firstPointColor);
+                g.drawPoints(new float[] { (float) vertices.getX(0), (float) vertices.getY(0) }, 1, 10.0f);
+            }
+
+            if (vertices.size() > 1) {
+                float[] points = vertices.toArray(1, vertices.size() - 1);
+                g.setColor(defaultPointColor);
+                g.drawPoints(points, points.length / 2, 5.0f);
             }
 
-            glPointSize(5.0f);
-            glColor4d(defaultPointColor.x, defaultPointColor.y, defaultPointColor.z, defaultPointColor.w);
-            glBegin(GL_POINTS);
-            current.getVertices().stream().skip(1).forEach((Vector2d v) -> {
-                glVertex2d(v.x, v.y);
-            });
-            glEnd();
+            if (snapped)
+                drawSnapPoint(snapTarget, snapPointColor);
         }
     }
 
     public void setFill(Vector4d color) {
         if (current != null) {
             current.setFill(color);
+            canvas.invalidate();
         }
     }
 
@@ -73,7 +85,11 @@ public class DrawTool extends Tool implements MouseMoveEventListener, MouseClick
     @Override
     public void onMouseClicked(MouseEvent event) {
         if (current != null) {
+            snapPos(event);
             current.onMouseClickDrawing(canvas, event);
+            restorePos(event);
+            /* 描画中の図形はまだキャンバスの子要素ではないので、キャンバスごと再描画 */
+            canvas.invalidate();
         }
     }
 
@@ -83,19 +99,52 @@ public class DrawTool extends Tool implements MouseMoveEventListener, MouseClick
     @Override
     public void onMouseMoved(MouseEvent event) {
         if (current != null) {
+            snapPos(event);
             current.onMouseMoveDrawing(canvas, event);
 
-            ArrayList<Vector2d> vertices = current.getVertices();
-            if (vertices.size() > 0 && event.getPos().distance(vertices.get(0)) < 10) {
+            PointList vertices = current.getPoints();
+            if (vertices.size() > 0 && event.getPos().distance(vertices.getX(0), vertices.getY(0)) < 10) {
                 firstPointColor = snapPointColor;
             } else {
                 firstPointColor = highlightPointColor;
             }
+            restorePos(event);
+            canvas.invalidate();
         }
     }
 
+    /**
+     * 多角形の頂点を置くときだけ、イベントの位置を吸着先に置き換える。ほかのツールに渡す前にrestorePosで戻すこと
+     * 自由線は押した点・離した点も含めてポインタの位置のまま描く
+     */
+    private void snapPos(MouseEvent event) {
+        originalPos = event.getPos();
+        originalSamples = event.hasCoalescedPositions() ? event.getCoalescedPositions() : null;
+        if (!(current instanceof PolygonFigure)) {
+            snapped = false;
+            return;
+        }
+        snapped = canvas.snap(originalPos, null, snapTarget);
+        Vector2d pos = new Vector2d(snapTarget);
+        event.setPos(pos);
+        /* まとめられた点も吸着先だけにする。元の点のままだと位置と食い違う */
+        event.setCoalescedPositions(Collections.singletonList(pos));
+    }
+
+    /**
+     * snapPosの前の位置とまとめられた点に戻す
+     */
+    private void restorePos(MouseEvent event) {
+        event.setPos(originalPos);
+        event.setCoalescedPositions(originalSamples);
+    }
+
     public void setCurrentFigure(FigureComponent figure) {
+        /* 描きかけのままキャンバスに加えなかった図形は捨てる */
+        if (current != null && current != figure && current.getParent() == null)
+            current.dispose();
         this.current = figure;
+        canvas.invalidate();
     }
 
     @Override
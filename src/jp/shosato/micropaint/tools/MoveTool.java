@@ -1,6 +1,7 @@
 package jp.shosato.micropaint.tools;
 
 import org.joml.Vector2d;
+import org.joml.Vector4d;
 
 import jp.shosato.micropaint.components.Canvas;
 import jp.shosato.micropaint.components.FigureComponent;
@@ -9,6 +10,7 @@ import jp.shosato.micropaint.events.mouse.MouseEnterEventListener;
 import jp.shosato.micropaint.events.mouse.MouseEvent;
 import jp.shosato.micropaint.events.mouse.MouseLeaveEventListener;
 import jp.shosato.micropaint.events.mouse.MouseMoveEventListener;
+import jp.shosato.micropaint.utils.PointList;
 
 import static org.lwjgl.glfw.GLFW.*;
 
@@ -18,7 +20,15 @@ import static org.lwjgl.glfw.GLFW.*;
 public class MoveTool extends Tool
         implements MouseClickEventListener, MouseMoveEventListener, MouseEnterEventListener, MouseLeaveEventListener {
 
-    private Vector2d prevPos;
+    /**
+     * 吸着させる点（つかんだ図形の頂点）の今の位置と、ポインタからのずれ
+     * ポインタにずれを足した点を吸着させ、この点が吸着先に来るように動かす
+     */
+    private final Vector2d anchorPos = new Vector2d();
+    private final Vector2d grabOffset = new Vector2d();
+    private final Vector2d snapTarget = new Vector2d();
+    private boolean snapped = false;
+    private Vector4d snapPointColor = new Vector4d(0, 1, 0, 1);
     /**
      * 移動中かどうかのフラグ（マウス押下など）
      */
@@ -36,7 +46,8 @@ public class MoveTool extends Tool
 
     @Override
     public void draw() {
-
+        if (moving && snapped)
+            drawSnapPoint(snapTarget, snapPointColor);
     }
 
     /**
@@ -46,12 +57,18 @@ public class MoveTool extends Tool
     @Override
     public void onMouseMoved(MouseEvent event) {
         if (moving) {
-            Vector2d pos = event.getPos();
-            Vector2d diff = new Vector2d(pos).sub(prevPos);
-            for (FigureComponent figure : selectTool.getSelected()) {
-                figure.move(diff);
+            Vector2d want = new Vector2d(event.getPos()).add(grabOffset);
+            boolean wasSnapped = snapped;
+            snapped = canvas.snap(want, selectTool.getSelected(), snapTarget);
+            Vector2d diff = new Vector2d(snapTarget).sub(anchorPos);
+            if (diff.x != 0 || diff.y != 0) {
+                for (FigureComponent figure : selectTool.getSelected()) {
+                    figure.move(diff);
+                }
+                anchorPos.set(snapTarget);
+            } else if (snapped != wasSnapped) {
+                canvas.invalidate();
             }
-            prevPos = pos;
         }
     }
 
@@ -67,17 +84,41 @@ public class MoveTool extends Tool
                     case GLFW_PRESS:
                         if (event.getTarget() instanceof FigureComponent) {
                             moving = true;
-                            prevPos = event.getPos();
+                            Vector2d pos = event.getPos();
+                            grabAnchor((FigureComponent) event.getTarget(), pos);
+                            grabOffset.set(anchorPos).sub(pos);
                         }
                         break;
                     case GLFW_RELEASE:
+                        if (moving && snapped)
+                            canvas.invalidate();
                         moving = false;
+                        snapped = false;
                         break;
                 }
                 break;
         }
     }
 
+    /**
+     * つかんだ点の近くに図形の頂点があればそれを、なければつかんだ点そのものを吸着させる点にする
+     */
+    private void grabAnchor(FigureComponent figure, Vector2d pos) {
+        anchorPos.set(pos);
+        PointList vertices = figure.getPoints();
+        if (vertices == null)
+            return;
+        double best = canvas.toCanvasLength(Canvas.SNAP_DISTANCE);
+        best *= best;
+        for (int i = 0; i < vertices.size(); i++) {
+            double d = pos.distanceSquared(vertices.getX(i), vertices.getY(i));
+            if (d <= best) {
+                best = d;
+                vertices.get(i, anchorPos);
+            }
+        }
+    }
+
     @Override
     public void onMouseEnter(MouseEvent event) {
         if (event.getTarget() instanceof FigureComponent) {
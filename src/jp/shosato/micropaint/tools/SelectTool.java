@@ -2,8 +2,11 @@ package jp.shosato.micropaint.tools;
 
 import static org.lwjgl.glfw.GLFW.*;
 
+import java.util.Collection;
 import java.util.HashSet;
 
+import org.joml.Vector2d;
+
 import jp.shosato.micropaint.components.BasicComponent;
 import jp.shosato.micropaint.components.Canvas;
 import jp.shosato.micropaint.components.FigureComponent;
@@ -13,12 +16,16 @@ import jp.shosato.micropaint.events.handlers.SelectionChangedEventHandler;
 import jp.shosato.micropaint.events.handlers.SelectionChangedEvent.Action;
 import jp.shosato.micropaint.events.mouse.MouseClickEventListener;
 import jp.shosato.micropaint.events.mouse.MouseEvent;
+import jp.shosato.micropaint.events.mouse.MouseMoveEventListener;
+import jp.shosato.micropaint.renderers.Graphics;
+import jp.shosato.micropaint.renderers.LineBatch;
 import jp.shosato.micropaint.utils.BoundingBox;
+import jp.shosato.micropaint.utils.Utility;
 
 /**
  * 選択ツール
  */
-public class SelectTool extends Tool implements MouseClickEventListener {
+public class SelectTool extends Tool implements MouseClickEventListener, MouseMoveEventListener {
 
     /**
      * 選択範囲を描画する図形。状態はModelで持つためこれは一時的
@@ -30,6 +37,34 @@ public class SelectTool extends Tool implements MouseClickEventListener {
      */
     public final EventHandler<SelectionChangedEventHandler> onSelectionChanged = new EventHandler<>();
 
+    /**
+     * 選択枠はまとめて1回で描く
+     */
+    private final LineBatch outlines = new LineBatch();
+    /**
+     * 枠が今の選択状態と図形の形に合っているか。選択が変わるか、選択中の図形が変わったら作り直す
+     */
+    private boolean outlinesValid = false;
+    /**
+     * 選択数がこれを超えたら、全体を囲む1つの枠だけを描く。負なら常に個別に描く
+     */
+    private int aggregateThreshold = 5000;
+
+    /**
+     * 範囲選択の始点（キャンバス座標）。ドラッグしていなければnull
+     */
+    private Vector2d marqueeStart = null;
+    private BoundingBox marquee = null;
+    /**
+     * ドラッグ中に範囲に入っている図形。離したときにまとめて選択する
+     */
+    private final HashSet<FigureComponent> marqueeFigures = new HashSet<>();
+    private final LineBatch marqueeOutline = new LineBatch();
+    /**
+     * 画面上でこれ未満しか動かなければ範囲選択ではなくクリックとみなす（ピクセル）
+     */
+    private static final double MARQUEE_THRESHOLD = 3;
+
     public SelectTool(Canvas canvas) {
         super(canvas);
     }
@@ -39,13 +74,64 @@ public class SelectTool extends Tool implements MouseClickEventListener {
      */
     public void setSelectedFigures(HashSet<FigureComponent> selectedFigures) {
         this.selectedFigures = selectedFigures;
+        this.outlinesValid = false;
+        canvas.invalidate();
+    }
+
+    public void setAggregateThreshold(int threshold) {
+        this.aggregateThreshold = threshold;
+        this.outlinesValid = false;
     }
 
     @Override
     public void draw() {
-        for (FigureComponent figure : selectedFigures) {
-            BoundingBox bb = figure.getBB();
-            bb.draw();
+        /* ドラッグ中は範囲に入っている図形を選択されたものとして見せる */
+        HashSet<FigureComponent> figures = marquee != null ? marqueeFigures : selectedFigures;
+
+        if (!outlinesValid) {
+            updateOutlines(figures);
+            outlinesValid = true;
+        }
+
+        if (!outlines.isEmpty())
+            BoundingBox.drawOutlines(outlines);
+
+        if (marquee != null) {
+            Graphics g = Graphics.get();
+            g.setColor(0.3, 0.5, 1, 0.15);
+            g.fillRect(marquee.topLeft.x(), marquee.topLeft.y(), marquee.bottomRight.x(), marquee.bottomRight.y());
+            marqueeOutline.clear();
+            marquee.appendOutline(marqueeOutline);
+            BoundingBox.drawOutlines(marqueeOutline);
+        }
+    }
+
+    /**
+     * 選択中（ドラッグ中なら範囲内）の図形が動いたり変形したりしたら枠を作り直す
+     */
+    @Override
+    public void onFigureChanged(FigureComponent figure) {
+        if (selectedFigures.contains(figure) || marqueeFigures.contains(figure))
+            outlinesValid = false;
+    }
+
+    private void updateOutlines(Collection<FigureComponent> figures) {
+        outlines.clear();
+        if (aggregateThreshold >= 0 && figures.size() > aggregateThreshold) {
+            BoundingBox union = null;
+            for (FigureComponent figure : figures) {
+                BoundingBox bb = figure.getBB();
+                if (bb != null)
+                    union = union == null ? bb : Utility.union(union, bb);
+            }
+            if (union != null)
+                union.appendOutline(outlines);
+        } else {
+            for (FigureComponent figure : figures) {
+                BoundingBox bb = figure.getBB();
+                if (bb != null)
+                    bb.appendOutline(outlines);
+            }
         }
     }
 
@@ -63,10 +149,13 @@ public class SelectTool extends Tool implements MouseClickEventListener {
                             this.onSelectionChanged
                                     .invoke(new SelectionChangedEvent(Action.TOGGLE, (FigureComponent) target));
                         } else {
-                            this.onSelectionChanged.invoke(new SelectionChangedEvent(Action.UNSELECTALL, null));
+                            marqueeStart = new Vector2d(event.getPos());
                         }
                     }
                         break;
+                    case GLFW_RELEASE:
+                        finishMarquee();
+                        break;
                 }
                 break;
             case GLFW_MOUSE_BUTTON_RIGHT:
@@ -78,10 +167,52 @@ public class SelectTool extends Tool implements MouseClickEventListener {
         }
     }
 
+    /**
+     * ドラッグ中は範囲を広げ、範囲に入る図形を空間インデックスで引き直す
+     */
+    @Override
+    public void onMouseMoved(MouseEvent event) {
+        if (marqueeStart == null)
+            return;
+        Vector2d pos = event.getPos();
+        if (marquee == null && marqueeStart.distance(pos) < canvas.toCanvasLength(MARQUEE_THRESHOLD))
+            return;
+
+        marquee = new BoundingBox(Math.min(marqueeStart.x, pos.x), Math.min(marqueeStart.y, pos.y),
+                Math.max(marqueeStart.x, pos.x), Math.max(marqueeStart.y, pos.y));
+        marqueeFigures.clear();
+        canvas.getFiguresIn(marquee, marqueeFigures);
+        outlinesValid = false;
+        canvas.invalidate();
+    }
+
+    /**
+     * 範囲選択なら範囲内の図形で選択を置き換え、ただのクリックなら選択を解除する
+     */
+    private void finishMarquee() {
+        if (marqueeStart == null)
+            return;
+        if (marquee == null) {
+            this.onSelectionChanged.invoke(new SelectionChangedEvent(Action.UNSELECTALL, (FigureComponent) null));
+        } else {
+            this.onSelectionChanged
+                    .invoke(new SelectionChangedEvent(Action.REPLACE, new HashSet<>(marqueeFigures)));
+        }
+        marqueeStart = null;
+        marquee = null;
+        marqueeFigures.clear();
+        outlinesValid = false;
+        canvas.invalidate();
+    }
+
     @Override
     public void onMouseClicked(MouseEvent event, boolean captureing) {
     }
 
+    @Override
+    public void onMouseMoved(MouseEvent event, boolean captureing) {
+    }
+
     public HashSet<FigureComponent> getSelected() {
         return selectedFigures;
     }
@@ -1,6 +1,11 @@
 package jp.shosato.micropaint.tools;
 
+import org.joml.Vector2d;
+import org.joml.Vector4d;
+
 import jp.shosato.micropaint.components.Canvas;
+import jp.shosato.micropaint.components.FigureComponent;
+import jp.shosato.micropaint.renderers.Graphics;
 import jp.shosato.micropaint.utils.IDrawable2D;
 
 /**
@@ -12,4 +17,19 @@ public abstract class Tool implements IDrawable2D {
     public Tool(Canvas canvas) {
         this.canvas = canvas;
     }
+
+    /**
+     * キャンバス上の図形の形や色が変わったときにCanvasから呼ばれる
+     */
+    public void onFigureChanged(FigureComponent figure) {
+    }
+
+    /**
+     * 吸着先の点を強調して描く
+     */
+    protected static void drawSnapPoint(Vector2d pos, Vector4d color) {
+        Graphics g = Graphics.get();
+        g.setColor(color);
+        g.drawPoints(new float[] { (float) pos.x, (float) pos.y }, 1, 10.0f);
+    }
 }
@@ -1,42 +1,120 @@
 package jp.shosato.micropaint.utils;
 
-import static org.lwjgl.opengl.GL15.*;
+import org.joml.Matrix3x2dc;
 import org.joml.Vector2d;
+import org.joml.Vector2dc;
 
+import jp.shosato.micropaint.renderers.Graphics;
+import jp.shosato.micropaint.renderers.LineBatch;
+
+/**
+ * 外接矩形。変更できない値なので、図形がキャッシュしたものをそのまま共有できる
+ * 大きさを変えるメソッドは新しい矩形を返す
+ */
 public class BoundingBox implements IDrawable2D {
 
-    public final Vector2d topLeft;
-    public final Vector2d bottomRight;
+    public final Vector2dc topLeft;
+    public final Vector2dc bottomRight;
+
+    /**
+     * 選択枠の線の太さ（ピクセル）
+     */
+    private static final float OUTLINE_WIDTH = 5;
+
+    public BoundingBox(Vector2dc topLeft, Vector2dc bottomRight) {
+        this(topLeft.x(), topLeft.y(), bottomRight.x(), bottomRight.y());
+    }
 
-    public BoundingBox(Vector2d topLeft, Vector2d bottomRight) {
-        this.topLeft = topLeft;
-        this.bottomRight = bottomRight;
+    public BoundingBox(double minX, double minY, double maxX, double maxY) {
+        this.topLeft = new Vector2d(minX, minY);
+        this.bottomRight = new Vector2d(maxX, maxY);
     }
 
     @Override
     public void draw() {
-        glEnable(GL_LINE_STIPPLE);
+        LineBatch batch = new LineBatch();
+        appendOutline(batch);
+        drawOutlines(batch);
+    }
+
+    /**
+     * 選択枠のスタイル（破線）でまとめて描く
+     */
+    public static void drawOutlines(LineBatch batch) {
+        Graphics.get().setColor(1, 0, 1, 1);
+        batch.draw(OUTLINE_WIDTH, true);
+    }
 
-        glColor4d(1, 0, 1, 1);
-        glLineStipple(2, (short) 0x0f0f);
-        glLineWidth(5);
+    /**
+     * 枠線をまとめて描くためのバッチに追加
+     */
+    public void appendOutline(LineBatch batch) {
+        batch.addRectangle(topLeft.x(), topLeft.y(), bottomRight.x(), bottomRight.y());
+    }
 
-        Utility.drawRectangleLineStrip(topLeft, bottomRight);
+    /**
+     * 四方にmarginだけ広げた矩形
+     */
+    public BoundingBox withMargin(double margin) {
+        return new BoundingBox(topLeft.x() - margin, topLeft.y() - margin, bottomRight.x() + margin,
+                bottomRight.y() + margin);
+    }
+
+    /**
+     * (dx, dy)だけ平行移動した矩形
+     */
+    public BoundingBox translated(double dx, double dy) {
+        return new BoundingBox(topLeft.x() + dx, topLeft.y() + dy, bottomRight.x() + dx, bottomRight.y() + dy);
+    }
+
+    /**
+     * 点(x, y)を含むように広げた矩形。すでに含んでいればこの矩形を返す
+     */
+    public BoundingBox including(double x, double y) {
+        if (topLeft.x() <= x && x <= bottomRight.x() && topLeft.y() <= y && y <= bottomRight.y())
+            return this;
+        return new BoundingBox(Math.min(topLeft.x(), x), Math.min(topLeft.y(), y), Math.max(bottomRight.x(), x),
+                Math.max(bottomRight.y(), y));
+    }
+
+    /**
+     * 行列で変形した後の4隅を囲む矩形
+     */
+    public BoundingBox transformed(Matrix3x2dc m) {
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < 4; i++) {
+            double x = (i & 1) == 0 ? topLeft.x() : bottomRight.x();
+            double y = (i & 2) == 0 ? topLeft.y() : bottomRight.y();
+            double tx = m.m00() * x + m.m10() * y + m.m20();
+            double ty = m.m01() * x + m.m11() * y + m.m21();
+            minX = Math.min(minX, tx);
+            minY = Math.min(minY, ty);
+            maxX = Math.max(maxX, tx);
+            maxY = Math.max(maxY, ty);
+        }
+        return new BoundingBox(minX, minY, maxX, maxY);
+    }
 
-        glDisable(GL_LINE_STIPPLE);
+    public boolean intersects(BoundingBox other) {
+        return topLeft.x() <= other.bottomRight.x() && other.topLeft.x() <= bottomRight.x()
+                && topLeft.y() <= other.bottomRight.y() && other.topLeft.y() <= bottomRight.y();
     }
 
-    public void makeMargin(double margin) {
-        topLeft.sub(margin, margin);
-        bottomRight.add(margin, margin);
+    /**
+     * otherが完全にこの矩形の中にあるか
+     */
+    public boolean encloses(BoundingBox other) {
+        return topLeft.x() <= other.topLeft.x() && other.bottomRight.x() <= bottomRight.x()
+                && topLeft.y() <= other.topLeft.y() && other.bottomRight.y() <= bottomRight.y();
     }
 
     public double getWidth() {
-        return Math.abs(this.bottomRight.x - this.topLeft.x);
+        return Math.abs(this.bottomRight.x() - this.topLeft.x());
     }
 
     public double getHeight() {
-        return Math.abs(this.bottomRight.y - this.topLeft.y);
+        return Math.abs(this.bottomRight.y() - this.topLeft.y());
     }
 
     public Vector2d getDimension() {
@@ -0,0 +1,223 @@
+package jp.shosato.micropaint.utils;
+
+import java.nio.FloatBuffer;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+import org.joml.Vector2d;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * 点(x, y)の並びを1本のfloat配列に詰めて持つ可変長の列
+ * 点ごとにVector2dを作ると1点あたり40バイト近くになるが、これなら8バイトで済み、順に読むときもメモリ上で連続している
+ * ネイティブメモリに置くこともできる。GCの走査対象にならず、VBOへは写さずにそのまま転送できる。使い終わったらdisposeで解放すること
+ */
+public class PointList {
+    /**
+     * ヒープに置くときの中身。ネイティブメモリに置くならnull
+     */
+    private float[] xy;
+    /**
+     * ネイティブメモリに置くときの中身（MemoryUtilで確保）。limitは常に容量いっぱい
+     */
+    private FloatBuffer buffer;
+    private int size = 0;
+    private final List<Vector2d> view = new View();
+
+    public PointList() {
+        this(16);
+    }
+
+    public PointList(int capacity) {
+        this(capacity, false);
+    }
+
+    /**
+     * @param offHeap ネイティブメモリに置くか
+     */
+    public PointList(int capacity, boolean offHeap) {
+        int length = Math.max(1, capacity) * 2;
+        if (offHeap) {
+            buffer = MemoryUtil.memAllocFloat(length);
+        } else {
+            xy = new float[length];
+        }
+    }
+
+    public PointList(List<Vector2d> points) {
+        this(points.size());
+        for (int i = 0, n = points.size(); i < n; i++) {
+            Vector2d p = points.get(i);
+            add(p.x, p.y);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean isOffHeap() {
+        return buffer != null;
+    }
+
+    public double getX(int i) {
+        return buffer != null ? buffer.get(i * 2) : xy[i * 2];
+    }
+
+    public double getY(int i) {
+        return buffer != null ? buffer.get(i * 2 + 1) : xy[i * 2 + 1];
+    }
+
+    public Vector2d get(int i, Vector2d dest) {
+        return dest.set(getX(i), getY(i));
+    }
+
+    public void add(double x, double y) {
+        if ((size + 1) * 2 > capacity())
+            grow();
+        set(size++, x, y);
+    }
+
+    public void set(int i, double x, double y) {
+        if (buffer != null) {
+            buffer.put(i * 2, (float) x);
+            buffer.put(i * 2 + 1, (float) y);
+        } else {
+            xy[i * 2] = (float) x;
+            xy[i * 2 + 1] = (float) y;
+        }
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * 先頭のsize個の点だけを残す
+     */
+    public void truncate(int size) {
+        assert (size <= this.size);
+        this.size = size;
+    }
+
+    /**
+     * 全ての点を平行移動
+     */
+    public void translate(double dx, double dy) {
+        if (buffer != null) {
+            for (int i = 0; i < size * 2; i += 2) {
+                buffer.put(i, (float) (buffer.get(i) + dx));
+                buffer.put(i + 1, (float) (buffer.get(i + 1) + dy));
+            }
+        } else {
+            for (int i = 0; i < size * 2; i += 2) {
+                xy[i] = (float) (xy[i] + dx);
+                xy[i + 1] = (float) (xy[i + 1] + dy);
+            }
+        }
+    }
+
+    private int capacity() {
+        return buffer != null ? buffer.capacity() : xy.length;
+    }
+
+    private void grow() {
+        int length = capacity() * 2;
+        if (buffer != null) {
+            buffer = MemoryUtil.memRealloc(buffer, length);
+            buffer.clear();
+        } else {
+            xy = Arrays.copyOf(xy, length);
+        }
+    }
+
+    /**
+     * 点の座標の配列。先頭からsize() * 2個だけが有効で、点を追加すると別の配列に替わることがある。変更しないこと
+     * ネイティブメモリに置いているならnull
+     */
+    public float[] getArray() {
+        return xy;
+    }
+
+    /**
+     * ネイティブメモリ上の点の座標。先頭からsize() * 2個を指す見え方で、glBufferSubDataなどにそのまま渡せる
+     * 点を追加すると使えなくなることがあるので、取っておかずにその都度呼ぶこと。ヒープに置いているならnull
+     */
+    public FloatBuffer getBuffer() {
+        return buffer != null ? MemoryUtil.memSlice(buffer, 0, size * 2) : null;
+    }
+
+    /**
+     * 有効な部分だけを写した配列
+     */
+    public float[] toArray() {
+        return toArray(0, size);
+    }
+
+    /**
+     * first番目からcount個の点を写した配列
+     */
+    public float[] toArray(int first, int count) {
+        if (buffer == null)
+            return Arrays.copyOfRange(xy, first * 2, (first + count) * 2);
+        float[] array = new float[count * 2];
+        FloatBuffer points = getBuffer();
+        points.position(first * 2);
+        points.get(array);
+        return array;
+    }
+
+    public BoundingBox getBB() {
+        if (size == 0)
+            return null;
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < size; i++) {
+            double x = getX(i), y = getY(i);
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+        }
+        return new BoundingBox(minX, minY, maxX, maxY);
+    }
+
+    /**
+     * ネイティブメモリに置いていれば解放し、どちらの置き方でも空の列に戻る
+     */
+    public void dispose() {
+        if (buffer != null) {
+            MemoryUtil.memFree(buffer);
+            buffer = null;
+        }
+        xy = new float[2];
+        size = 0;
+    }
+
+    /**
+     * 読み取り専用のリストとしての見え方。要素は取り出すたびに作るコピーなので、変更しても元の点は変わらない
+     */
+    public List<Vector2d> asList() {
+        return view;
+    }
+
+    private class View extends AbstractList<Vector2d> implements RandomAccess {
+        @Override
+        public Vector2d get(int index) {
+            if (index < 0 || index >= size)
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            return new Vector2d(getX(index), getY(index));
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package jp.shosato.micropaint.utils;
+
+/**
+ * 多角形の内外判定を速くするための縦の帯による索引
+ * x方向を等幅の帯に分け、帯ごとにその範囲にかかる辺を登録する。判定は点を含む帯の辺だけで交差数を数える
+ * 交差の数え方はUtility.isInsidePolygonと同じ（点から上下に伸ばした半直線との交差）なので結果も一致する
+ */
+public class PolygonSlabs {
+
+    /**
+     * 帯への登録数の合計の上限（辺の数の何倍まで許すか）。長い辺が多いと帯を減らす
+     */
+    private static final int MAX_ENTRIES_PER_EDGE = 8;
+
+    /* 辺の両端。x1 <= x2になるよう並べ替えてある */
+    private final double[] x1, y1, x2, y2;
+    private final double minX, maxX;
+    private final int slabCount;
+    private final double slabScale;
+    /**
+     * 帯iの辺はslabEdges[slabStart[i]]からslabEdges[slabStart[i + 1] - 1]まで
+     */
+    private final int[] slabStart;
+    private final int[] slabEdges;
+
+    public PolygonSlabs(PointList vertices) {
+        int n = vertices.size();
+        x1 = new double[n];
+        y1 = new double[n];
+        x2 = new double[n];
+        y2 = new double[n];
+
+        double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+        for (int i = 0, j = n - 1; i < n; j = i++) {
+            double oldX = vertices.getX(j), oldY = vertices.getY(j);
+            double newX = vertices.getX(i), newY = vertices.getY(i);
+            boolean ascending = newX > oldX;
+            x1[i] = ascending ? oldX : newX;
+            y1[i] = ascending ? oldY : newY;
+            x2[i] = ascending ? newX : oldX;
+            y2[i] = ascending ? newY : oldY;
+            min = Math.min(min, x1[i]);
+            max = Math.max(max, x2[i]);
+        }
+        minX = min;
+        maxX = max;
+
+        /* 帯は辺の数程度。長い辺で登録数が増えすぎるなら半分にしていく */
+        int slabs = Math.max(1, n);
+        long entries;
+        while (true) {
+            entries = 0;
+            double scale = max > min ? slabs / (max - min) : 0;
+            for (int i = 0; i < n; i++) {
+                entries += slab(x2[i], scale, slabs) - slab(x1[i], scale, slabs) + 1;
+            }
+            if (slabs == 1 || entries <= (long) n * MAX_ENTRIES_PER_EDGE)
+                break;
+            slabs /= 2;
+        }
+        slabCount = slabs;
+        slabScale = max > min ? slabs / (max - min) : 0;
+
+        /* 帯ごとの数を数えてから詰める */
+        slabStart = new int[slabCount + 1];
+        for (int i = 0; i < n; i++) {
+            for (int s = slab(x1[i], slabScale, slabCount); s <= slab(x2[i], slabScale, slabCount); s++) {
+                slabStart[s + 1]++;
+            }
+        }
+        for (int s = 0; s < slabCount; s++) {
+            slabStart[s + 1] += slabStart[s];
+        }
+        slabEdges = new int[(int) entries];
+        int[] fill = new int[slabCount];
+        for (int i = 0; i < n; i++) {
+            for (int s = slab(x1[i], slabScale, slabCount); s <= slab(x2[i], slabScale, slabCount); s++) {
+                slabEdges[slabStart[s] + fill[s]++] = i;
+            }
+        }
+    }
+
+    private int slab(double x, double scale, int slabs) {
+        int s = (int) ((x - minX) * scale);
+        return s < 0 ? 0 : (s >= slabs ? slabs - 1 : s);
+    }
+
+    public boolean contains(double x, double y) {
+        if (x <= minX || x > maxX)
+            return false;
+        int s = slab(x, slabScale, slabCount);
+        boolean inside = false;
+        for (int k = slabStart[s], end = slabStart[s + 1]; k < end; k++) {
+            int i = slabEdges[k];
+            if ((x1[i] < x) == (x <= x2[i]) && (y - y1[i]) * (x2[i] - x1[i]) < (y2[i] - y1[i]) * (x - x1[i])) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+}
@@ -0,0 +1,73 @@
+package jp.shosato.micropaint.utils;
+
+/**
+ * Ramer–Douglas–Peucker法による折れ線の間引き
+ */
+public class PolylineSimplifier {
+
+    /**
+     * 元の全ての点が、間引いた折れ線からtolerance以内に収まるように点を減らす
+     * @return 残した点の新しい列。両端は必ず残す
+     */
+    public static PointList simplify(PointList points, double tolerance) {
+        int n = points.size();
+        PointList result = new PointList(Math.min(n, 16));
+        if (n <= 2) {
+            for (int i = 0; i < n; i++) {
+                result.add(points.getX(i), points.getY(i));
+            }
+            return result;
+        }
+
+        boolean[] keep = new boolean[n];
+        keep[0] = keep[n - 1] = true;
+        double toleranceSquared = tolerance * tolerance;
+
+        /* 再帰の代わりに区間のスタックを使う */
+        int[] stack = new int[n * 2];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = n - 1;
+        while (top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+
+            double ax = points.getX(first), ay = points.getY(first);
+            double bx = points.getX(last), by = points.getY(last);
+            double maxDistance = -1;
+            int farthest = -1;
+            for (int i = first + 1; i < last; i++) {
+                double d = segmentDistanceSquared(points.getX(i), points.getY(i), ax, ay, bx, by);
+                if (d > maxDistance) {
+                    maxDistance = d;
+                    farthest = i;
+                }
+            }
+            if (farthest >= 0 && maxDistance > toleranceSquared) {
+                keep[farthest] = true;
+                stack[top++] = first;
+                stack[top++] = farthest;
+                stack[top++] = farthest;
+                stack[top++] = last;
+            }
+        }
+
+        for (int i = 0; i < n; i++) {
+            if (keep[i])
+                result.add(points.getX(i), points.getY(i));
+        }
+        return result;
+    }
+
+    /**
+     * 点(px, py)と線分(ax, ay)-(bx, by)の距離の2乗
+     */
+    public static double segmentDistanceSquared(double px, double py, double ax, double ay, double bx, double by) {
+        double dx = bx - ax, dy = by - ay;
+        double lengthSquared = dx * dx + dy * dy;
+        double t = lengthSquared == 0 ? 0 : ((px - ax) * dx + (py - ay) * dy) / lengthSquared;
+        t = Math.max(0, Math.min(1, t));
+        double ex = ax + dx * t - px, ey = ay + dy * t - py;
+        return ex * ex + ey * ey;
+    }
+}
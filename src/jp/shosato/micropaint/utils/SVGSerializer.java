@@ -5,7 +5,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.OutputStream;
-import java.util.List;
+import java.util.Formatter;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -15,7 +15,6 @@ import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
-import org.joml.Vector2d;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
@@ -58,26 +57,13 @@ public class SVGSerializer {
         Element elem;
         if (figure instanceof PolygonFigure) {
             elem = doc.createElement("polygon");
-            StringBuilder builder = new StringBuilder();
-            List<Vector2d> vertices = ((PolygonFigure) figure).getVertices();
-            for (int i = 0, length = vertices.size(); i < length; i++) {
-                Vector2d v = vertices.get(i);
-                builder.append(String.format("%g %g", v.x, v.y));
-                if (i != length - 1)
-                    builder.append(", ");
-            }
-            elem.setAttribute("points", builder.toString());
+            elem.setAttribute("points", toPointsAttribute(figure.getPoints()));
         } else if (figure instanceof FreeLineFigure) {
             elem = doc.createElement("polyline");
-            StringBuilder builder = new StringBuilder();
-            List<Vector2d> vertices = ((FreeLineFigure) figure).getVertices();
-            for (int i = 0, length = vertices.size(); i < length; i++) {
-                Vector2d v = vertices.get(i);
-                builder.append(String.format("%g %g", v.x, v.y));
-                if (i != length - 1)
-                    builder.append(", ");
-            }
-            elem.setAttribute("points", builder.toString());
+            elem.setAttribute("points", toPointsAttribute(figure.getPoints()));
+            /* 画面上の線と同じ角と端の形 */
+            elem.setAttribute("stroke-linejoin", "round");
+            elem.setAttribute("stroke-linecap", "round");
         } else {
             System.err.println("Unsupported figure");
             return null;
@@ -88,6 +74,20 @@ public class SVGSerializer {
         return elem;
     }
 
+    /**
+     * "x y, x y, ..."の形。点の列を直接読み、点ごとにオブジェクトを作らない
+     */
+    private static String toPointsAttribute(PointList points) {
+        StringBuilder builder = new StringBuilder(points.size() * 24);
+        Formatter formatter = new Formatter(builder);
+        for (int i = 0, length = points.size(); i < length; i++) {
+            formatter.format("%g %g", points.getX(i), points.getY(i));
+            if (i != length - 1)
+                builder.append(", ");
+        }
+        return builder.toString();
+    }
+
     public void toFile(String path) throws Exception {
         try {
             DOMSource source = new DOMSource(doc);
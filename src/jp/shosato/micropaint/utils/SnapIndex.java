@@ -0,0 +1,190 @@
+package jp.shosato.micropaint.utils;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import org.joml.Vector2d;
+
+/**
+ * 吸着先の点（頂点や辺の中点）の空間ハッシュ
+ * 点は持ち主ごとに登録し、持ち主が変わったらその持ち主の点だけを入れ替える。最近傍の検索は半径と重なるセルだけを調べる
+ */
+public class SnapIndex<T> {
+
+    /**
+     * セルに入っている点。座標と持ち主を並べて持つ
+     */
+    private static class Cell {
+        double[] xy = new double[16];
+        Object[] owners = new Object[8];
+        int count = 0;
+        /**
+         * 最後に点を入れたputの番号。持ち主のセルのキーを重複なく集めるのに使う
+         */
+        int putStamp = 0;
+
+        void add(double x, double y, Object owner) {
+            if (count == owners.length) {
+                xy = Arrays.copyOf(xy, count * 4);
+                owners = Arrays.copyOf(owners, count * 2);
+            }
+            xy[count * 2] = x;
+            xy[count * 2 + 1] = y;
+            owners[count++] = owner;
+        }
+
+        /**
+         * ownerの点を取り除く。順序は保たない
+         */
+        void removeOwner(Object owner) {
+            for (int i = count - 1; i >= 0; i--) {
+                if (owners[i] == owner) {
+                    count--;
+                    xy[i * 2] = xy[count * 2];
+                    xy[i * 2 + 1] = xy[count * 2 + 1];
+                    owners[i] = owners[count];
+                    owners[count] = null;
+                }
+            }
+        }
+    }
+
+    private final double cellSize;
+    private final HashMap<Long, Cell> cells = new HashMap<>();
+    /**
+     * 持ち主ごとの、点を入れたセルのキー
+     */
+    private final IdentityHashMap<T, long[]> ownerCells = new IdentityHashMap<>();
+    private int pointCount = 0;
+    private int putStamp = 0;
+    /* nearestの途中経過 */
+    private double nearestDistance;
+    private boolean found;
+
+    public SnapIndex(double cellSize) {
+        this.cellSize = cellSize;
+    }
+
+    public int size() {
+        return pointCount;
+    }
+
+    /**
+     * 持ち主の点を登録し直す
+     * @param midpoints 辺の中点も入れるか。閉じた図形として最後の頂点から最初の頂点への辺も含める
+     */
+    public void put(T owner, PointList vertices, boolean midpoints) {
+        remove(owner);
+        int n = vertices == null ? 0 : vertices.size();
+        if (n == 0)
+            return;
+
+        putStamp++;
+        long[] keys = new long[8];
+        int keyCount = 0;
+        long lastKey = 0;
+        Cell lastCell = null;
+        for (int i = 0; i < n; i++) {
+            double vx = vertices.getX(i), vy = vertices.getY(i);
+            for (int k = 0; k < (midpoints && n > 1 ? 2 : 1); k++) {
+                double x = vx, y = vy;
+                if (k == 1) {
+                    int next = (i + 1) % n;
+                    x = (vx + vertices.getX(next)) / 2;
+                    y = (vy + vertices.getY(next)) / 2;
+                }
+                long key = key(cell(x), cell(y));
+                /* 隣り合う点はたいてい同じセルに入るので、直前のセルを使い回す */
+                if (lastCell == null || key != lastKey) {
+                    lastCell = cells.get(key);
+                    if (lastCell == null) {
+                        lastCell = new Cell();
+                        cells.put(key, lastCell);
+                    }
+                    lastKey = key;
+                    if (lastCell.putStamp != putStamp) {
+                        lastCell.putStamp = putStamp;
+                        if (keyCount == keys.length)
+                            keys = Arrays.copyOf(keys, keyCount * 2);
+                        keys[keyCount++] = key;
+                    }
+                }
+                lastCell.add(x, y, owner);
+                pointCount++;
+            }
+        }
+        ownerCells.put(owner, Arrays.copyOf(keys, keyCount));
+    }
+
+    public void remove(T owner) {
+        long[] keys = ownerCells.remove(owner);
+        if (keys == null)
+            return;
+        for (long key : keys) {
+            Cell cell = cells.get(key);
+            if (cell == null)
+                continue;
+            int before = cell.count;
+            cell.removeOwner(owner);
+            pointCount -= before - cell.count;
+            if (cell.count == 0)
+                cells.remove(key);
+        }
+    }
+
+    public void clear() {
+        cells.clear();
+        ownerCells.clear();
+        pointCount = 0;
+    }
+
+    /**
+     * (x, y)から距離radius以内で最も近い点をdestに入れる
+     * @param exclude この持ち主の点は使わない。nullなら除外なし
+     * @return 見つかればtrue
+     */
+    public boolean nearest(double x, double y, double radius, Set<?> exclude, Vector2d dest) {
+        int minCellX = cell(x - radius), minCellY = cell(y - radius);
+        int maxCellX = cell(x + radius), maxCellY = cell(y + radius);
+        nearestDistance = radius * radius;
+        found = false;
+        if ((long) (maxCellX - minCellX + 1) * (maxCellY - minCellY + 1) > cells.size()) {
+            /* 縮小表示で半径が大きいときは、空のセルを引くより全セルを調べる方が速い */
+            for (Cell cell : cells.values()) {
+                search(cell, x, y, exclude, dest);
+            }
+            return found;
+        }
+        for (int cy = minCellY; cy <= maxCellY; cy++) {
+            for (int cx = minCellX; cx <= maxCellX; cx++) {
+                Cell cell = cells.get(key(cx, cy));
+                if (cell != null)
+                    search(cell, x, y, exclude, dest);
+            }
+        }
+        return found;
+    }
+
+    private void search(Cell cell, double x, double y, Set<?> exclude, Vector2d dest) {
+        double[] xy = cell.xy;
+        for (int i = 0; i < cell.count; i++) {
+            double dx = xy[i * 2] - x, dy = xy[i * 2 + 1] - y;
+            double d = dx * dx + dy * dy;
+            if (d <= nearestDistance && (exclude == null || !exclude.contains(cell.owners[i]))) {
+                nearestDistance = d;
+                dest.set(xy[i * 2], xy[i * 2 + 1]);
+                found = true;
+            }
+        }
+    }
+
+    private int cell(double v) {
+        return (int) Math.floor(v / cellSize);
+    }
+
+    private static long key(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xffffffffL);
+    }
+}
@@ -0,0 +1,192 @@
+package jp.shosato.micropaint.utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * 一様格子による空間インデックス
+ * 要素を外接矩形が重なるセルに登録し、範囲と重なる要素をセル単位で探す
+ */
+public class SpatialGrid<T> {
+
+    private static class Item<T> {
+        final T value;
+        double minX, minY, maxX, maxY;
+        int minCellX, minCellY, maxCellX, maxCellY;
+        /**
+         * 範囲がないので、どのセルにも登録されていない
+         */
+        boolean empty = true;
+        /**
+         * セルに登録するには大きすぎるので別に持つ
+         */
+        boolean oversized = false;
+        /**
+         * 最後に検索結果に入れたときの番号。複数のセルに登録されていても一度だけ返す
+         */
+        int queryStamp = 0;
+
+        Item(T value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * 1つの要素が登録されるセル数の上限。これを超える要素はセルに登録しない
+     */
+    private static final int MAX_CELLS_PER_ITEM = 256;
+
+    private final double cellSize;
+    private final HashMap<Long, ArrayList<Item<T>>> cells = new HashMap<>();
+    private final IdentityHashMap<T, Item<T>> items = new IdentityHashMap<>();
+    private final ArrayList<Item<T>> oversized = new ArrayList<>();
+    private int queryStamp = 0;
+
+    public SpatialGrid(double cellSize) {
+        this.cellSize = cellSize;
+    }
+
+    public int size() {
+        return items.size();
+    }
+
+    public boolean contains(T value) {
+        return items.containsKey(value);
+    }
+
+    /**
+     * 要素を登録、または範囲を更新
+     * @param bb nullなら範囲なし（検索では返さない）
+     */
+    public void put(T value, BoundingBox bb) {
+        Item<T> item = items.get(value);
+        if (item == null) {
+            item = new Item<>(value);
+            items.put(value, item);
+        }
+
+        if (bb == null) {
+            unlink(item);
+            item.empty = true;
+            return;
+        }
+
+        int minCellX = cell(bb.topLeft.x()), minCellY = cell(bb.topLeft.y());
+        int maxCellX = cell(bb.bottomRight.x()), maxCellY = cell(bb.bottomRight.y());
+        boolean sameCells = !item.empty && !item.oversized && item.minCellX == minCellX
+                && item.minCellY == minCellY && item.maxCellX == maxCellX && item.maxCellY == maxCellY;
+
+        item.minX = bb.topLeft.x();
+        item.minY = bb.topLeft.y();
+        item.maxX = bb.bottomRight.x();
+        item.maxY = bb.bottomRight.y();
+        if (sameCells)
+            return;
+
+        unlink(item);
+        item.empty = false;
+        item.minCellX = minCellX;
+        item.minCellY = minCellY;
+        item.maxCellX = maxCellX;
+        item.maxCellY = maxCellY;
+        if ((long) (maxCellX - minCellX + 1) * (maxCellY - minCellY + 1) > MAX_CELLS_PER_ITEM) {
+            item.oversized = true;
+            oversized.add(item);
+            return;
+        }
+        for (int cy = minCellY; cy <= maxCellY; cy++) {
+            for (int cx = minCellX; cx <= maxCellX; cx++) {
+                ArrayList<Item<T>> list = cells.get(key(cx, cy));
+                if (list == null) {
+                    list = new ArrayList<>();
+                    cells.put(key(cx, cy), list);
+                }
+                list.add(item);
+            }
+        }
+    }
+
+    public void remove(T value) {
+        Item<T> item = items.remove(value);
+        if (item != null)
+            unlink(item);
+    }
+
+    public void clear() {
+        items.clear();
+        cells.clear();
+        oversized.clear();
+    }
+
+    /**
+     * 範囲と外接矩形が重なる要素をoutに追加。順序は不定
+     */
+    public void query(BoundingBox rect, Collection<? super T> out) {
+        queryStamp++;
+        double minX = rect.topLeft.x(), minY = rect.topLeft.y();
+        double maxX = rect.bottomRight.x(), maxY = rect.bottomRight.y();
+
+        int minCellX = cell(minX), minCellY = cell(minY);
+        int maxCellX = cell(maxX), maxCellY = cell(maxY);
+        if ((long) (maxCellX - minCellX + 1) * (maxCellY - minCellY + 1) > items.size()) {
+            /* セルを調べるより全要素を調べる方が速い */
+            for (Item<T> item : items.values()) {
+                if (!item.empty && intersects(item, minX, minY, maxX, maxY))
+                    out.add(item.value);
+            }
+            return;
+        }
+
+        for (int cy = minCellY; cy <= maxCellY; cy++) {
+            for (int cx = minCellX; cx <= maxCellX; cx++) {
+                ArrayList<Item<T>> list = cells.get(key(cx, cy));
+                if (list == null)
+                    continue;
+                for (Item<T> item : list) {
+                    if (item.queryStamp != queryStamp && intersects(item, minX, minY, maxX, maxY)) {
+                        item.queryStamp = queryStamp;
+                        out.add(item.value);
+                    }
+                }
+            }
+        }
+        for (Item<T> item : oversized) {
+            if (intersects(item, minX, minY, maxX, maxY))
+                out.add(item.value);
+        }
+    }
+
+    private void unlink(Item<T> item) {
+        if (item.empty)
+            return;
+        if (item.oversized) {
+            oversized.remove(item);
+            item.oversized = false;
+            return;
+        }
+        for (int cy = item.minCellY; cy <= item.maxCellY; cy++) {
+            for (int cx = item.minCellX; cx <= item.maxCellX; cx++) {
+                ArrayList<Item<T>> list = cells.get(key(cx, cy));
+                if (list == null)
+                    continue;
+                list.remove(item);
+                if (list.isEmpty())
+                    cells.remove(key(cx, cy));
+            }
+        }
+    }
+
+    private static boolean intersects(Item<?> item, double minX, double minY, double maxX, double maxY) {
+        return item.minX <= maxX && minX <= item.maxX && item.minY <= maxY && minY <= item.maxY;
+    }
+
+    private int cell(double v) {
+        return (int) Math.floor(v / cellSize);
+    }
+
+    private static long key(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xffffffffL);
+    }
+}
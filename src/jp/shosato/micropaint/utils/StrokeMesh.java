@@ -0,0 +1,344 @@
+package jp.shosato.micropaint.utils;
+
+/**
+ * 折れ線を太さのある三角形の集まりにする
+ * glLineWidthはドライバによって上限があり、角もつながらないので、線は三角形として描く
+ * 開いた折れ線は点の追加に合わせて末尾だけを作り足す
+ */
+public class StrokeMesh {
+
+    public enum Join {
+        MITER, ROUND, BEVEL
+    }
+
+    public enum Cap {
+        BUTT, ROUND, SQUARE
+    }
+
+    /**
+     * これより鋭い角はマイターをやめてベベルにする（SVGの既定値）
+     */
+    private static final double MITER_LIMIT = 4;
+    /**
+     * 丸い角・端を多角形で近似するときの許容誤差（ピクセル）
+     */
+    private static final double ROUND_TOLERANCE = 0.25;
+    /**
+     * これより近い点は同じ点として扱う
+     */
+    private static final double EPSILON = 1e-9;
+
+    private final Join join;
+    private final Cap cap;
+    private final boolean closed;
+    private double width;
+
+    /**
+     * 三角形の頂点の並び（3頂点で1つの三角形）
+     */
+    private final PointList vertices;
+
+    /* 開いた折れ線を作り足すための状態 */
+    /**
+     * 処理済みの入力点の数
+     */
+    private int consumed = 0;
+    /**
+     * 末尾の端の形を除いた頂点数。点を追加するときはここまで戻してつなぎ直す
+     */
+    private int bodyCount = 0;
+    private boolean hasPoint = false;
+    private boolean hasSegment = false;
+    private double firstX, firstY;
+    private double lastX, lastY;
+    private double lastDirX, lastDirY;
+
+    public StrokeMesh(double width, Join join, Cap cap, boolean closed) {
+        this(width, join, cap, closed, false);
+    }
+
+    /**
+     * @param offHeap 三角形をネイティブメモリに置くか。置いたら使い終わったときにdisposeを呼ぶこと
+     */
+    public StrokeMesh(double width, Join join, Cap cap, boolean closed, boolean offHeap) {
+        this.width = width;
+        this.join = join;
+        this.cap = cap;
+        this.closed = closed;
+        this.vertices = new PointList(128, offHeap);
+    }
+
+    public PointList getVertices() {
+        return vertices;
+    }
+
+    public int getVertexCount() {
+        return vertices.size();
+    }
+
+    public double getWidth() {
+        return width;
+    }
+
+    /**
+     * 最初から作り直す
+     */
+    public void rebuild(PointList points, double width) {
+        this.width = width;
+        vertices.clear();
+        bodyCount = 0;
+        consumed = 0;
+        hasPoint = false;
+        hasSegment = false;
+        if (closed) {
+            buildClosed(points);
+        } else {
+            append(points);
+        }
+    }
+
+    /**
+     * 前回以降に追加された点の分だけ作り足す。開いた折れ線のみ
+     */
+    public void append(PointList points) {
+        assert (!closed);
+
+        if (consumed == points.size())
+            return;
+
+        /* 末尾の端を取り除いてからつなぐ */
+        vertices.truncate(bodyCount);
+        for (; consumed < points.size(); consumed++) {
+            double px = points.getX(consumed), py = points.getY(consumed);
+            if (!hasPoint) {
+                firstX = lastX = px;
+                firstY = lastY = py;
+                hasPoint = true;
+                continue;
+            }
+            double dx = px - lastX, dy = py - lastY;
+            double length = Math.sqrt(dx * dx + dy * dy);
+            if (length < EPSILON)
+                continue;
+            dx /= length;
+            dy /= length;
+
+            if (!hasSegment) {
+                addCap(firstX, firstY, -dx, -dy);
+                hasSegment = true;
+            } else {
+                addJoin(lastX, lastY, lastDirX, lastDirY, dx, dy);
+            }
+            addSegment(lastX, lastY, px, py, dx, dy);
+
+            lastX = px;
+            lastY = py;
+            lastDirX = dx;
+            lastDirY = dy;
+        }
+        bodyCount = vertices.size();
+
+        if (hasSegment) {
+            addCap(lastX, lastY, lastDirX, lastDirY);
+        } else if (hasPoint) {
+            addDot(lastX, lastY);
+        }
+    }
+
+    /**
+     * 作成済みの三角形を平行移動。形は変わらないので作り直さない
+     */
+    public void translate(double dx, double dy) {
+        vertices.translate(dx, dy);
+        firstX += dx;
+        firstY += dy;
+        lastX += dx;
+        lastY += dy;
+    }
+
+    private void buildClosed(PointList points) {
+        /* 重なった点を除いた頂点列 */
+        int n = points.size();
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        int m = 0;
+        for (int i = 0; i < n; i++) {
+            double px = points.getX(i), py = points.getY(i);
+            if (m > 0 && Math.abs(px - xs[m - 1]) < EPSILON && Math.abs(py - ys[m - 1]) < EPSILON)
+                continue;
+            xs[m] = px;
+            ys[m] = py;
+            m++;
+        }
+        while (m > 1 && Math.abs(xs[0] - xs[m - 1]) < EPSILON && Math.abs(ys[0] - ys[m - 1]) < EPSILON) {
+            m--;
+        }
+        if (m < 2) {
+            if (m == 1)
+                addDot(xs[0], ys[0]);
+            bodyCount = vertices.size();
+            return;
+        }
+
+        double[] dirX = new double[m];
+        double[] dirY = new double[m];
+        for (int i = 0; i < m; i++) {
+            int j = (i + 1) % m;
+            double dx = xs[j] - xs[i], dy = ys[j] - ys[i];
+            double length = Math.sqrt(dx * dx + dy * dy);
+            dirX[i] = dx / length;
+            dirY[i] = dy / length;
+        }
+        for (int i = 0; i < m; i++) {
+            int j = (i + 1) % m;
+            addSegment(xs[i], ys[i], xs[j], ys[j], dirX[i], dirY[i]);
+            addJoin(xs[j], ys[j], dirX[i], dirY[i], dirX[j], dirY[j]);
+        }
+        bodyCount = vertices.size();
+    }
+
+    private void addSegment(double x0, double y0, double x1, double y1, double dx, double dy) {
+        double hw = width / 2;
+        double nx = -dy * hw, ny = dx * hw;
+        addTriangle(x0 + nx, y0 + ny, x1 + nx, y1 + ny, x1 - nx, y1 - ny);
+        addTriangle(x0 + nx, y0 + ny, x1 - nx, y1 - ny, x0 - nx, y0 - ny);
+    }
+
+    /**
+     * (x, y)で方向(dx0, dy0)から(dx1, dy1)へ曲がるときの角の外側を埋める
+     */
+    private void addJoin(double x, double y, double dx0, double dy0, double dx1, double dy1) {
+        double hw = width / 2;
+        double cross = dx0 * dy1 - dy0 * dx1;
+        double dot = dx0 * dx1 + dy0 * dy1;
+        if (Math.abs(cross) < EPSILON && dot > 0)
+            return;
+
+        /* 外側は曲がる向きと反対側 */
+        double side = cross > 0 ? -1 : 1;
+        double ax = -dy0 * hw * side, ay = dx0 * hw * side;
+        double bx = -dy1 * hw * side, by = dx1 * hw * side;
+
+        switch (join) {
+            case ROUND:
+                /* 外側を短い向きに回る */
+                if (side < 0) {
+                    addArc(x, y, ax, ay, bx, by);
+                } else {
+                    addArc(x, y, bx, by, ax, ay);
+                }
+                return;
+            case MITER: {
+                double mx = ax + bx, my = ay + by;
+                double ml = Math.sqrt(mx * mx + my * my);
+                if (ml > EPSILON) {
+                    /* 中心から角の先端までの長さは hw / cos(θ/2) */
+                    double cos = (mx * ax + my * ay) / (ml * hw);
+                    if (cos > EPSILON && 1 / cos <= MITER_LIMIT) {
+                        double scale = hw / cos / ml;
+                        addTriangle(x, y, x + ax, y + ay, x + mx * scale, y + my * scale);
+                        addTriangle(x, y, x + mx * scale, y + my * scale, x + bx, y + by);
+                        return;
+                    }
+                }
+                addTriangle(x, y, x + ax, y + ay, x + bx, y + by);
+                return;
+            }
+            case BEVEL:
+            default:
+                addTriangle(x, y, x + ax, y + ay, x + bx, y + by);
+                return;
+        }
+    }
+
+    /**
+     * (x, y)で方向(dx, dy)へ終わる端
+     */
+    private void addCap(double x, double y, double dx, double dy) {
+        double hw = width / 2;
+        double nx = -dy * hw, ny = dx * hw;
+        switch (cap) {
+            case ROUND:
+                addArc(x, y, -nx, -ny, nx, ny);
+                return;
+            case SQUARE: {
+                double ex = dx * hw, ey = dy * hw;
+                addTriangle(x + nx, y + ny, x + nx + ex, y + ny + ey, x - nx + ex, y - ny + ey);
+                addTriangle(x + nx, y + ny, x - nx + ex, y - ny + ey, x - nx, y - ny);
+                return;
+            }
+            case BUTT:
+            default:
+                return;
+        }
+    }
+
+    /**
+     * 線分のない1点だけの線
+     */
+    private void addDot(double x, double y) {
+        double hw = width / 2;
+        switch (cap) {
+            case ROUND:
+                addArc(x, y, hw, 0, -hw, 0);
+                addArc(x, y, -hw, 0, hw, 0);
+                return;
+            case SQUARE:
+                addTriangle(x - hw, y - hw, x + hw, y - hw, x + hw, y + hw);
+                addTriangle(x - hw, y - hw, x + hw, y + hw, x - hw, y + hw);
+                return;
+            case BUTT:
+            default:
+                return;
+        }
+    }
+
+    /**
+     * 中心(x, y)からのベクトル(ax, ay)から(bx, by)まで、(ax, ay)から(-ay, ax)の向きに回る扇形
+     * 2つのベクトルが正反対なら半円
+     */
+    private void addArc(double x, double y, double ax, double ay, double bx, double by) {
+        double hw = width / 2;
+        if (hw <= 0)
+            return;
+        double angle = Math.atan2(ax * by - ay * bx, ax * bx + ay * by);
+        if (angle < 0)
+            angle += 2 * Math.PI;
+        if (angle == 0 && (ax != bx || ay != by))
+            angle = Math.PI;
+
+        double step = ROUND_TOLERANCE < hw ? 2 * Math.acos(1 - ROUND_TOLERANCE / hw) : Math.PI / 2;
+        int segments = Math.max(1, Math.min(64, (int) Math.ceil(angle / step)));
+        double cos = Math.cos(angle / segments), sin = Math.sin(angle / segments);
+
+        double px = ax, py = ay;
+        for (int i = 0; i < segments; i++) {
+            double qx = px * cos - py * sin;
+            double qy = px * sin + py * cos;
+            if (i == segments - 1) {
+                qx = bx;
+                qy = by;
+            }
+            addTriangle(x, y, x + px, y + py, x + qx, y + qy);
+            px = qx;
+            py = qy;
+        }
+    }
+
+    private void addTriangle(double x0, double y0, double x1, double y1, double x2, double y2) {
+        vertices.add(x0, y0);
+        vertices.add(x1, y1);
+        vertices.add(x2, y2);
+    }
+
+    /**
+     * ネイティブメモリに置いた三角形を解放し、空に戻る
+     */
+    public void dispose() {
+        vertices.dispose();
+        bodyCount = 0;
+        consumed = 0;
+        hasPoint = false;
+        hasSegment = false;
+    }
+}
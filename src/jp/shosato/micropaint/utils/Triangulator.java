@@ -0,0 +1,97 @@
+package jp.shosato.micropaint.utils;
+
+/**
+ * 耳刈り取り法によるポリゴンの三角形分割
+ * GL_POLYGONは凸多角形しか正しく塗れないので、凹多角形も三角形の集まりにして描画する
+ */
+public class Triangulator {
+
+    /**
+     * @return 三角形の頂点番号の並び（3つで1つの三角形）
+     */
+    public static int[] triangulate(PointList polygon) {
+        int n = polygon.size();
+        if (n < 3) {
+            return new int[0];
+        }
+
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        for (int i = 0; i < n; i++) {
+            xs[i] = polygon.getX(i);
+            ys[i] = polygon.getY(i);
+        }
+
+        /* 時計回り・反時計回りどちらでも凸判定できるように向きを求める */
+        double area = 0;
+        for (int i = 0, j = n - 1; i < n; j = i++) {
+            area += xs[j] * ys[i] - xs[i] * ys[j];
+        }
+        double orientation = area >= 0 ? 1 : -1;
+
+        /* 残っている頂点を双方向リストで持つ */
+        int[] prev = new int[n];
+        int[] next = new int[n];
+        for (int i = 0; i < n; i++) {
+            prev[i] = (i + n - 1) % n;
+            next[i] = (i + 1) % n;
+        }
+
+        int[] triangles = new int[(n - 2) * 3];
+        int count = 0;
+        int remaining = n;
+        int current = 0;
+        int failures = 0;
+
+        while (remaining > 3) {
+            int p = prev[current], q = next[current];
+            if (isEar(xs, ys, prev, next, p, current, q, orientation) || failures > remaining) {
+                /* 耳が見つからないのは自己交差などの不正な形状。諦めて切り取る */
+                triangles[count++] = p;
+                triangles[count++] = current;
+                triangles[count++] = q;
+                next[p] = q;
+                prev[q] = p;
+                remaining--;
+                failures = 0;
+                current = q;
+            } else {
+                current = q;
+                failures++;
+            }
+        }
+        triangles[count++] = prev[current];
+        triangles[count++] = current;
+        triangles[count++] = next[current];
+
+        return triangles;
+    }
+
+    private static double cross(double[] xs, double[] ys, int a, int b, int c) {
+        return (xs[b] - xs[a]) * (ys[c] - ys[a]) - (ys[b] - ys[a]) * (xs[c] - xs[a]);
+    }
+
+    private static boolean isEar(double[] xs, double[] ys, int[] prev, int[] next, int p, int i, int q,
+            double orientation) {
+        /* 凹頂点は耳にならない */
+        if (cross(xs, ys, p, i, q) * orientation <= 0) {
+            return false;
+        }
+
+        /* 他の頂点が三角形の内側にあれば耳ではない。凸頂点は内側に入り得ないので凹頂点だけ調べる */
+        for (int j = next[q]; j != p; j = next[j]) {
+            if (cross(xs, ys, prev[j], j, next[j]) * orientation > 0) {
+                continue;
+            }
+            if ((xs[j] == xs[p] && ys[j] == ys[p]) || (xs[j] == xs[i] && ys[j] == ys[i])
+                    || (xs[j] == xs[q] && ys[j] == ys[q])) {
+                continue;
+            }
+            if (cross(xs, ys, p, i, j) * orientation >= 0 && cross(xs, ys, i, q, j) * orientation >= 0
+                    && cross(xs, ys, q, p, j) * orientation >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -3,11 +3,6 @@ package jp.shosato.micropaint.utils;
 import org.joml.Vector2d;
 import org.joml.Vector4d;
 
-import static org.lwjgl.opengl.GL15.*;
-
-import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.util.ArrayList;
 
 /**
@@ -15,67 +10,6 @@ import java.util.ArrayList;
  */
 public class Utility {
 
-    public static void drawRectangleFill(Vector2d center, Vector2d scale, double rotate) {
-        glPushMatrix();
-
-        glTranslated(center.x, center.y, 0);
-        glRotated(rotate, 0, 0, 1);
-        glScaled(scale.x, scale.y, 1);
-
-        glBegin(GL_QUADS);
-        glVertex2d(-0.5, -0.5);
-        glVertex2d(-0.5, 0.5);
-        glVertex2d(0.5, 0.5);
-        glVertex2d(0.5, -0.5);
-        glEnd();
-        glPopMatrix();
-    }
-
-    public static void drawRectangleLineStrip(Vector2d center, Vector2d scale, double rotate) {
-        glPushMatrix();
-
-        glTranslated(center.x, center.y, 0);
-        glRotated(rotate, 0, 0, 1);
-        glScaled(scale.x, scale.y, 1);
-
-        glBegin(GL_LINE_STRIP);
-        glVertex2d(-0.5, -0.5);
-        glVertex2d(-0.5, 0.5);
-        glVertex2d(0.5, 0.5);
-        glVertex2d(0.5, -0.5);
-        glVertex2d(-0.5, -0.5);
-        glEnd();
-        glPopMatrix();
-    }
-
-    public static void drawRectangleFill(Vector2d dimension) {
-        glBegin(GL_QUADS);
-        glVertex2d(0, 0);
-        glVertex2d(dimension.x, 0);
-        glVertex2d(dimension.x, dimension.y);
-        glVertex2d(0, dimension.y);
-        glEnd();
-    }
-
-    public static void drawRectangleFill(Vector2d topLeft, Vector2d bottomRight) {
-        glBegin(GL_QUADS);
-        glVertex2d(topLeft.x, topLeft.y);
-        glVertex2d(bottomRight.x, topLeft.y);
-        glVertex2d(bottomRight.x, bottomRight.y);
-        glVertex2d(topLeft.x, bottomRight.y);
-        glEnd();
-    }
-
-    public static void drawRectangleLineStrip(Vector2d topLeft, Vector2d bottomRight) {
-        glBegin(GL_LINE_STRIP);
-        glVertex2d(topLeft.x, topLeft.y);
-        glVertex2d(bottomRight.x, topLeft.y);
-        glVertex2d(bottomRight.x, bottomRight.y);
-        glVertex2d(topLeft.x, bottomRight.y);
-        glVertex2d(topLeft.x, topLeft.y);
-        glEnd();
-    }
-
     public static boolean contains(Vector2d pos, Vector2d center, Vector2d scale, double rotate) {
         double radian = rotate * Math.PI / 180;
         Vector2d old = new Vector2d(pos).sub(center);
@@ -98,17 +32,28 @@ public class Utility {
     }
 
     public static BoundingBox getBB(ArrayList<Vector2d> vertices) {
-        Vector2d min = new Vector2d(vertices.get(0));
-        Vector2d max = new Vector2d(vertices.get(0));
+        if (vertices.isEmpty()) {
+            return null;
+        }
 
-        vertices.stream().skip(1).forEach((Vector2d v) -> {
-            min.x = Math.min(min.x, v.x);
-            max.x = Math.max(max.x, v.x);
-            min.y = Math.min(min.y, v.y);
-            max.y = Math.max(max.y, v.y);
-        });
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0, size = vertices.size(); i < size; i++) {
+            Vector2d v = vertices.get(i);
+            minX = Math.min(minX, v.x);
+            minY = Math.min(minY, v.y);
+            maxX = Math.max(maxX, v.x);
+            maxY = Math.max(maxY, v.y);
+        }
+        return new BoundingBox(minX, minY, maxX, maxY);
+    }
 
-        return new BoundingBox(min, max);
+    /**
+     * 両方を囲むバウンディングボックス
+     */
+    public static BoundingBox union(BoundingBox a, BoundingBox b) {
+        return new BoundingBox(Math.min(a.topLeft.x(), b.topLeft.x()), Math.min(a.topLeft.y(), b.topLeft.y()),
+                Math.max(a.bottomRight.x(), b.bottomRight.x()), Math.max(a.bottomRight.y(), b.bottomRight.y()));
     }
 
     public static double getArgRadian(Vector2d pos) {
@@ -155,6 +100,27 @@ public class Utility {
         return inside;
     }
 
+    /**
+     * isInsidePolygonと同じ判定を点の列に対して行う
+     */
+    public static boolean isInsidePolygon(double x, double y, PointList vertices) {
+        int n = vertices.size();
+        if (n < 3) {
+            return false;
+        }
+        boolean inside = false;
+        for (int i = 0, j = n - 1; i < n; j = i++) {
+            double oldX = vertices.getX(j), oldY = vertices.getY(j);
+            double newX = vertices.getX(i), newY = vertices.getY(i);
+            double x1 = newX > oldX ? oldX : newX, y1 = newX > oldX ? oldY : newY;
+            double x2 = newX > oldX ? newX : oldX, y2 = newX > oldX ? newY : oldY;
+            if ((x1 < x) == (x <= x2) && (y - y1) * (x2 - x1) < (y2 - y1) * (x - x1)) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+
     public static double getAngleRadian(Vector2d a, Vector2d b, Vector2d c) {
         Vector2d v0 = new Vector2d(a).sub(b);
         Vector2d v1 = new Vector2d(c).sub(b);
@@ -162,6 +128,34 @@ public class Utility {
         return Math.acos(new Vector2d(v0).dot(v1) / (v0.length() * v1.length()));
     }
 
+    /**
+     * 点(px, py)から線分(ax, ay)-(bx, by)までの距離の2乗
+     */
+    public static double getSegmentDistanceSquared(double px, double py, double ax, double ay, double bx, double by) {
+        double dx = bx - ax, dy = by - ay;
+        double length2 = dx * dx + dy * dy;
+        double t = length2 == 0 ? 0 : ((px - ax) * dx + (py - ay) * dy) / length2;
+        t = Math.max(0, Math.min(1, t));
+        double ex = ax + dx * t - px, ey = ay + dy * t - py;
+        return ex * ex + ey * ey;
+    }
+
+    /**
+     * 線分(ax, ay)-(bx, by)が矩形と重なるか（境界を含む）。軸と線分の法線で分離できるかを調べる
+     */
+    public static boolean segmentIntersectsRect(double ax, double ay, double bx, double by, double minX,
+            double minY, double maxX, double maxY) {
+        if (Math.max(ax, bx) < minX || Math.min(ax, bx) > maxX || Math.max(ay, by) < minY
+                || Math.min(ay, by) > maxY)
+            return false;
+        double dx = bx - ax, dy = by - ay;
+        double c0 = dx * (minY - ay) - dy * (minX - ax);
+        double c1 = dx * (minY - ay) - dy * (maxX - ax);
+        double c2 = dx * (maxY - ay) - dy * (minX - ax);
+        double c3 = dx * (maxY - ay) - dy * (maxX - ax);
+        return !(c0 > 0 && c1 > 0 && c2 > 0 && c3 > 0) && !(c0 < 0 && c1 < 0 && c2 < 0 && c3 < 0);
+    }
+
     public static double getAreaDimension(Vector2d a, Vector2d b, Vector2d c) {
         Vector2d v0 = new Vector2d(a).sub(b);
         Vector2d v1 = new Vector2d(c).sub(b);
@@ -174,36 +168,6 @@ public class Utility {
                 (int) (rgba.w * 255));
     }
 
-    public static void getScreenshot(int x, int y, int w, int h, String path) {
-        int pixels[] = new int[w * h];
-        glReadBuffer(GL_FRONT);
-        glPixelStorei(GL_PACK_ALIGNMENT, 1);
-        glReadPixels(x, y, w, h, GL_RGBA, GL_UNSIGNED_BYTE, pixels);
-
-        try {
-            File file = new File(path);
-            BufferedOutputStream outputStream = new BufferedOutputStream(new FileOutputStream(file));
-
-            outputStream.write(String.format("P6\n%s %s\n255\n", w, h).getBytes());
-            for (int i = h - 1; i >= 0; i--) {
-                for (int j = 0; j < w; j++) {
-                    int pixel = pixels[(i * w + j)];
-                    int a = (pixel >> 24) & 0xff;
-                    int b = (pixel >> 16) & 0xff;
-                    int g = (pixel >> 8) & 0xff;
-                    int r = (pixel) & 0xff;
-
-                    outputStream.write((byte) r);
-                    outputStream.write((byte) g);
-                    outputStream.write((byte) b);
-                }
-            }
-            outputStream.close();
-        } catch (Exception e) {
-            System.out.println(e);
-        }
-    }
-
     public static Vector2d translate(Vector2d pos, Vector2d translate) {
         return new Vector2d(pos).add(translate);
     }
@@ -245,6 +209,19 @@ public class Utility {
         return newpos;
     }
 
+    /**
+     * 変形後の範囲を囲むバウンディングボックス
+     */
+    public static BoundingBox transform(BoundingBox bb, Vector2d center, Vector2d translate, Vector2d scale,
+            double rotate_degree) {
+        ArrayList<Vector2d> corners = new ArrayList<>();
+        corners.add(transform(new Vector2d(bb.topLeft), center, translate, scale, rotate_degree));
+        corners.add(transform(new Vector2d(bb.bottomRight.x(), bb.topLeft.y()), center, translate, scale, rotate_degree));
+        corners.add(transform(new Vector2d(bb.bottomRight), center, translate, scale, rotate_degree));
+        corners.add(transform(new Vector2d(bb.topLeft.x(), bb.bottomRight.y()), center, translate, scale, rotate_degree));
+        return getBB(corners);
+    }
+
     public static Vector2d untransform(Vector2d pos, Vector2d center, Vector2d translate, Vector2d scale,
             double rotate_degree) {
         Vector2d newpos = new Vector2d(pos);
@@ -255,20 +232,4 @@ public class Utility {
         Utility.translateInplace(newpos, center);
         return newpos;
     }
-
-    public static void glTransform(Vector2d dimension, Vector2d translate, Vector2d scale, double rotate) {
-        glTranslated(dimension.x / 2, dimension.y / 2, 0);
-        glTranslated(translate.x, translate.y, 0);
-        glScaled(scale.x, scale.y, 1);
-        glRotated(rotate, 0, 0, -1);
-        glTranslated(-dimension.x / 2, -dimension.y / 2, 0);
-    }
-
-    public static void glTransformAt(Vector2d center, Vector2d translate, Vector2d scale, double rotate) {
-        glTranslated(center.x, center.y, 0);
-        glTranslated(translate.x, translate.y, 0);
-        glScaled(scale.x, scale.y, 1);
-        glRotated(rotate, 0, 0, -1);
-        glTranslated(-center.x, -center.y, 0);
-    }
 }
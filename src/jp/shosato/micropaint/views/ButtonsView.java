@@ -2,6 +2,7 @@ package jp.shosato.micropaint.views;
 
 import org.joml.Vector2d;
 
+import jp.shosato.micropaint.Window;
 import jp.shosato.micropaint.components.ButtonComponent;
 import jp.shosato.micropaint.components.FigureComponent;
 import jp.shosato.micropaint.components.LabelComponent;
@@ -90,7 +91,7 @@ public class ButtonsView extends VerticalContainerComponent {
             currentFigureModel.currentFigure.setValue(new Pair<>(generator.run(), generator));
         });
         clearButton.onButtonClicked.addEventHandler((ButtonClickedEvent event) -> {
-            canvasView.canvas.removeChildren();
+            canvasView.clearFigures();
         });
         canvasZoominButton.onButtonClicked.addEventHandler((ButtonClickedEvent event) -> {
             canvasModel.canvasScale.setValue(new Vector2d(canvasModel.canvasScale.getValue()).add(0.1, 0.1));
@@ -103,10 +104,10 @@ public class ButtonsView extends VerticalContainerComponent {
 
         ButtonComponent screenshot = new ButtonComponent(70, 40, "保存");
         screenshot.onButtonClicked.addEventHandler((ButtonClickedEvent) -> {
-            // BoundingBox bb = canvasView.canvas.getBB();
-            // Utility.getScreenshot((int) bb.topLeft.x, (int) bb.topLeft.y, (int)
-            // bb.getWidth(), (int) bb.getHeight(),
-            // "screenshot.ppm");
+            Window window = canvasView.canvas.getWindow();
+            if (window != null) {
+                window.saveScreenshot(canvasView.canvas.toWindowRect(canvasView.canvas.getBB()), "draw.png");
+            }
             try {
                 new SVGSerializer(canvasView.canvas).toFile("draw.svg");
             } catch (Exception e) {
@@ -107,12 +107,15 @@ public class CanvasView extends HorizontalContainerComponent {
         });
         canvasModel.canvasScale.addObserver((Vector2d canvasScale) -> {
             canvas.canvasScale = canvasScale;
+            canvas.invalidate();
         });
         canvasModel.canvasTranslate.addObserver((Vector2d canvasTranslate) -> {
             canvas.canvasTranslate = canvasTranslate;
+            canvas.invalidate();
         });
         canvasModel.canvasCenter.addObserver((Vector2d canvasCenter) -> {
             canvas.canvasCenter = canvasCenter;
+            canvas.invalidate();
         });
 
         // EventHandlers
@@ -144,4 +147,12 @@ public class CanvasView extends HorizontalContainerComponent {
             }
         });
     }
+
+    /**
+     * 図形を全て取り除く。取り除いた図形は解放されるので、先に選択から外す
+     */
+    public void clearFigures() {
+        selectionModel.unselectAll();
+        canvas.removeChildren();
+    }
 }